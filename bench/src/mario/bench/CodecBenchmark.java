@@ -0,0 +1,104 @@
+package mario.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import mario.net.BinaryPacketCodec;
+import mario.net.JsonPacketCodec;
+import mario.net.Packet;
+import mario.net.PacketCodec;
+import mario.net.SnapshotCodec;
+import mario.sim.MarioArrowX;
+import mario.sim.MarioBody;
+import mario.sim.MotionState;
+import mario.sim.Physics;
+
+/**
+ * What NetworkManager does with a MARIO_STATE on either end.
+ * 
+ * encodeBinary gets no acks back, so after the first snapshots it only
+ * makes keyframes, the worst case. roundTripBinary has two peers trade
+ * states every frame, which is the steady state with deltas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    MarioBody mario;
+    Packet packet = new Packet();
+    PacketCodec binary;
+    PacketCodec binaryPeer;
+    PacketCodec json;
+    byte[] binaryFrame;
+    byte[] jsonFrame;
+    
+    @Setup
+    public void setup() {
+        mario = new MarioBody();
+        mario.respawn(0);
+        mario.vx = 9;
+        mario.ax = 0.45f;
+        mario.frictionalForce = 0.7f;
+        mario.motionState = MotionState.RUNNING;
+        mario.arrowX = MarioArrowX.RIGHT;
+        packet.copyFrom(mario);
+        
+        binary = newBinaryCodec();
+        binaryPeer = newBinaryCodec();
+        json = new JsonPacketCodec(Physics.BASE_TICK_RATE);
+        binaryFrame = toArray(newBinaryCodec().encode(packet));
+        jsonFrame = toArray(json.encode(packet));
+    }
+    
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        mario.x += 9;
+        return binary.encode(packet.copyFrom(mario));
+    }
+    
+    @Benchmark
+    public Packet decodeBinary() {
+        return binaryPeer.decode(binaryFrame);
+    }
+    
+    @Benchmark
+    public Packet roundTripBinary() {
+        mario.x += 9;
+        binaryPeer.decode(toArray(binary.encode(packet.copyFrom(mario))));
+        return binary.decode(toArray(binaryPeer.encode(packet)));
+    }
+    
+    @Benchmark
+    public ByteBuffer encodeJson() {
+        mario.x += 9;
+        return json.encode(packet.copyFrom(mario));
+    }
+    
+    @Benchmark
+    public Packet decodeJson() {
+        return json.decode(jsonFrame);
+    }
+    
+    static PacketCodec newBinaryCodec() {
+        return new BinaryPacketCodec(new SnapshotCodec(0.01f, 0.01f, 30), Physics.BASE_TICK_RATE);
+    }
+    
+    // What the subscriber gets out of ZeroMQ
+    static byte[] toArray(ByteBuffer buf) {
+        byte[] frame = new byte[buf.remaining()];
+        buf.get(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,86 @@
+package mario.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import mario.sim.CollisionDetector;
+import mario.sim.Contact;
+import mario.sim.EnemyCollisionDetector;
+import mario.sim.HitType;
+import mario.sim.MarioBody;
+import mario.sim.TileMap;
+import mario.sim.World;
+
+/**
+ * Tile sweeps and the trample check, as called once per Mario per tick,
+ * and one long sweep.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollisionBenchmark {
+    CollisionDetector collisionDetector;
+    EnemyCollisionDetector enemyCD;
+    MarioBody mario;
+    MarioBody enemyBelow;  // Being trampled
+    MarioBody enemyAway;   // Not even close
+    
+    @Setup
+    public void setup() {
+        World world = Fixtures.newWorld();
+        collisionDetector = world.collisionDetector;
+        enemyCD = world.enemyCD;
+        
+        // Standing on the ground (row 12), which is the common case
+        mario = world.marios[0];
+        mario.x = 150;
+        mario.y = 12 * TileMap.TILE_SIZE - mario.height;
+        mario.vy = 5;
+        
+        enemyBelow = world.marios[1];
+        enemyBelow.x = mario.x + 4;
+        enemyBelow.y = mario.y + mario.height - 10;
+        
+        enemyAway = new MarioBody();
+        enemyAway.x = mario.x + 300;
+        enemyAway.y = mario.y;
+    }
+    
+    // Standing, pulled down onto the ground
+    @Benchmark
+    public Contact fall() {
+        return collisionDetector.sweep(mario, 0, World.GRAVITY);
+    }
+    
+    @Benchmark
+    public Contact run() {
+        return collisionDetector.sweep(mario, World.MARIO_VX_LIMIT, 0);
+    }
+    
+    // Ten screens in one go, through whatever is in the way
+    @Benchmark
+    public Contact far() {
+        return collisionDetector.sweep(mario, 6400, -1);
+    }
+    
+    @Benchmark
+    public HitType trampleHit() {
+        return enemyCD.isTrample(mario, enemyBelow);
+    }
+    
+    @Benchmark
+    public HitType trampleMiss() {
+        return enemyCD.isTrample(mario, enemyAway);
+    }
+}
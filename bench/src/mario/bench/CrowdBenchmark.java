@@ -0,0 +1,56 @@
+package mario.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import mario.sim.MarioInput;
+import mario.sim.World;
+
+/**
+ * World.tick() of a room where everybody judges trampling, as on the
+ * server, by room size. Shows what the broad phase saves over all pairs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CrowdBenchmark {
+    @Param({"2", "16", "64"})
+    int players;
+    
+    World world;
+    int[] inputs;
+    int tick;
+    
+    @Setup(Level.Iteration)
+    public void setup() {
+        world = Fixtures.newWorld(players);
+        inputs = new int[players];
+    }
+    
+    @Benchmark
+    public World tick() {
+        ++tick;
+        for (int i = 0; i < players; ++i) {
+            int phase = (tick + i * 7) & 63;
+            if (phase == 0) inputs[i] = (i & 1) == 0 ? MarioInput.RIGHT : MarioInput.LEFT;
+            else if (phase == 32) inputs[i] = MarioInput.JUMP | MarioInput.RELEASE_LEFT | MarioInput.RELEASE_RIGHT;
+            else inputs[i] = MarioInput.NONE;
+        }
+        world.tick(inputs);
+        if (world.isOver()) world.reset();
+        return world;
+    }
+}
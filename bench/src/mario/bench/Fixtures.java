@@ -0,0 +1,104 @@
+package mario.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import mario.net.InterpolationBuffer;
+import mario.net.Packet;
+import mario.replay.MatchRecorder;
+import mario.sim.MarioBody;
+import mario.sim.MarioInput;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+import mario.sim.World;
+
+/**
+ * The level, and worlds set up as the client or the server does.
+ */
+class Fixtures {
+    // Run from the repository root, or point -Dmario.data at the data folder
+    static final Path DATA = Paths.get(System.getProperty("mario.data", "data"));
+    
+    static String[] readMapLines() {
+        try {
+            List<String> lines = Files.readAllLines(DATA.resolve("map.txt"), StandardCharsets.UTF_8);
+            return lines.toArray(new String[0]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    static World newWorld() {
+        MarioBody mario0 = new MarioBody();
+        MarioBody mario1 = new MarioBody();
+        mario0.respawn(0);
+        mario1.respawn(1);
+        mario0.frictionalForce = 0.7f;
+        mario1.frictionalForce = 0.7f;
+        mario1.judgesTrample = false;  // The ghost
+        return new World(new TileMap(readMapLines()), new MarioBody[]{mario0, mario1});
+    }
+    
+    // As a server has it: everyone judges trampling
+    static World newWorld(int players) {
+        MarioBody[] marios = new MarioBody[players];
+        for (int i = 0; i < players; ++i) {
+            marios[i] = new MarioBody();
+            marios[i].respawn(i);
+            marios[i].frictionalForce = 0.7f;
+        }
+        return new World(new TileMap(readMapLines()), marios);
+    }
+    
+    /**
+     * A match log of ticks ticks, as a peer client records it: our Mario
+     * on inputs like CrowdBenchmark's, the rival's state every third tick,
+     * through an interpolation buffer, and a restart after each game over.
+     */
+    static void recordMatch(Path path, int ticks) throws IOException {
+        World world = newWorld();
+        World rival = newWorld();
+        world.marios[1].simulated = false;
+        long tickNanos = 1000000000L / Physics.BASE_TICK_RATE;
+        InterpolationBuffer[] buffers = {null, new InterpolationBuffer(tickNanos, 50000000L)};
+        int[] inputs = new int[2];
+        int[] rivalInputs = new int[2];
+        Packet packet = new Packet();
+        long tickTime = 0;
+        try (MatchRecorder recorder = new MatchRecorder(path, 2, 0, Physics.BASE_TICK_RATE,
+                false, true, 50)) {
+            for (int tick = 0; tick < ticks; ++tick) {
+                if (tick % 600 == 0) recorder.snapshot(tick, tickTime + tickNanos, world, null, buffers);
+                tickTime += tickNanos;
+                int phase = tick & 63;
+                if (phase == 0) inputs[0] = MarioInput.RIGHT;
+                else if (phase == 32) inputs[0] = MarioInput.JUMP | MarioInput.RELEASE_RIGHT;
+                else inputs[0] = MarioInput.NONE;
+                if (phase == 16) rivalInputs[1] = MarioInput.RIGHT | MarioInput.RELEASE_LEFT;
+                else if (phase == 48) rivalInputs[1] = MarioInput.JUMP | MarioInput.LEFT | MarioInput.RELEASE_RIGHT;
+                else rivalInputs[1] = MarioInput.NONE;
+                recorder.tick(tickTime, inputs[0]);
+                buffers[1].sample(tickTime, world.marios[1], world);
+                world.tick(inputs);
+                rival.tick(rivalInputs);
+                if (tick % 3 == 0) {
+                    packet.copyFrom(rival.marios[1]);
+                    packet.player = 1;
+                    packet.tick = tick;
+                    recorder.message(packet);
+                    buffers[1].add(packet, tickTime);
+                }
+                if (world.isOver()) {  // Start over, as the player would
+                    recorder.reset();
+                    world.reset();
+                    world.marios[0].respawn(0);
+                }
+                if (rival.isOver()) rival.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package mario.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import mario.sim.MarioBody;
+import mario.sim.MarioInput;
+import mario.sim.World;
+
+/**
+ * Mario.update(), and a whole World.tick() of two players.
+ * 
+ * Mario keeps running right and jumping, so every call goes through the
+ * motion, speed, collision and trample code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MarioBenchmark {
+    World world;
+    MarioBody mario;
+    int[] inputs = new int[2];
+    int tick;
+    
+    @Setup(Level.Iteration)
+    public void setup() {
+        world = Fixtures.newWorld();
+        mario = world.marios[0];
+        mario.applyInput(MarioInput.RIGHT);
+    }
+    
+    @Benchmark
+    public MarioBody update() {
+        if (mario.x >= world.map.getMaxX()) mario.respawn(0);
+        if (mario.vy == 0) mario.applyInput(MarioInput.JUMP | MarioInput.RIGHT);
+        mario.update(world);
+        return mario;
+    }
+    
+    @Benchmark
+    public World tick() {
+        if (world.marios[0].x >= world.map.getMaxX()) world.marios[0].respawn(0);
+        inputs[0] = (++tick & 15) == 0 ? MarioInput.JUMP | MarioInput.RIGHT : MarioInput.NONE;
+        world.tick(inputs);
+        return world;
+    }
+}
@@ -0,0 +1,59 @@
+package mario.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import mario.replay.MatchReplayer;
+import mario.sim.TileMap;
+
+/**
+ * A recorded match replayed, per tick: physics, collision and the jitter
+ * buffer on a mix of inputs and messages like a client's. Five minutes of
+ * it, recorded first. For real matches, gradle replayMatch --repeat.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+    static final int TICKS = 18000;
+    
+    Path recorded;
+    MatchReplayer replayer;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        recorded = Files.createTempFile("replay", ".mlog");
+        Fixtures.recordMatch(recorded, TICKS);
+        replayer = new MatchReplayer(recorded, new TileMap(Fixtures.readMapLines()));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.delete(recorded);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(TICKS)
+    public long replay() {
+        replayer.seek(0);
+        replayer.runTo(Long.MAX_VALUE);
+        return replayer.getTick();
+    }
+}
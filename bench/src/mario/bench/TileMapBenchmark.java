@@ -0,0 +1,43 @@
+package mario.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import mario.sim.TileMap;
+
+/**
+ * Building the level from map.txt, the simulation half of BlockManager's
+ * constructor. The sprite half needs a PApplet and is not measured here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TileMapBenchmark {
+    String[] lines;
+    
+    @Setup
+    public void setup() {
+        lines = Fixtures.readMapLines();
+    }
+    
+    @Benchmark
+    public TileMap parse() {
+        return new TileMap(lines);
+    }
+    
+    @Benchmark
+    public TileMap load() {
+        return new TileMap(Fixtures.readMapLines());
+    }
+}
@@ -1,17 +1,25 @@
 import processing.core.*;
+import processing.data.IntList;
 import ddf.minim.*;
 import java.util.Map;
-import java.util.Set;
-import java.util.HashSet;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
 import java.lang.Math;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import org.zeromq.ZMQ;
-import org.zeromq.ZMQ.Context;
-import org.zeromq.ZMQ.Socket;
-import com.google.gson.Gson;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import org.yaml.snakeyaml.Yaml;
+import mario.net.*;
+import mario.perf.*;
+import mario.replay.MatchRecorder;
+import mario.sim.*;
 
 
 public class MarioMultiplay extends PApplet {
@@ -38,61 +46,93 @@ public class MarioMultiplay extends PApplet {
     
     // Global constants
 
-    int FRAME_RATE = 30;
+    int FRAME_RATE = 30;  // Rendering
     int FRAMES_PER_SHOT = FRAME_RATE / 10;
+    int TICK_RATE = 30;  // Simulation, same for both players
+    int MAX_TICKS_PER_FRAME = 5;  // Beyond this the game slows down instead
     int WIDTH = 640;
     int HEIGHT = 432;
-    int ASSET_SCALE = 2;
-    float GRAVITY = 2.0f;
-    float MARIO_JUMP_FORCE = 19.0f;
-    float BOOST_JUMP_FORCE = 11.3f;
-    float MARIO_VX_LIMIT = 9.0f;
-    float MARIO_FORCE = 0.45f;
     int CAMERA_RANGE_LEFT = 170;
-    int BLOCK_OFFSET = -16;
     String SERVER_HOST;
     String XSUB_PORT = "1234";
     String XPUB_PORT = "5678";
     int MY_MARIO_NUM;
+    int PLAYERS = 2;  // In the room, me included
     String ROOM_NUM;
     float MY_FRICTIONAL_FORCE = 0.4f;  // 0.4 for normal world.  0.1 for ice world.
     boolean SHOW_PACKET_INDICATOR;
-    boolean PACKET_FRUGAL = true;
+    boolean PACKET_FRUGAL = true;  // Send only when the rival would get us wrong
+    float DEAD_RECKONING_THRESHOLD = 2;  // Pixels
+    int DEAD_RECKONING_MAX_INTERVAL_MS = 250;
+    String PACKET_CODEC = "binary";  // "binary", or "json" for debugging
+    float SNAPSHOT_POSITION_PRECISION = 0.01f;
+    float SNAPSHOT_VELOCITY_PRECISION = 0.01f;
+    int SNAPSHOT_KEYFRAME_INTERVAL = 30;  // Snapshots between two keyframes
+    String NETCODE = "peer";  // "peer": we own our Mario. "server": a server does, we predict
+    boolean REMOTE_INTERPOLATION = true;  // Show the rival a little in the past, smoothly
+    int INTERPOLATION_MIN_DELAY_MS = 50;
+    int NETWORK_QUEUE_SIZE = 256;  // Frames, each way. A power of two
+    int PING_INTERVAL_MS = 1000;
+    String TELEMETRY_CSV = "telemetry.csv";  // In the sketch folder. Empty for none
+    int TELEMETRY_CSV_MAX_KB = 1024;  // Then it rolls over to telemetry.csv.1
+    boolean PROFILER = false;  // Time every phase of every frame
+    int PROFILER_DUMP_SECONDS = 10;
+    String MATCH_LOG_DIR = "matches";  // In the sketch folder. Empty for none
+    int MATCH_SNAPSHOT_SECONDS = 10;  // Where a replay can seek to
+    
+    // Profiled phases. A frame is a few ticks of the first three, then render
+    final int PHASE_INPUT = 0, PHASE_LOGIC = 1, PHASE_NETWORK = 2, PHASE_RENDER = 3, PHASE_FRAME = 4;
     
     // Global variables
     
     GAME_STATE gameState = GAME_STATE.PLAYING;
     long frame = 0;
-    Set<String> pendingKeyboardEvents;
-    boolean needSync = true;
+    long tick = 0;
+    long tickNanos;
+    long tickAccumulator = 0;  // Time not simulated yet
+    long lastDrawTime;
+    long tickTime;  // Of the tick being simulated, in System.nanoTime()
+    float renderAlpha = 0;  // How far between the last two ticks we render
+    int pendingInput = MarioInput.RESPAWN;  // Bits since last frame. This first tells a server we joined
+    int[] inputs;
+    int inputSeq;  // Of this tick's input, in server netcode
     
     // Global objects
     
     Mario marioMe;
-    Mario marioRival;
-    Mario mario0;
-    Mario mario1;
+    Mario[] marios;  // By player number, marioMe among them
+    SpriteAtlas atlas;
     Sprite bgImgSprite;
     Sprite princessSprite;
     BlockManager blockManager;
-    CollisionDetector collisionDetector;
-    EnemyCollisionDetector enemyCD;
+    World world;
+    Prediction prediction;
+    DeadReckoning deadReckoning;
+    InterpolationBuffer[] remoteBuffers;  // By player number, null for me
     NetworkManager networkManager;
     UIManger uiManager;
     // Audio ------------- START
     AudioPlayer player;
     Minim minim;  // Audio context
     // Audio ------------- END
-    Gson gson;
     
-    Context pubContext;
-    Socket pubSocket;
-    ConcurrentLinkedQueue<String> msgQueue;
+    NetworkThread network;
+    Conflator inbound;
+    Packet msgHeader = new Packet();  // Of the frame being counted
+    boolean warnedTickRate = false;  // Of refused messages, once
+    Telemetry telemetry;
+    RollingCsv telemetryCsv;
+    long lastPingTime;
+    FrameProfiler profiler;  // Null unless profiling
+    String[] profileLines;
+    long lastProfileLines;
+    MatchRecorder recorder;  // Null unless recording
+    byte[] myChannel;
+    byte[] myInputChannel;
     
 
     public void setup() {
         background(51);
-        frameRate(FRAME_RATE);
         
         // Config file
         Yaml yaml = new Yaml();
@@ -105,6 +145,9 @@ public class MarioMultiplay extends PApplet {
         System.out.println("ROOM_NUM=" + ROOM_NUM);
         MY_MARIO_NUM = (int) confMap.get("my_mario_num");
         System.out.println("MY_MARIO_NUM=" + MY_MARIO_NUM);
+        if (confMap.containsKey("players")) PLAYERS = (int) confMap.get("players");
+        PLAYERS = Math.max(PLAYERS, MY_MARIO_NUM + 1);
+        System.out.println("PLAYERS=" + PLAYERS);
         MY_FRICTIONAL_FORCE = (float) (double) confMap.get("my_frictional_force");
         System.out.println("MY_FRICTIONAL_FORCE=" + MY_FRICTIONAL_FORCE);
         SERVER_HOST = (String) confMap.get("server_host");
@@ -113,6 +156,65 @@ public class MarioMultiplay extends PApplet {
         System.out.println("SHOW_PACKET_INDICATOR=" + SHOW_PACKET_INDICATOR);
         PACKET_FRUGAL = (boolean) confMap.get("packet_frugal");
         System.out.println("PACKET_FRUGAL=" + PACKET_FRUGAL);
+        if (confMap.containsKey("dead_reckoning_threshold"))
+            DEAD_RECKONING_THRESHOLD = (float) (double) confMap.get("dead_reckoning_threshold");
+        System.out.println("DEAD_RECKONING_THRESHOLD=" + DEAD_RECKONING_THRESHOLD);
+        if (confMap.containsKey("dead_reckoning_max_interval_ms"))
+            DEAD_RECKONING_MAX_INTERVAL_MS = (int) confMap.get("dead_reckoning_max_interval_ms");
+        System.out.println("DEAD_RECKONING_MAX_INTERVAL_MS=" + DEAD_RECKONING_MAX_INTERVAL_MS);
+        if ("json".equals(confMap.get("packet_codec"))) PACKET_CODEC = "json";
+        System.out.println("PACKET_CODEC=" + PACKET_CODEC);
+        if (confMap.containsKey("snapshot_position_precision"))
+            SNAPSHOT_POSITION_PRECISION = ((Number) confMap.get("snapshot_position_precision")).floatValue();
+        System.out.println("SNAPSHOT_POSITION_PRECISION=" + SNAPSHOT_POSITION_PRECISION);
+        if (confMap.containsKey("snapshot_velocity_precision"))
+            SNAPSHOT_VELOCITY_PRECISION = ((Number) confMap.get("snapshot_velocity_precision")).floatValue();
+        System.out.println("SNAPSHOT_VELOCITY_PRECISION=" + SNAPSHOT_VELOCITY_PRECISION);
+        if (confMap.containsKey("snapshot_keyframe_interval"))
+            SNAPSHOT_KEYFRAME_INTERVAL = (int) confMap.get("snapshot_keyframe_interval");
+        System.out.println("SNAPSHOT_KEYFRAME_INTERVAL=" + SNAPSHOT_KEYFRAME_INTERVAL);
+        if (confMap.containsKey("frame_rate")) FRAME_RATE = (int) confMap.get("frame_rate");
+        System.out.println("FRAME_RATE=" + FRAME_RATE);
+        if (confMap.containsKey("tick_rate")) TICK_RATE = (int) confMap.get("tick_rate");
+        System.out.println("TICK_RATE=" + TICK_RATE);
+        if ("server".equals(confMap.get("netcode"))) NETCODE = "server";
+        System.out.println("NETCODE=" + NETCODE);
+        if (confMap.containsKey("remote_interpolation"))
+            REMOTE_INTERPOLATION = (boolean) confMap.get("remote_interpolation");
+        System.out.println("REMOTE_INTERPOLATION=" + REMOTE_INTERPOLATION);
+        if (confMap.containsKey("interpolation_min_delay_ms"))
+            INTERPOLATION_MIN_DELAY_MS = (int) confMap.get("interpolation_min_delay_ms");
+        System.out.println("INTERPOLATION_MIN_DELAY_MS=" + INTERPOLATION_MIN_DELAY_MS);
+        if (confMap.containsKey("network_queue_size"))
+            NETWORK_QUEUE_SIZE = (int) confMap.get("network_queue_size");
+        System.out.println("NETWORK_QUEUE_SIZE=" + NETWORK_QUEUE_SIZE);
+        if (confMap.containsKey("ping_interval_ms")) PING_INTERVAL_MS = (int) confMap.get("ping_interval_ms");
+        System.out.println("PING_INTERVAL_MS=" + PING_INTERVAL_MS);
+        if (confMap.containsKey("telemetry_csv")) TELEMETRY_CSV = (String) confMap.get("telemetry_csv");
+        System.out.println("TELEMETRY_CSV=" + TELEMETRY_CSV);
+        if (confMap.containsKey("telemetry_csv_max_kb"))
+            TELEMETRY_CSV_MAX_KB = (int) confMap.get("telemetry_csv_max_kb");
+        System.out.println("TELEMETRY_CSV_MAX_KB=" + TELEMETRY_CSV_MAX_KB);
+        if (confMap.containsKey("profiler")) PROFILER = (boolean) confMap.get("profiler");
+        System.out.println("PROFILER=" + PROFILER);
+        if (confMap.containsKey("profiler_dump_seconds"))
+            PROFILER_DUMP_SECONDS = (int) confMap.get("profiler_dump_seconds");
+        System.out.println("PROFILER_DUMP_SECONDS=" + PROFILER_DUMP_SECONDS);
+        if (confMap.containsKey("match_log_dir")) MATCH_LOG_DIR = (String) confMap.get("match_log_dir");
+        System.out.println("MATCH_LOG_DIR=" + MATCH_LOG_DIR);
+        if (confMap.containsKey("match_snapshot_seconds"))
+            MATCH_SNAPSHOT_SECONDS = (int) confMap.get("match_snapshot_seconds");
+        System.out.println("MATCH_SNAPSHOT_SECONDS=" + MATCH_SNAPSHOT_SECONDS);
+        
+        // Frame rate and tick rate
+        frameRate(FRAME_RATE);
+        FRAMES_PER_SHOT = Math.max(1, FRAME_RATE / 10);
+        framesPerShot = FRAMES_PER_SHOT;
+        tickNanos = 1000000000L / TICK_RATE;
+        
+        // Every sprite's frames, enlarged and packed together
+        atlas = new SpriteAtlas();
+        atlas.load();
         
         // Backgroud image
         bgImgSprite = new SharedSprite("img/background_", 1);
@@ -123,24 +225,42 @@ public class MarioMultiplay extends PApplet {
         // Block manager
         blockManager = new BlockManager();
         
-        // Collision detector
-        collisionDetector = new CollisionDetector();
-        enemyCD = new EnemyCollisionDetector();
+        // Well, our main character appears, in color. The rivals in black and white
+        marios = new Mario[PLAYERS];
+        for (int i = 0; i < PLAYERS; ++i) {
+            marios[i] = new Mario(i != MY_MARIO_NUM);
+        }
+        marioMe = marios[MY_MARIO_NUM];
         
-        // Well, our main character appears
-        marioMe = new Mario(false);  // Color
-        marioRival = new Mario(true);  // Black and White
+        // The simulation. Each one starts at the right of the one before
+        world = new World(blockManager.map, marios, new Physics(TICK_RATE));
+        for (int i = 0; i < PLAYERS; ++i) {
+            marios[i].respawn(i);
+        }
+        inputs = new int[PLAYERS];
         
-        // marioMe, marioRival
-        if (MY_MARIO_NUM == 0) {
-            mario0 = marioMe;
-            mario1 = marioRival;
-        } else {
-            mario1 = marioMe;
-            mario0 = marioRival;
+        // With a server, it judges the trampling and we predict our Mario
+        if (NETCODE.equals("server")) {
+            marioMe.judgesTrample = false;
+            prediction = new Prediction();
+        }
+        
+        // Frugal peers send when the rival's extrapolation of us goes wrong
+        if (PACKET_FRUGAL && prediction == null) {
+            deadReckoning = new DeadReckoning(world, DEAD_RECKONING_THRESHOLD,
+                    Math.max(1, DEAD_RECKONING_MAX_INTERVAL_MS * TICK_RATE / 1000));
+        }
+        
+        // Rivals go where their snapshots say, not where our physics does
+        if (REMOTE_INTERPOLATION) {
+            remoteBuffers = new InterpolationBuffer[PLAYERS];
+            for (int i = 0; i < PLAYERS; ++i) {
+                if (i == MY_MARIO_NUM) continue;
+                marios[i].simulated = false;
+                remoteBuffers[i] = new InterpolationBuffer(tickNanos,
+                        INTERPOLATION_MIN_DELAY_MS * 1000000L);
+            }
         }
-        // Mario1 positioned at the right of mario0
-        mario1.x = mario0.x + 300;
         
         // BGM
         minim = new Minim(this);
@@ -149,26 +269,54 @@ public class MarioMultiplay extends PApplet {
         
         // Network manager
         networkManager = new NetworkManager();
+        inbound = new Conflator(networkManager.codec);
+        
+        // Network numbers, a second at a time
+        telemetry = new Telemetry(1000000000L);
+        if (TELEMETRY_CSV != null && ! TELEMETRY_CSV.isEmpty()) {
+            try {
+                telemetryCsv = new RollingCsv(Paths.get(sketchPath(TELEMETRY_CSV)), Telemetry.CSV_HEADER,
+                        TELEMETRY_CSV_MAX_KB * 1024L);
+            } catch (IOException e) {
+                System.out.println("Can't write " + TELEMETRY_CSV + ": " + e.getMessage());
+            }
+        }
         
         // UI manager
         uiManager = new UIManger();
         
-        // Gson
-        gson = new Gson();
-        
-        // Publisher
-        pubContext = ZMQ.context(1);
-        pubSocket = pubContext.socket(ZMQ.PUB);
-        pubSocket.connect("tcp://" + SERVER_HOST + ":" + XSUB_PORT);
-        
-        // Message queue
-        msgQueue = new ConcurrentLinkedQueue<String>();
-        
-        // Keyboard event queue
-        pendingKeyboardEvents = new HashSet<String>();
+        // Network thread. The whole room comes in, as one subscription. Ours
+        // comes back too: the server's word on us, or our own echo in peer
+        // netcode, which we throw away
+        myChannel = (ROOM_NUM + "CHANNEL_MARIO_" + MY_MARIO_NUM).getBytes(ZMQ.CHARSET);
+        myInputChannel = (ROOM_NUM + "INPUT_MARIO_" + MY_MARIO_NUM).getBytes(ZMQ.CHARSET);
+        network = new NetworkThread("tcp://" + SERVER_HOST + ":" + XPUB_PORT,
+                "tcp://" + SERVER_HOST + ":" + XSUB_PORT,
+                (ROOM_NUM + "CHANNEL_MARIO_").getBytes(ZMQ.CHARSET), NETWORK_QUEUE_SIZE);
+        network.start();
+        
+        // Frame profiler
+        if (PROFILER) {
+            profiler = new FrameProfiler(PROFILER_DUMP_SECONDS * 1000000000L,
+                    "input", "logic", "network", "render", "frame");
+            profileLines = new String[profiler.getPhaseCount()];
+            java.util.Arrays.fill(profileLines, "");
+        }
+        
+        // Match log, one per run, named for when it started
+        if (MATCH_LOG_DIR != null && ! MATCH_LOG_DIR.isEmpty()) {
+            try {
+                Path dir = Paths.get(sketchPath(MATCH_LOG_DIR));
+                Files.createDirectories(dir);
+                String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".mlog";
+                recorder = new MatchRecorder(dir.resolve(name), PLAYERS, MY_MARIO_NUM, TICK_RATE,
+                        prediction != null, remoteBuffers != null, INTERPOLATION_MIN_DELAY_MS);
+            } catch (IOException e) {
+                System.out.println("Can't record to " + MATCH_LOG_DIR + ": " + e.getMessage());
+            }
+        }
         
-        // Subscriber thread mst be launched after msgQueue is initialized!
-        new Thread(new Subscriber()).start();
+        lastDrawTime = System.nanoTime();
     }
     
     
@@ -177,26 +325,97 @@ public class MarioMultiplay extends PApplet {
         player.close();
         minim.stop();
         
-        // ZeroMQ publisher
-        pubSocket.close();
-        pubContext.term();
+        // ZeroMQ sockets
+        network.close();
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                ;  // Nothing more to lose
+            }
+        }
+        if (telemetryCsv != null) {
+            try {
+                telemetryCsv.close();
+            } catch (IOException e) {
+                ;  // Nothing more to lose
+            }
+        }
+        System.out.println("Network: " + network.received + " received, " + network.droppedIn
+                + " dropped, " + inbound.superseded + " superseded, " + network.sent + " sent, "
+                + network.droppedOut + " dropped");
         
         super.stop();
     }
     
     
     public void draw() {
-        processUserInput();
-        
-        processGameLogic();
+        if (profiler != null) profiler.begin(PHASE_FRAME);
         
-        doNetworkStuff();
+        // Run as many fixed ticks as fit in the time since the last frame
+        long now = System.nanoTime();
+        tickAccumulator += now - lastDrawTime;
+        lastDrawTime = now;
+        if (tickAccumulator > MAX_TICKS_PER_FRAME * tickNanos) {  // Too slow to catch up
+            tickAccumulator = MAX_TICKS_PER_FRAME * tickNanos;
+        }
+        while (tickAccumulator >= tickNanos) {
+            tickAccumulator -= tickNanos;
+            tickTime = now - tickAccumulator;
+            simulate();
+        }
+        renderAlpha = (float) tickAccumulator / tickNanos;
         
-        uiManager.update();
-
+        if (profiler != null) profiler.begin(PHASE_RENDER);
         render();
+        if (profiler != null) profiler.end(PHASE_RENDER);
         
         ++frame;
+        
+        if (profiler != null) {
+            profiler.end(PHASE_FRAME);
+            updateProfile(now);
+        }
+    }
+    
+    // One fixed tick. Physics only ever advances in here
+    public void simulate() {
+        if (recorder != null && tick % (MATCH_SNAPSHOT_SECONDS * TICK_RATE) == 0) {
+            try {
+                recorder.snapshot(tick, tickTime, world, prediction, remoteBuffers);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+        
+        if (profiler == null) {
+            processUserInput();
+            processGameLogic();
+            doNetworkStuff();
+        } else {
+            profiler.begin(PHASE_INPUT);
+            processUserInput();
+            profiler.end(PHASE_INPUT);
+            profiler.begin(PHASE_LOGIC);
+            processGameLogic();
+            profiler.end(PHASE_LOGIC);
+            profiler.begin(PHASE_NETWORK);
+            doNetworkStuff();
+            profiler.end(PHASE_NETWORK);
+        }
+        
+        ++tick;
+    }
+    
+    // The on-screen summary once a second, the console dump when it is due
+    public void updateProfile(long now) {
+        if (now - lastProfileLines >= 1000000000L) {
+            for (int i = 0; i < profileLines.length; ++i) {
+                profileLines[i] = profiler.summary(i);
+            }
+            lastProfileLines = now;
+        }
+        profiler.dumpIfDue(now, System.out);
     }
 
     
@@ -204,7 +423,18 @@ public class MarioMultiplay extends PApplet {
 
     
     public void processUserInput() {
-        marioMe.processKeyboard();
+        inputs[MY_MARIO_NUM] = pendingInput;
+        pendingInput = MarioInput.NONE;
+        
+        if (prediction != null) inputSeq = prediction.record(inputs[MY_MARIO_NUM]);
+        
+        if (recorder != null) {
+            try {
+                recorder.tick(tickTime, inputs[MY_MARIO_NUM]);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
     }
     
     /**
@@ -228,15 +458,29 @@ public class MarioMultiplay extends PApplet {
 
     
     public void processGameLogic() {
-        // Game over?
-        if (gameState != GAME_STATE.PLAYING) return;
+        // Remember where they were, to render in between
+        for (int i = 0; i < PLAYERS; ++i) {
+            marios[i].savePrevious();
+        }
         
-        // Update the shared sprites
-        blockManager.spriteGold.update();
+        // Place the rivals, a jitter buffer's delay in the past
+        if (remoteBuffers != null) {
+            for (int i = 0; i < PLAYERS; ++i) {
+                if (remoteBuffers[i] != null) remoteBuffers[i].sample(tickTime, marios[i], world);
+            }
+        }
         
         // Do the simulation
-        marioMe.update();
-        marioRival.update();
+        world.tick(inputs);
+        world.map.stream(world.marios);
+        
+        // Game over?
+        if (gameState != GAME_STATE.PLAYING) return;
+        
+        // Did I step on the rival?
+        if (world.winner == MY_MARIO_NUM) {
+            gameOverWinning();
+        }
     }
     
     
@@ -246,104 +490,128 @@ public class MarioMultiplay extends PApplet {
     public void doNetworkStuff() {
         networkWrite();    // First, send my mario's state, which is already set,
         networkRead();     // then set up ghost mario's state from what received.
+        updateTelemetry();
     }
     
     public void networkRead() {
         // Game over?
         if (gameState != GAME_STATE.PLAYING) return;
         
-        // Process all unread msgs
-        ArrayList<String> unreadMsgs = networkManager.getUnreadMsgs();
-        for (String msg: unreadMsgs) {
+        // Process all unread msgs, but only the newest state of each Mario.
+        // Count them all, though. Our own echoes aside
+        telemetry.onQueueDepth(network.pending());
+        NetworkThread.Frame msg;
+        while ((msg = network.poll()) != null) {
+            if (networkManager.codec.peekHeader(msg.body, msg.bodyLength, msgHeader)
+                    && (msgHeader.player != MY_MARIO_NUM || prediction != null)) {
+                telemetry.onReceive(msgHeader, msg.receivedAt);
+            }
+            inbound.add(msg);
+        }
+        inbound.drain(readMsg);
+        network.release();
+    }
+    
+    // Each frame conflation kept
+    final Consumer<NetworkThread.Frame> readMsg = new Consumer<NetworkThread.Frame>() {
+        public void accept(NetworkThread.Frame msg) {
             if (gameState == GAME_STATE.PLAYING) {
-                processMsg(msg);
-                uiManager.addInPacket();
+                processMsg(msg.body, msg.bodyLength, msg.receivedAt);
             } else {  // Game over
                 ;  // Throw packet
             }
         }
-    }
+    };
     
     public void networkWrite() {
         // Game over?
         if (gameState != GAME_STATE.PLAYING) return;
         
-        // Need sync?
-        if (PACKET_FRUGAL && ! needSync) return;
-        
-        Packet packet = networkManager.makeMarioStatePacket(marioMe);
-        String packetStr = networkManager.packetToString(packet);
-        String channel = ROOM_NUM + "CHANNEL_MARIO_" + MY_MARIO_NUM;
-        pubSocket.sendMore(channel);
-        pubSocket.send(packetStr);
+        // With a server, it needs every tick's input, empty or not
+        if (prediction != null) {
+            networkManager.send(networkManager.makeInputPacket(inputSeq, inputs[MY_MARIO_NUM]));
+        } else if (deadReckoning == null || deadReckoning.needsSend(marioMe)) {  // Need sync?
+            Packet packet = networkManager.makeMarioStatePacket(marioMe);
+            networkManager.send(packet);
+        }
         
-        // Notify UIManager
-        uiManager.addOutPacket();
+        // Now and then, the round trip to everyone else
+        if (tickTime - lastPingTime >= PING_INTERVAL_MS * 1000000L) {
+            networkManager.send(networkManager.makePingPacket());
+            lastPingTime = tickTime;
+        }
     }
     
-    public void processMsg(String msg) {
-        if (frame < 100) System.out.println("Frame " + frame + ": " + msg);
+    // Once a window, on screen and to the CSV
+    public void updateTelemetry() {
+        if (! telemetry.update(tickTime, network)) return;
+        uiManager.onTelemetry();
+        if (telemetryCsv == null) return;
+        try {
+            telemetryCsv.append(telemetry.toCsv(System.currentTimeMillis()));
+        } catch (IOException e) {
+            System.out.println("Can't write " + TELEMETRY_CSV + ": " + e.getMessage());
+            telemetryCsv = null;
+        }
+    }
+    
+    // The game goes on without it
+    public void recordFailed(IOException e) {
+        System.out.println("Can't record the match: " + e.getMessage());
+        recorder = null;
+    }
+    
+    public void processMsg(byte[] msg, int length, long receivedAt) {
+        Packet packet = networkManager.decode(msg, length);
+        if (packet == null) {  // Other codec, version or tick rate
+            if (networkManager.codec.getRefused() > 0 && ! warnedTickRate) {
+                System.out.println("Ignoring a player whose tick_rate isn't our " + TICK_RATE
+                        + ". Both must match");
+                warnedTickRate = true;
+            }
+            return;
+        }
         
-        Packet packet = networkManager.stringToPacket(msg);
+        if (recorder != null) {
+            try {
+                recorder.message(packet);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
         
         // Judge packet type
         switch (packet.type) {
-        case "GAME_OVER":
+        case GAME_OVER:
             if (packet.whoWon == MY_MARIO_NUM) {  // Win
                 gameState = GAME_STATE.WIN;
-            } else if (packet.whoWon == (1 - MY_MARIO_NUM)) { // Lose
+                world.winner = packet.whoWon;
+            } else if (packet.whoWon >= 0 && packet.whoWon < PLAYERS) { // Lose
                 gameState = GAME_STATE.LOSE;
+                world.winner = packet.whoWon;
             }
             break;
-        case "MARIO_STATE":
-            // Setting mario state
-            marioRival.x = packet.x;
-            marioRival.y = packet.y;
-            marioRival.vx = packet.vx;
-            marioRival.vy = packet.vy;
-            marioRival.ax = packet.ax;
-            marioRival.ay = packet.ay;
-            switch (packet.motionState) {
-            case "STANDING": marioRival.motionState = MotionState.STANDING;
-                break;
-            case "RUNNING": marioRival.motionState = MotionState.RUNNING;
-                break;
-            case "JUMPING": marioRival.motionState = MotionState.JUMPING;
-                break;
-            case "FALLING": marioRival.motionState = MotionState.FALLING;
-                break;
-            default:
-                break;
-            }
-            switch (packet.faceState) {
-            case "FACE_FRONT": marioRival.faceState = MarioFace.FACE_FRONT;
-                break;
-            case "FACE_LEFT": marioRival.faceState = MarioFace.FACE_LEFT;
-                break;
-            case "FACE_RIGHT": marioRival.faceState = MarioFace.FACE_RIGHT;
-                break;
-            default:
-                break;
-            }
-            marioRival.boostJumping = packet.boostJumping;
-            marioRival.jumpPressed = packet.jumpPressed;
-            switch (packet.arrowX) {
-            case "LEFT": marioRival.arrowX = MarioArrowX.LEFT;
-                break;
-            case "RIGHT": marioRival.arrowX = MarioArrowX.RIGHT;
-                break;
-            default: marioRival.arrowX = MarioArrowX.NONE;
-                break;
-            }
-            switch (packet.arrowY) {
-            case "UP": marioRival.arrowY = MarioArrowY.UP;
-                break;
-            case "DOWN": marioRival.arrowY = MarioArrowY.DOWN;
-                break;
-            default: marioRival.arrowY = MarioArrowY.NONE;
+        case MARIO_STATE:
+            if (packet.player == MY_MARIO_NUM) {
+                // The server's word on my Mario. Rewind to it, then redo
+                // what it has not seen yet
+                if (prediction == null) break;
+                packet.copyTo(marioMe);
+                prediction.reconcile(world, marioMe, packet.inputSeq);
                 break;
             }
-            marioRival.frictionalForce = packet.frictionalForce;
+            // Setting mario state
+            if (packet.player < 0 || packet.player >= PLAYERS) break;
+            if (remoteBuffers != null) remoteBuffers[packet.player].add(packet, tickTime);
+            else packet.copyTo(marios[packet.player]);
+            break;
+        case PING:
+            if (packet.player == MY_MARIO_NUM) break;  // Our own echo
+            networkManager.send(networkManager.makePongPacket(packet.player, packet.sentAt));
+            break;
+        case PONG:
+            if (packet.echoPlayer != MY_MARIO_NUM) break;  // Somebody else's
+            telemetry.onPong((int) (receivedAt / 1000000) - packet.echoSentAt);
             break;
         default: ;
             break;
@@ -356,22 +624,25 @@ public class MarioMultiplay extends PApplet {
         
         // Send GAME_OVER packet to the rival
         Packet packet = networkManager.makeGameOverPacket(MY_MARIO_NUM);
-        String packetStr = networkManager.packetToString(packet);
-        String channel = ROOM_NUM + "CHANNEL_MARIO_" + MY_MARIO_NUM;
-        pubSocket.sendMore(channel);
-        pubSocket.send(packetStr);
+        networkManager.send(packet);
     }
     
     public void resetGame() {
         gameState = GAME_STATE.PLAYING;
-        marioMe.x = 150 + MY_MARIO_NUM * 300;
-        marioMe.y = 0;
-        marioMe.vx = 0;
-        marioMe.vy = 0;
-        marioMe.ax = 0;
-        marioMe.ay = GRAVITY;
-        needSync = true;
-        msgQueue.clear();
+        world.reset();
+        marioMe.respawn(MY_MARIO_NUM);
+        marioMe.savePrevious();  // No sliding back to the start
+        pendingInput |= MarioInput.RESPAWN;  // Tells a server, and replays right
+        if (recorder != null) {
+            try {
+                recorder.reset();
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+        if (deadReckoning != null) deadReckoning.resync();
+        while (network.poll() != null) ;  // Stale
+        network.release();
     }
 
     
@@ -379,6 +650,13 @@ public class MarioMultiplay extends PApplet {
 
     
     public void render() {
+        if (gameState == GAME_STATE.PLAYING) {
+            // Update the shared sprites
+            blockManager.spriteGold.update();
+            
+            marioMe.updateCamera();
+        }
+        
         // Draw Background
         drawBackground();
 
@@ -388,11 +666,14 @@ public class MarioMultiplay extends PApplet {
         // Draw the Marios' sprite
         noFill();
         noStroke();
-        marioRival.display();
+        for (int i = 0; i < PLAYERS; ++i) {
+            if (marios[i] != marioMe) marios[i].display();
+        }
         marioMe.display();
         
         // Draw UI
         uiManager.display();
+        if (profiler != null) drawProfile();
         
         // Game Over?
         textSize(50);
@@ -407,12 +688,24 @@ public class MarioMultiplay extends PApplet {
         }
     }
 
+    public void drawProfile() {
+        textSize(12);
+        textAlign(LEFT, BOTTOM);
+        for (int i = 0; i < profileLines.length; ++i) {
+            float y = HEIGHT - 8 - 15 * (profileLines.length - 1 - i);
+            fill(0, 0, 0);
+            text(profileLines[i], 9, y + 1);
+            fill(255, 255, 255);
+            text(profileLines[i], 8, y);
+        }
+    }
+
     public void drawBackground() {
         fill(107, 140, 255);
         noStroke();
         rect(0, 0, WIDTH, HEIGHT);
         bgImgSprite.display(-1, 8);
-        princessSprite.display(6639, 384 - princessSprite.getHeight());
+        princessSprite.display(world.map.getPrincessX(), 384 - princessSprite.getHeight());
     }
 
     public void drawMap() {
@@ -423,49 +716,10 @@ public class MarioMultiplay extends PApplet {
     // =============================== NEW FILE ==================================
 
     
-    enum MotionState {
-        STANDING, RUNNING, JUMPING, FALLING,
-    }
-
-    enum MarioFace {
-        FACE_LEFT, FACE_RIGHT, FACE_FRONT
-    }
-    
-    enum MarioArrowX {
-        NONE,
-        LEFT,
-        RIGHT
-    }
-    
-    enum MarioArrowY {
-        NONE,
-        UP,
-        DOWN
-    }
-
-    class Mario {
-        // Space state
-        int width, height;
-        float x = 150, y = 0;
-        float vx = 0;
-        float vy = 0;
-        float ax = 0;
-        float ay = GRAVITY;
-        
-        // Force state
-        float frictionalForce = 0;
-        
-        // Motion state
-        MotionState motionState = MotionState.JUMPING;
-        MarioFace faceState = MarioFace.FACE_RIGHT;
-
-        // Keyboard State
-        MarioArrowX arrowX = MarioArrowX.NONE;
-        MarioArrowY arrowY = MarioArrowY.NONE;
-        boolean jumpPressed = false;
-        
-        boolean boostJumping = false;
-
+    /**
+     * Mario on screen: a MarioBody with sprites, a camera and the keyboard.
+     */
+    class Mario extends MarioBody {
         // Sprite state
         Sprite currentSprite = null;
         
@@ -476,6 +730,9 @@ public class MarioMultiplay extends PApplet {
         
         boolean isGhost = false;
         
+        // Position before the last tick
+        float previousX = x, previousY = y;
+        
         Mario(boolean blackWhite) {
             // Load sprites
             if (! blackWhite) {
@@ -491,6 +748,7 @@ public class MarioMultiplay extends PApplet {
                 
                 isGhost = true;
             }
+            judgesTrample = ! isGhost;  // FTS: Favor The Shooter. 고스트는 밟기 판정 안함
             
             width = marioStanding.getWidth();
             height = marioStanding.getHeight();
@@ -501,12 +759,6 @@ public class MarioMultiplay extends PApplet {
             camera = new Camera();
         }
 
-        public void update() {
-            _updateMotion();
-            _updateSpeed();
-            _updatePosition();
-        }
-
         public void display() {
             // Select sprite
             if (motionState == MotionState.FALLING) currentSprite = marioFalling;
@@ -516,262 +768,72 @@ public class MarioMultiplay extends PApplet {
             
             // Select face direction
             if (faceState == MarioFace.FACE_LEFT) {
-                currentSprite.display(x, y, true);
+                currentSprite.display(getRenderX(), getRenderY(), true);
             } else
-                currentSprite.display(x, y);
-        }
-        
-        public float getCenterX() {
-            return x + 0.5f * width;
+                currentSprite.display(getRenderX(), getRenderY());
         }
         
-        // Top two points of the hitbox
-        public Coordinate[] getHitboxTop() {
-            Coordinate vertx1 = new Coordinate(x + 2, y);
-            Coordinate vertx2 = new Coordinate(x + width - 2, y);
-            return new Coordinate[]{vertx1, vertx2};
+        public void savePrevious() {
+            previousX = x;
+            previousY = y;
         }
         
-        // Bottom two points of the hitbox
-        public Coordinate[] getHitboxBottom() {
-            Coordinate vertx1 = new Coordinate(x + 2, y + height);
-            Coordinate vertx2 = new Coordinate(x + width - 2, y + height);
-            return new Coordinate[]{vertx1, vertx2};
+        // Between the last two ticks, as far as the time between frames says
+        public float getRenderX() {
+            return lerp(previousX, x, renderAlpha);
         }
         
-        public Hitbox getHitboxHead() {
-            Hitbox hitbox = new Hitbox();
-            hitbox.topLeft = new Coordinate(x + 2, y);
-            hitbox.topRight = new Coordinate(x + width - 2, y);
-            hitbox.bottomLeft = new Coordinate(x + 2, y + height - 25);
-            hitbox.bottomRight = new Coordinate(x + width - 2, y + height - 25);
-            return hitbox;
-        }
-        
-        public Hitbox getHitbox() {
-            Hitbox hitbox = new Hitbox();
-            hitbox.topLeft = new Coordinate(x + 2, y);
-            hitbox.topRight = new Coordinate(x + width - 2, y);
-            hitbox.bottomLeft = new Coordinate(x + 2, y + height);
-            hitbox.bottomRight = new Coordinate(x + width - 2, y + height);
-            return hitbox;
+        public float getRenderY() {
+            return lerp(previousY, y, renderAlpha);
         }
         
         public void onKeyPress(char key) {
             if (key == 'c' || key == 'C') {
-                pendingKeyboardEvents.add("_jump");
+                pendingInput |= MarioInput.JUMP;
             } else if (key == 'x' || key == '#') {
                 ;
             } else if (key == ENTER) {
                 if (gameState != GAME_STATE.PLAYING) resetGame();
             }else if (key == CODED) {
                 if (keyCode == UP) {
-                    pendingKeyboardEvents.add("_up");
+                    pendingInput |= MarioInput.UP;
                 } else if (keyCode == DOWN) {
-                    pendingKeyboardEvents.add("_down");
+                    pendingInput |= MarioInput.DOWN;
                 }
                 if (keyCode == LEFT) {
-                    pendingKeyboardEvents.add("_left");
+                    pendingInput |= MarioInput.LEFT;
                 } else if (keyCode == RIGHT) {
-                    pendingKeyboardEvents.add("_right");
+                    pendingInput |= MarioInput.RIGHT;
                 }
             }
         }
         
         public void onKeyRelease(char key) {
             if (key == 'c' || key == 'C') {
-                pendingKeyboardEvents.add("_release_jump");
+                pendingInput |= MarioInput.RELEASE_JUMP;
             } else if (key == 'x' || key == '#') {
                 ;
             } else if (key == CODED) {
                 if (keyCode == UP) {
-                    pendingKeyboardEvents.add("_release_up");
+                    pendingInput |= MarioInput.RELEASE_UP;
                 } else if (keyCode == DOWN) {
-                    pendingKeyboardEvents.add("_release_down");
+                    pendingInput |= MarioInput.RELEASE_DOWN;
                 }
                 if (keyCode == LEFT) {
-                    pendingKeyboardEvents.add("_release_left");
+                    pendingInput |= MarioInput.RELEASE_LEFT;
                 } else if (keyCode == RIGHT) {
-                    pendingKeyboardEvents.add("_release_right");
-                }
-            }
-        }
-        
-        public void processKeyboard() {
-            if (pendingKeyboardEvents.isEmpty()) needSync = false;
-            else needSync = true;
-            
-            for (String event: pendingKeyboardEvents) {
-                switch (event) {
-                case "_jump": _jump();
-                    break;
-                case "_left": _left();
-                    break;
-                case "_right": _right();
-                    break;
-                case "_up": arrowY = MarioArrowY.UP;
-                    break;
-                case "_down": arrowY = MarioArrowY.DOWN;
-                    break;
-                case "_release_jump": jumpPressed = false;
-                    break;
-                case "_release_left": if (arrowX == MarioArrowX.LEFT) arrowX = MarioArrowX.NONE;;
-                    break;
-                case "_release_right": if (arrowX == MarioArrowX.RIGHT) arrowX = MarioArrowX.NONE;
-                    break;
-                case "_release_up": if (arrowY == MarioArrowY.UP) arrowY = MarioArrowY.NONE;
-                    break;
-                case "_release_down": if (arrowY == MarioArrowY.DOWN) arrowY = MarioArrowY.NONE;
-                    break;
-                default: ;
-                    break;
+                    pendingInput |= MarioInput.RELEASE_RIGHT;
                 }
             }
-            pendingKeyboardEvents.clear();
-        }
-
-        public void _jump() {
-            if (motionState != MotionState.JUMPING) {
-                motionState = MotionState.JUMPING;
-                vy = -MARIO_JUMP_FORCE;  // Bounce up!  위로 튕겨주다!
-            }
-            jumpPressed = true;
-        }
-        
-        public void _boostJump() {
-            if (! boostJumping) {
-                boostJumping = true;
-                vy -= BOOST_JUMP_FORCE;
-            }
-        }
-        
-        public void _disJump() {
-            // Release the jumping state
-            if (motionState == MotionState.JUMPING) motionState = MotionState.STANDING;
-            boostJumping = false;
-            vy = 0;
-        }
-        
-        public void _friction() {
-            // Damping to break
-            if (vx > 0 && motionState != MotionState.JUMPING) ax = -frictionalForce;
-            else if (vx < 0 && motionState != MotionState.JUMPING) ax = frictionalForce;
-        }
-
-        public void _left() {
-            // Turn the face to left
-            arrowX = MarioArrowX.LEFT;
-            
-            faceState = MarioFace.FACE_LEFT;
-            // Run, if were standing. 서있던거면 달려라
-            if (motionState == MotionState.STANDING) motionState = MotionState.RUNNING;
-            
-            // Give a force to left
-            if (vx > 0) vx = 0;
-            ax = -MARIO_FORCE;
         }
         
-        public void _right() {
-            arrowX = MarioArrowX.RIGHT;
-            
-            // Turn the face to right
-            faceState = MarioFace.FACE_RIGHT;
-            // Run, if were standing. 서있던거면 달려라
-            if (motionState == MotionState.STANDING) motionState = MotionState.RUNNING;
-            
-            // Give a force to right
-            if (vx < 0) vx = 0;
-            ax = MARIO_FORCE;
-        }
-        
-        public void _updateMotion() {
-            if (arrowX == MarioArrowX.LEFT) {
-                faceState = MarioFace.FACE_LEFT;
-                
-                if (motionState == MotionState.STANDING) {  // 달리기 로직
-                    motionState = MotionState.RUNNING;
-                }
-            } else if (arrowX == MarioArrowX.RIGHT) {
-                faceState = MarioFace.FACE_RIGHT;
-                if (motionState == MotionState.STANDING) {  // 달리기 로직
-                    motionState = MotionState.RUNNING;
-                }
-            } else if (arrowX == MarioArrowX.NONE) {
-                // 占쏙옙占쌩깍옙 占쏙옙占쏙옙
-                if (motionState == MotionState.RUNNING) motionState = MotionState.STANDING;
-                _friction();
-            }
-        }
-        
-        public void _updateSpeed() {
-            // Y-axis
-            vy += ay;
-            // Boost jump
-            if (vy < 0 && vy > -4 && jumpPressed && ! boostJumping) _boostJump();
-            
-            // X-axis
-            float previousVx = vx;
-            vx += ax;
-            // Limit speed
-            if (Math.abs(vx) > MARIO_VX_LIMIT) {
-                if (vx > 0) {
-                    vx = MARIO_VX_LIMIT;
-                } else {
-                    vx = -MARIO_VX_LIMIT;
-                }
-            } else if (Math.abs(vx) < MARIO_FORCE) {
-                vx = 0;
-                ax = 0;
-            } else if (previousVx * vx < 0) {  // Symbol changed
-                vx = 0;
-                ax = 0;
-            }
-        }
-
-        public void _updatePosition() {
-            // Game Over?
-            if (gameState != GAME_STATE.PLAYING) return;
-            
-            // Update X
-            float previousX = x;
-            x += vx;
-            if (x < 0) x = 0;
-            if (x > 7000) x = 7000;
-            
-            // Collision detection: X
-            if (collisionDetector.left(this) || collisionDetector.right(this)){
-                x = previousX;
-                vx = 0;
-            }
-            
-            // Update Y
-            float previousY = y;
-            y += vy;
-            
-            // Collision detection: Y
-            if (collisionDetector.up(this)) {
-                y = previousY;
-                vy = 0;
-            }
-            if (y > HEIGHT - mario0.height || collisionDetector.down(this) ) {
-                y = previousY;
-                vy = 0;
-                _disJump();
-            }
-            
-            // Enemy Collision Detection
-            if (! isGhost) {  // FTS: Favor The Shooter. 고스트는 밟기 판정 안함
-                if (enemyCD.isTrample(getHitboxBottom(), marioRival.getHitboxHead(), this)
-                        == HitType.ENEMY) {
-                    gameOverWinning();
-                }
-            }
-            
+        public void updateCamera() {
             // Camera following
-            if (getCenterX() - camera.getCenterX() > 0) {  // Mario too right
-                camera.x = getCenterX() - 0.5f * camera.width;
-            } else if (camera.getCenterX() - getCenterX() > CAMERA_RANGE_LEFT) {  // Mario too left
-                camera.x = getCenterX() + CAMERA_RANGE_LEFT - 0.5f * camera.width;
+            float centerX = getRenderX() + 0.5f * width;
+            if (centerX - camera.getCenterX() > 0) {  // Mario too right
+                camera.x = centerX - 0.5f * camera.width;
+            } else if (camera.getCenterX() - centerX > CAMERA_RANGE_LEFT) {  // Mario too left
+                camera.x = centerX + CAMERA_RANGE_LEFT - 0.5f * camera.width;
                 if (camera.x < 0) camera.x = 0;
             }
         }
@@ -782,60 +844,39 @@ public class MarioMultiplay extends PApplet {
     int framesPerShot = FRAMES_PER_SHOT;
 
     /**
-     * Class for animating a sequence of GIFs
+     * Class for animating a sequence of GIFs, drawn from the atlas
      */
     class Sprite {
-        PImage[] images;
-        PImage[] mirroredImages;
+        AtlasFrame[] images;
+        AtlasFrame[] mirroredImages;
         int imageCount;
         int frame;
 
         Sprite(String imagePrefix, int count) {
-            imageCount = count;
-            images = new PImage[imageCount];
-
-            for (int i = 0; i < imageCount; ++i) {
-                // Use nf() to number format 'i' into four digits
-                String filename = imagePrefix + nf(i, 4) + ".gif";
-                PImage img = loadImage(filename);
-                images[i] = _enlarge(img, 2);
-            }
+            this(imagePrefix, count, false);
         }
 
         Sprite(String imagePrefix, int count, boolean hasMirrored) {
-
             imageCount = count;
-            images = new PImage[imageCount];
-
-            for (int i = 0; i < imageCount; ++i) {
-                // Use nf() to number format 'i' into four digits
-                String filename = imagePrefix + nf(i, 4) + ".gif";
-                PImage img = loadImage(filename);
-                images[i] = _enlarge(img, 2);
-            }
-
-            if (hasMirrored) {
-                mirroredImages = new PImage[imageCount];
-                for (int i = 0; i < imageCount; ++i) {
-                    mirroredImages[i] = _flip(images[i]);
-                }
-            }
+            images = atlas.get(imagePrefix, count, false);
+            if (hasMirrored) mirroredImages = atlas.get(imagePrefix, count, true);
         }
 
         public void display(float xpos, float ypos) {  // 월드 좌표 받고
             frame = (frame + 1) % (imageCount * framesPerShot);
             int shotIndex = frame / framesPerShot;
-            image(images[shotIndex], xpos - marioMe.camera.x, ypos, images[shotIndex].width,
-                    images[shotIndex].height);  // 카메라 좌표계로 그려줌
+            images[shotIndex].draw(xpos - marioMe.camera.x, ypos);  // 카메라 좌표계로 그려줌
         }
         
         public void display(float xpos, float ypos, boolean reverse) {
-            if (! reverse) display(xpos - marioMe.camera.x, ypos);
+            if (! reverse) {
+                display(xpos, ypos);
+                return;
+            }
             
             frame = (frame + 1) % (imageCount * framesPerShot);
             int shotIndex = frame / framesPerShot;
-            image(mirroredImages[shotIndex], xpos - marioMe.camera.x, ypos, mirroredImages[shotIndex].width,
-                    mirroredImages[shotIndex].height);
+            mirroredImages[shotIndex].draw(xpos - marioMe.camera.x, ypos);
         }
 
         public int getWidth() {
@@ -845,37 +886,6 @@ public class MarioMultiplay extends PApplet {
         public int getHeight() {
             return images[0].height;
         }
-
-        public PImage _enlarge(PImage image, int multiple) {
-            PImage newImg;
-            newImg = createImage(image.width * multiple, image.height * multiple, ARGB);
-            for (int i = 0; i < image.width; ++i) {
-                for (int j = 0; j < image.height; ++j) {
-                    newImg.set(2 * i, 2 * j, image.get(i, j));
-                    newImg.set(2 * i, 2 * j + 1, image.get(i, j));
-                    newImg.set(2 * i + 1, 2 * j, image.get(i, j));
-                    newImg.set(2 * i + 1, 2 * j + 1, image.get(i, j));
-                }
-            }
-            
-            return newImg;
-        }
-        
-        public PImage _flip(PImage image) {
-            PImage reverse;
-            reverse = createImage(image.width, image.height, ARGB);
-
-            for (int i = 0; i < image.width; ++i) {
-                for (int j = 0; j < image.height; ++j) {
-                    int xPixel, yPixel;
-                    xPixel = image.width - 1 - i;
-                    yPixel = j;
-                    reverse.pixels[yPixel * image.width + xPixel] = image.pixels[j * image.width + i];
-                }
-            }
-            return reverse;
-        }
-
     }
     
     class SharedSprite extends Sprite {
@@ -890,19 +900,16 @@ public class MarioMultiplay extends PApplet {
         
         public void display(float xpos, float ypos) {
             int shotIndex = frame / framesPerShot;
-            image(images[shotIndex], xpos - marioMe.camera.x, ypos,
-                    images[shotIndex].width, images[shotIndex].height);
+            images[shotIndex].draw(xpos - marioMe.camera.x, ypos);
         }
         
         public void display(float xpos, float ypos, boolean reverse) {
             int shotIndex = frame / framesPerShot;
             
             if (! reverse) {
-                image(images[shotIndex], xpos - marioMe.camera.x, ypos,
-                        images[shotIndex].width, images[shotIndex].height);
+                images[shotIndex].draw(xpos - marioMe.camera.x, ypos);
             } else {
-                image(mirroredImages[shotIndex], xpos - marioMe.camera.x, ypos,
-                    mirroredImages[shotIndex].width, mirroredImages[shotIndex].height);
+                mirroredImages[shotIndex].draw(xpos - marioMe.camera.x, ypos);
             }
         }
         
@@ -911,39 +918,254 @@ public class MarioMultiplay extends PApplet {
         }
     }
     
-    class TextSprite {
-        private float x, y;
-        private float vy;
-        private String _text;
-        private int size;
-        int r;
-        int g;
-        int b;
-        
-        public TextSprite(String text, int size, float x, float y, float vy) {
+    
+    // =========================== NEW FILE ==================================
+    
+    
+    /**
+     * A frame in the atlas: a rect on one of its pages, already enlarged and
+     * mirrored if need be.
+     */
+    class AtlasFrame {
+        PImage page;
+        int x, y, width, height;
+        
+        AtlasFrame(PImage page, int x, int y, int width, int height) {
+            this.page = page;
             this.x = x;
             this.y = y;
-            this._text = text;
-            this.size = size;
-            this.vy = vy;
+            this.width = width;
+            this.height = height;
+        }
+        
+        public void draw(float screenX, float screenY) {
+            draw(g, screenX, screenY);
+        }
+        
+        public void draw(PGraphics graphics, float screenX, float screenY) {
+            graphics.image(page, screenX, screenY, width, height, x, y, x + width, y + height);
+        }
+    }
+    
+    /**
+     * Every sprite frame enlarged, mirrored and packed into as few images as
+     * possible. Building it takes a while, so the pages go to data/atlas_N.png
+     * with an index in data/atlas.idx, and are loaded from there as long as
+     * the GIFs they were made of stay the same.
+     */
+    class SpriteAtlas {
+        static final int VERSION = 1;
+        static final int SCALE = 2;
+        static final int PAGE_SIZE = 1024;  // Wider frames get a page of their own
+        static final int PADDING = 1;  // Between frames, so they don't bleed into each other
+        
+        ArrayList<String> prefixes = new ArrayList<String>();
+        IntList counts = new IntList();
+        ArrayList<Boolean> mirrored = new ArrayList<Boolean>();
+        PImage[] pages;
+        HashMap<String, AtlasFrame> frames = new HashMap<String, AtlasFrame>();
+        
+        SpriteAtlas() {
+            add("img/background_", 1, false);
+            add("img/princess_standing_", 1, false);
+            add("img/ground_", 1, false);
+            add("img/block_", 1, false);
+            add("img/brick_", 1, false);
+            add("img/question_", 1, false);
+            add("img/gold_", 4, false);
+            add("img/mario_standing_", 1, true);
+            add("img/mario_running_", 4, true);
+            add("img/mario_jumping_", 1, true);
+            add("img/mario_falling_", 2, true);
+            add("img/bw_mario_standing_", 1, true);
+            add("img/bw_mario_running_", 4, true);
+            add("img/bw_mario_jumping_", 1, true);
+            add("img/bw_mario_falling_", 2, true);
+        }
+        
+        void add(String prefix, int count, boolean hasMirrored) {
+            prefixes.add(prefix);
+            counts.append(count);
+            mirrored.add(hasMirrored);
+        }
+        
+        public void load() {
+            long start = System.nanoTime();
+            String hash = hashSources();
+            if (loadCache(hash)) {
+                System.out.println("Sprite atlas loaded in " + (System.nanoTime() - start) / 1000000 + " ms");
+                return;
+            }
+            build();
+            saveCache(hash);
+            System.out.println("Sprite atlas built in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        
+        public AtlasFrame[] get(String prefix, int count, boolean mirror) {
+            AtlasFrame[] result = new AtlasFrame[count];
+            for (int i = 0; i < count; ++i) {
+                result[i] = frames.get(key(fileName(prefix, i), mirror));
+                if (result[i] == null)
+                    throw new RuntimeException(key(fileName(prefix, i), mirror) + " is not in the atlas");
+            }
+            return result;
+        }
+        
+        String fileName(String prefix, int i) {
+            return prefix + nf(i, 4) + ".gif";
+        }
+        
+        String key(String fileName, boolean mirror) {
+            return mirror ? fileName + "~" : fileName;
+        }
+        
+        // Of everything the pages are made of
+        String hashSources() {
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(("v" + VERSION + " x" + SCALE + " " + PAGE_SIZE).getBytes());
+            for (int s = 0; s < prefixes.size(); ++s) {
+                crc.update((prefixes.get(s) + counts.get(s) + mirrored.get(s)).getBytes());
+                for (int i = 0; i < counts.get(s); ++i) {
+                    byte[] bytes = loadBytes(fileName(prefixes.get(s), i));
+                    if (bytes != null) crc.update(bytes);
+                }
+            }
+            return Long.toHexString(crc.getValue());
+        }
+        
+        boolean loadCache(String hash) {
+            if (! new java.io.File(dataPath("atlas.idx")).exists()) return false;
+            String[] index = loadStrings(dataPath("atlas.idx"));
+            if (index == null || index.length < 2 || ! index[0].equals(hash)) return false;
             
-            this.r = (int) random(255);
-            this.g = (int) random(255);
-            this.b = (int) random(255);
+            pages = new PImage[Integer.parseInt(index[1])];
+            for (int p = 0; p < pages.length; ++p) {
+                pages[p] = loadImage(dataPath("atlas_" + p + ".png"));
+                if (pages[p] == null) return false;
+            }
+            for (int i = 2; i < index.length; ++i) {
+                String[] f = split(index[i], '\t');
+                frames.put(f[0], new AtlasFrame(pages[Integer.parseInt(f[1])], Integer.parseInt(f[2]),
+                        Integer.parseInt(f[3]), Integer.parseInt(f[4]), Integer.parseInt(f[5])));
+            }
+            return true;
         }
         
-        public void update() {
-            this.y += vy;
+        void saveCache(String hash) {
+            ArrayList<String> index = new ArrayList<String>();
+            index.add(hash);
+            index.add(str(pages.length));
+            for (Map.Entry<String, AtlasFrame> e : frames.entrySet()) {
+                AtlasFrame f = e.getValue();
+                index.add(e.getKey() + "\t" + java.util.Arrays.asList(pages).indexOf(f.page) + "\t"
+                        + f.x + "\t" + f.y + "\t" + f.width + "\t" + f.height);
+            }
+            for (int p = 0; p < pages.length; ++p) {
+                if (! pages[p].save(dataPath("atlas_" + p + ".png"))) {
+                    System.out.println("Can't cache the sprite atlas");
+                    return;
+                }
+            }
+            saveStrings(dataPath("atlas.idx"), index.toArray(new String[0]));
+        }
+        
+        void build() {
+            // Every frame, as it will be drawn
+            ArrayList<String> keys = new ArrayList<String>();
+            ArrayList<PImage> images = new ArrayList<PImage>();
+            for (int s = 0; s < prefixes.size(); ++s) {
+                for (int i = 0; i < counts.get(s); ++i) {
+                    String fileName = fileName(prefixes.get(s), i);
+                    PImage image = enlarge(loadImage(fileName), SCALE);
+                    keys.add(key(fileName, false));
+                    images.add(image);
+                    if (mirrored.get(s)) {
+                        keys.add(key(fileName, true));
+                        images.add(mirror(image));
+                    }
+                }
+            }
+            
+            // Shelves, tallest frames first
+            Integer[] order = new Integer[images.size()];
+            for (int i = 0; i < order.length; ++i) order[i] = i;
+            final ArrayList<PImage> sorted = images;
+            java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return sorted.get(b).height - sorted.get(a).height;
+                }
+            });
+            int[] pageOf = new int[order.length], xOf = new int[order.length], yOf = new int[order.length];
+            IntList pageWidths = new IntList(), pageHeights = new IntList();
+            int shared = -1;  // The page small frames go to
+            int shelfX = 0, shelfY = 0, shelfHeight = 0;
+            for (int i : order) {
+                PImage image = images.get(i);
+                if (image.width > PAGE_SIZE) {
+                    pageOf[i] = pageWidths.size();
+                    pageWidths.append(image.width);
+                    pageHeights.append(image.height);
+                    continue;
+                }
+                if (shared < 0) {
+                    shared = pageWidths.size();
+                    pageWidths.append(PAGE_SIZE);
+                    pageHeights.append(0);
+                }
+                if (shelfX + image.width > PAGE_SIZE) {
+                    shelfX = 0;
+                    shelfY += shelfHeight + PADDING;
+                    shelfHeight = 0;
+                }
+                pageOf[i] = shared;
+                xOf[i] = shelfX;
+                yOf[i] = shelfY;
+                shelfX += image.width + PADDING;
+                shelfHeight = Math.max(shelfHeight, image.height);
+                pageHeights.set(shared, shelfY + shelfHeight);
+            }
+            
+            pages = new PImage[pageWidths.size()];
+            for (int p = 0; p < pages.length; ++p) {
+                pages[p] = createImage(pageWidths.get(p), pageHeights.get(p), ARGB);
+                pages[p].loadPixels();
+            }
+            for (int i = 0; i < order.length; ++i) {
+                PImage image = images.get(i), page = pages[pageOf[i]];
+                for (int row = 0; row < image.height; ++row) {
+                    System.arraycopy(image.pixels, row * image.width,
+                            page.pixels, (yOf[i] + row) * page.width + xOf[i], image.width);
+                }
+                frames.put(keys.get(i), new AtlasFrame(page, xOf[i], yOf[i], image.width, image.height));
+            }
+            for (PImage page : pages) page.updatePixels();
         }
         
-        public void display() {
-            textSize(size);
-            fill(0, 0, 0);
-            text(_text, x + 1, y + 1);
-            if (PACKET_FRUGAL) fill(255, 255, 255);
-            else fill(r, g, b);
-            textAlign(CENTER, CENTER);
-            text(_text, x, y);
+        PImage enlarge(PImage image, int multiple) {
+            image.loadPixels();
+            PImage newImg = createImage(image.width * multiple, image.height * multiple, ARGB);
+            newImg.loadPixels();
+            for (int y = 0; y < newImg.height; ++y) {
+                int from = y / multiple * image.width, to = y * newImg.width;
+                for (int x = 0; x < newImg.width; ++x) {
+                    newImg.pixels[to + x] = image.pixels[from + x / multiple];
+                }
+            }
+            newImg.updatePixels();
+            return newImg;
+        }
+        
+        PImage mirror(PImage image) {
+            PImage reverse = createImage(image.width, image.height, ARGB);
+            reverse.loadPixels();
+            for (int y = 0; y < image.height; ++y) {
+                int row = y * image.width;
+                for (int x = 0; x < image.width; ++x) {
+                    reverse.pixels[row + image.width - 1 - x] = image.pixels[row + x];
+                }
+            }
+            reverse.updatePixels();
+            return reverse;
         }
     }
     
@@ -969,46 +1191,26 @@ public class MarioMultiplay extends PApplet {
     // =========================== NEW FILE ==================================
     
     
-    class Block {
-        int x = 0, y = 0;
-        int xB = 0, yB = 0;
-        char blockType;
-        boolean visible = true;
-        SharedSprite sprite;
-        
-        public Block(int xB, int yB, char blockType) {
-            this.xB = xB;
-            this.yB = yB;
-            this.x = 16 * ASSET_SCALE * xB + BLOCK_OFFSET;
-            this.y = 16 * ASSET_SCALE * yB;
-            
-            this.visible = true;
-            this.blockType = blockType;
-        }
-        
-        public void display() {
-            if (sprite != null) {
-                sprite.display(x, y);  // 월드 좌표 받음
-            }
-        }
-    }
-
-    class Coordinate {
-        float x = 0, y = 0;
-        
-        public Coordinate(float x, float y) {
-            this.x = x;
-            this.y = y;
-        }
-    }
-    
     class BlockManager {
         SharedSprite spriteGround;
         SharedSprite spriteBrick;
         SharedSprite spriteBlock;
         SharedSprite spriteQuestion;
         SharedSprite spriteGold;
-        ArrayList<ArrayList<Block>> blocks = new ArrayList<ArrayList<Block>>();
+        SharedSprite[] sprites = new SharedSprite[TileMap.TILE_TYPES];  // By tile id
+        TileMap map;
+        
+        // Tiles that never change, drawn once per chunk. The least recently seen go first
+        static final int CHUNK_PIXELS = TileMap.CHUNK_WIDTH * TileMap.TILE_SIZE;
+        static final int CACHED_CHUNKS = 6;  // Twice what fits on the screen
+        LinkedHashMap<Integer, TileChunkImage> chunkImages =
+                new LinkedHashMap<Integer, TileChunkImage>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, TileChunkImage> eldest) {
+                if (size() <= CACHED_CHUNKS) return false;
+                eldest.getValue().graphics.dispose();
+                return true;
+            }
+        };
         
         public BlockManager() {
             // Load sprites
@@ -1017,395 +1219,162 @@ public class MarioMultiplay extends PApplet {
             spriteBrick = new SharedSprite("img/brick_", 1);
             spriteQuestion = new SharedSprite("img/question_", 1);
             spriteGold = new SharedSprite("img/gold_", 4);
+            sprites[TileMap.GROUND] = spriteGround;
+            sprites[TileMap.BLOCK] = spriteBlock;
+            sprites[TileMap.BRICK] = spriteBrick;
+            sprites[TileMap.QUESTION] = spriteQuestion;
+            sprites[TileMap.GOLD] = spriteGold;
             
-            // Read map.txt
-            String[] lines = loadStrings("map.txt");
-            // Make blocks
-            println("Start to make blocks..");
-            for (int i = 0; i < lines.length; ++i) {
-                String line = lines[i];
-                char[] charArray = line.toCharArray();
-                ArrayList<Block> blockRow = new ArrayList<Block>();
-                for (int j = 0; j < charArray.length; ++j) {
-                    char c = charArray[j];
-                    Block block = new Block(j, i, c);
-                    switch (c) {
-                        case ' ' :
-                            break;
-                        case '#' : ; block.sprite = spriteGround;     // Ground
-                            break;
-                        case 'B' : block.sprite = spriteBlock;        // Block
-                            break;
-                        case 'R' : block.sprite = spriteBrick;        // Block
-                            break;
-                        case '?' : block.sprite = spriteQuestion;     // Question mark
-                            break;
-                        case 'O' : block.sprite = spriteGold;         // Gold
-                            break;
-                        default :
-                            break;
-                    }
-                    
-                    blockRow.add(block);
-                    print(c);
-                }
-                blocks.add(blockRow);
-                println();
+            // map.lvl, or map.txt
+            try {
+                map = LevelLoader.load(Paths.get(dataPath("")), "map");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
         
         public void display() {
-            int xStart;
-            if ((x2bX(marioMe.camera.getCenterX()) - 11) < 0) xStart = 0;
-            else xStart = x2bX(marioMe.camera.getCenterX()) - 11;
-            int xEnd = xStart + 23;
+            // The chunks on screen
+            float left = marioMe.camera.x - TileMap.BLOCK_OFFSET;
+            int first = Math.max(0, (int) Math.floor(left / CHUNK_PIXELS));
+            int last = Math.min(map.getChunkCount() - 1,
+                    (int) Math.floor((left + marioMe.camera.width) / CHUNK_PIXELS));
             
-            for (int i = 0; i < blocks.size(); ++i) {
-                for (int j = xStart; j < Math.min(xEnd + 1, blocks.get(i).size()); ++j) {
-                    Block block = blocks.get(i).get(j);
-                    block.display();
+            for (int c = first; c <= last; ++c) {
+                TileChunkImage chunk = chunkImages.get(c);
+                if (chunk == null) {
+                    chunk = new TileChunkImage(map, sprites, c);
+                    chunkImages.put(c, chunk);
+                }
+                float chunkX = c * CHUNK_PIXELS + TileMap.BLOCK_OFFSET;  // 월드 좌표
+                image(chunk.graphics, chunkX - marioMe.camera.x, 0);
+                
+                // Gold spins, so it is drawn every frame
+                for (int i = 0; i < chunk.golds.size(); ++i) {
+                    int bX = chunk.golds.get(i) >> 16, bY = chunk.golds.get(i) & 0xFFFF;
+                    spriteGold.display(TileMap.TILE_SIZE * bX + TileMap.BLOCK_OFFSET,
+                            TileMap.TILE_SIZE * bY);
                 }
             }
         }
         
         public Coordinate block2Coor(int bX, int bY) {
-            Coordinate coordinate = new Coordinate(16 * ASSET_SCALE * bX,
-                    16 * ASSET_SCALE * bY);
+            Coordinate coordinate = new Coordinate(TileMap.TILE_SIZE * bX,
+                    TileMap.TILE_SIZE * bY);
             return coordinate;
         }
         
         public int y2bY(float y) {
-            return (int) y / (16 * ASSET_SCALE);
+            return map.y2bY(y);
         }
         
         public int x2bX(float x) {
-            return (int) (x - BLOCK_OFFSET) / (16 * ASSET_SCALE);
+            return map.x2bX(x);
         }
     }
     
     
-    // ============================ NEW FILE ==================================
-    
-    
-    class CollisionDetector {
-        public boolean up(Mario mario) {
-            if ((int)mario.y <= 0) return false;
-            
-            int step = 24;
-            for (int i = 0; i < 2; ++i) {
-                float x = mario.x + i * step;
-                int bX = blockManager.x2bX(x);
-                int bY = blockManager.y2bY(mario.y);
-                 
-                ArrayList<Block> blockRow = blockManager.blocks.get(bY);
-                if (blockRow.size() <= bX) continue;  // No block
-                 
-                Block block = blockRow.get(bX);
-                if (block == null) continue;
-                if (block.blockType == ' ' || block.blockType == 'O')
-                    continue;
-                else return true;
-            }
-            
-            // 위에서 true로 미리 빠져나가지 않았다
-            return false;
-        }
-        
-        public boolean down(Mario mario) {
-            if ((int)mario.y <= 0) return false;
-            
-            int step = 24;
-            for (int i = 0; i < 2; ++i) {
-                float x = mario.x + i * step;
-                int bX = blockManager.x2bX(x);
-                int bY = blockManager.y2bY(mario.y + mario.height);
-                 
-                ArrayList<Block> blockRow = blockManager.blocks.get(bY);
-                if (blockRow.size() <= bX) continue;  // No block
-                 
-                Block block = blockRow.get(bX);
-                if (block == null) continue;
-                if (block.blockType == ' ' || block.blockType == 'O') continue;
-                else return true;
-            }
-            
-            // 위에서 true로 미리 빠져나가지 않았다
-            return false;
-        }
-        
-        public boolean left(Mario mario) {
-            if ((int)mario.y <= 0) return false;
-            
-            int step = mario.height / 2;
-            for (int i = 0; i < 3; ++i) {
-                float y = mario.y + i * step;
-                int bX = blockManager.x2bX(mario.x);
-                int bY = blockManager.y2bY(y);
-                
-                ArrayList<Block> blockRow = blockManager.blocks.get(bY);
-                if (blockRow.size() <= bX) continue;  // No block
-                
-                Block block = blockRow.get(bX);
-                if (block == null) continue;
-                if (block.blockType == ' ' || block.blockType == 'O') continue;
-                else return true;
-            }
-            
-            // 위에서 true로 미리 빠져나가지 않았다
-            return false;
-        }
-        
-        public boolean right(Mario mario) {
-            if ((int)mario.y <= 0) return false;
-            
-            int step = mario.height / 2;
-            for (int i = 0; i < 3; ++i) {
-                float y = mario.y + i * step;
-                int bX = blockManager.x2bX(mario.x + mario.width);
-                int bY = blockManager.y2bY(y);
-                
-                ArrayList<Block> blockRow = blockManager.blocks.get(bY);
-                if (blockRow.size() <= bX) continue;  // No block
-                
-                Block block = blockRow.get(bX);
-                if (block == null) continue;
-                if (block.blockType == ' ' || block.blockType == 'O') continue;
-                else return true;
-            }
-            
-            // 위에서 true로 미리 빠져나가지 않았다
-            return false;
-        }
-    }
-    
-    
-    // ============================= NEW FILE ==================================
-    
-    
-    class Rect {
-        Coordinate topLeft;
-        Coordinate topRight;
-        Coordinate bottomLeft;
-        Coordinate bottomRight;
-    }
-    
-    class Hitbox extends Rect {}
-    
-    enum HitType {
-        NONE,
-        ENEMY
-    }
-    
-    class EnemyCollisionDetector {
-        public HitType isTrample(Coordinate[] myHitboxBottom, Hitbox enemyHitbox,
-                Mario marioMe) {
-            if (marioMe.vy < 0.1) return HitType.NONE;
-            
-            Coordinate[] hbVertexes = new Coordinate[]{
-                    enemyHitbox.topLeft,
-                    enemyHitbox.topRight,
-                    enemyHitbox.bottomLeft,
-                    enemyHitbox.bottomRight
-            };
-            for (Coordinate foot: myHitboxBottom) {
-                boolean isMinX = true;
-                for (Coordinate vertx: hbVertexes) {
-                    if (foot.x >= vertx.x) {
-                        isMinX = false;
-                        break;
-                    }
-                }
-                if (isMinX) continue;
-                
-                boolean isMaxX = true;
-                for (Coordinate vertx: hbVertexes) {
-                    if (foot.x <= vertx.x) {
-                        isMaxX = false;
-                        break;
-                    }
-                }
-                if (isMaxX) continue;
-                
-                boolean isMinY = true;
-                for (Coordinate vertx: hbVertexes) {
-                    if (foot.y >= vertx.y) {
-                        isMinY = false;
-                        break;
-                    }
-                }
-                if (isMinY) continue;
-                
-                boolean isMaxY = true;
-                for (Coordinate vertx: hbVertexes) {
-                    if (foot.y <= vertx.y) {
-                        isMaxY = false;
-                        break;
-                    }
+    /**
+     * The static tiles of one map chunk, drawn offscreen, and where its gold is.
+     */
+    class TileChunkImage {
+        PGraphics graphics;
+        IntList golds = new IntList();  // bX << 16 | bY
+        
+        TileChunkImage(TileMap map, SharedSprite[] sprites, int chunk) {
+            graphics = createGraphics(BlockManager.CHUNK_PIXELS, map.getHeight() * TileMap.TILE_SIZE, P2D);
+            graphics.beginDraw();
+            graphics.clear();
+            int xStart = chunk * TileMap.CHUNK_WIDTH;
+            int xEnd = Math.min(xStart + TileMap.CHUNK_WIDTH, map.getWidth());
+            for (int bY = 0; bY < map.getHeight(); ++bY) {
+                for (int bX = xStart; bX < xEnd; ++bX) {
+                    byte tile = map.tileAt(bX, bY);
+                    if (tile == TileMap.GOLD) golds.append(bX << 16 | bY);
+                    else if (sprites[tile] != null)
+                        sprites[tile].images[0].draw(graphics,
+                                TileMap.TILE_SIZE * (bX - xStart), TileMap.TILE_SIZE * bY);
                 }
-                if (isMaxY) continue;
-                
-                // Neither min nor max, return HIT
-                return HitType.ENEMY;
             }
-            
-            // Not hit
-            return HitType.NONE;
+            graphics.endDraw();
         }
     }
     
     
     // ============================= NEW FILE ==================================
     
-
-    class Subscriber implements Runnable {
-        Context context;
-        Socket subSocket;
-        
-        // Constructor
-        public Subscriber () {
-            context = ZMQ.context(1);
-            subSocket = context.socket(ZMQ.SUB);
-            subSocket.connect("tcp://" + SERVER_HOST + ":" + XPUB_PORT);
-            String channel = (ROOM_NUM + "CHANNEL_MARIO_" + String.valueOf(1 - MY_MARIO_NUM));
-//			String channel = (ROOM_NUM + "CHANNEL_MARIO_0");
-
-            subSocket.subscribe(channel.getBytes(ZMQ.CHARSET));
+    
+    class NetworkManager {
+        PacketCodec codec;
+        Packet statePacket = new Packet();
+        Packet gameOverPacket = new Packet();
+        Packet inputPacket = new Packet();
+        Packet pingPacket = new Packet();
+        int channelSeq = 0;  // Numbering of what we send on myChannel
+        int pingSeq = 0;  // PINGs and PONGs on it, apart: see Telemetry
+        int inputChannelSeq = 0;  // What we send on myInputChannel
+        
+        public NetworkManager() {
+            if (PACKET_CODEC.equals("json")) codec = new JsonPacketCodec(TICK_RATE);
+            else codec = new BinaryPacketCodec(new SnapshotCodec(SNAPSHOT_POSITION_PRECISION,
+                    SNAPSHOT_VELOCITY_PRECISION, SNAPSHOT_KEYFRAME_INTERVAL), TICK_RATE);
+        }
+        
+        public Packet makeMarioStatePacket(MarioBody mario) {
+            Packet packet = statePacket.copyFrom(mario);
+            packet.player = MY_MARIO_NUM;
+            packet.tick = (int) tick;
+            return packet;
         }
         
-        public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
-                /* It read synchronously, so no need to sleep().
-                 * It is copied from the official sample code.
-                */
-
-                // Read envelope with address
-                String channel = subSocket.recvStr();
-                // Read message contents
-                String contents = subSocket.recvStr();
-                //System.out.println("Received from: " + channel + " Contents: " + contents);
-                msgQueue.add(contents);
-            }
+        public Packet makeGameOverPacket(int whoWon) {
+            Packet packet = gameOverPacket;
+            packet.type = PacketType.GAME_OVER;
+            packet.player = MY_MARIO_NUM;
+            packet.whoWon = whoWon;
+            return packet;
         }
         
-        public void finallize() throws Throwable {
-            try{
-                if (subSocket != null) subSocket.close();
-                if (context != null) context.term();
-            }
-            finally {
-                super.finalize();
-            }
-        }
-    }
-    
-    
-    // ============================= NEW FILE ==================================
-    
-    
-    class Packet {
-        public String type;  // "MARIO_STATE" / "GAME_OVER"
-        public int whoWon;  // 0, 1, -1
-        public float x;
-        public float y;
-        public float vx;
-        public float vy;
-        public float ax;
-        public float ay;
-        public String motionState;
-        public String faceState;
-        public boolean boostJumping;
-        public boolean jumpPressed;
-        public String arrowX;
-        public String arrowY;
-        public float frictionalForce;
-    }
-    
-    
-    // ============================= NEW FILE ==================================
-    
-    
-    class NetworkManager {
-        public ArrayList<String> getUnreadMsgs() {
-            ArrayList<String> unreadMsgs = new ArrayList<String>();
-            String msg;
-            while ((msg = msgQueue.poll()) != null) {
-                unreadMsgs.add(msg);
-            }
-            return unreadMsgs;
+        public Packet makeInputPacket(int seq, int input) {
+            Packet packet = inputPacket;
+            packet.type = PacketType.INPUT;
+            packet.player = MY_MARIO_NUM;
+            packet.whoWon = -1;
+            packet.inputSeq = seq;
+            packet.input = input;
+            return packet;
         }
-
-        public Packet makeMarioStatePacket(Mario mario) {
-            Packet packet = new Packet();
-            packet.type = "MARIO_STATE";
-            packet.whoWon = -1;  // For none
-            packet.x = mario.x;
-            packet.y = mario.y;
-            packet.vx = mario.vx;
-            packet.vy = mario.vy;
-            packet.ax = mario.ax;
-            packet.ay = mario.ay;
-            String motionState = "";
-            switch (mario.motionState) {
-                case STANDING: motionState = "STANDING";
-                    break;
-                case RUNNING: motionState = "RUNNING";
-                    break;
-                case JUMPING: motionState = "JUMPING";
-                    break;
-                case FALLING: motionState = "FALLING";
-                    break;
-                default: ;
-                    break;
-            }
-            packet.motionState = motionState;
-            String faceState = "";
-            switch (mario.faceState) {
-                case FACE_FRONT: faceState = "FACE_FRONT";
-                    break;
-                case FACE_LEFT: faceState = "FACE_LEFT";
-                    break;
-                case FACE_RIGHT: faceState = "FACE_RIGHT";
-                    break;
-                default: ;
-                    break;
-            }
-            packet.faceState = faceState;
-            packet.boostJumping = mario.boostJumping;
-            packet.jumpPressed = mario.jumpPressed;
-            switch (mario.arrowX) {
-                case LEFT: packet.arrowX = "LEFT";
-                    break;
-                case RIGHT: packet.arrowX = "RIGHT";
-                    break;
-                default: packet.arrowX = "NONE";
-                    break;
-            }
-            switch (mario.arrowY) {
-                case UP: packet.arrowY = "UP";
-                    break;
-                case DOWN: packet.arrowY = "DOWN";
-                    break;
-                default: packet.arrowY = "NONE";
-                    break;
-            }
-            packet.frictionalForce = mario.frictionalForce;
-            
+        
+        public Packet makePingPacket() {
+            Packet packet = pingPacket;
+            packet.type = PacketType.PING;
+            packet.player = MY_MARIO_NUM;
+            packet.whoWon = -1;
             return packet;
         }
         
-        public Packet makeGameOverPacket(int whoWon) {
-            Packet packet = new Packet();
-            packet.type = "GAME_OVER";
-            packet.whoWon = whoWon;
+        public Packet makePongPacket(int echoPlayer, int echoSentAt) {
+            Packet packet = pingPacket;
+            packet.type = PacketType.PONG;
+            packet.player = MY_MARIO_NUM;
+            packet.whoWon = -1;
+            packet.echoPlayer = echoPlayer;
+            packet.echoSentAt = echoSentAt;
             return packet;
         }
         
-        public String packetToString(Packet packet) {
-            return gson.toJson(packet);
+        // Publish on my channel. Inputs go on their own, only servers read them
+        public void send(Packet packet) {
+            if (packet.type == PacketType.INPUT) packet.seq = inputChannelSeq++;
+            else if (Telemetry.isPing(packet)) packet.seq = pingSeq++;
+            else packet.seq = channelSeq++;
+            packet.sentAt = (int) (System.nanoTime() / 1000000);
+            ByteBuffer buf = codec.encode(packet);
+            network.send(packet.type == PacketType.INPUT ? myInputChannel : myChannel, buf);
         }
         
-        public Packet stringToPacket(String packetStr) {
-            return gson.fromJson(packetStr, Packet.class);
+        public Packet decode(byte[] msg, int length) {
+            return codec.decode(msg, length);
         }
     }
     
@@ -1413,65 +1382,39 @@ public class MarioMultiplay extends PApplet {
     // ============================= NEW FILE ==================================
     
     
+    /**
+     * The network overlay: the telemetry of the last second, top left.
+     */
     class UIManger {
-        public LinkedList<TextSprite> inPackets;
-        public LinkedList<TextSprite> outPackets;
-        
-        public UIManger() {
-            inPackets = new LinkedList<TextSprite>();
-            outPackets = new LinkedList<TextSprite>();
-        }
-        
-        public void update() {
-            // inPackets
-            for (int i = 0; i < inPackets.size(); ++i) {
-                inPackets.get(i).update();
-            }
-            // GC
-            while (true) {
-                if (inPackets.isEmpty()) break;
-                
-                TextSprite textSprite = inPackets.getFirst();
-                if (textSprite.y > HEIGHT) {
-                    inPackets.removeFirst();
-                } else break;
-            }
-            
-            // outPackets
-            for (int i = 0; i < outPackets.size(); ++i) {
-                outPackets.get(i).update();
-            }
-            // GC
-            while (true) {
-                if (outPackets.isEmpty()) break;
-                
-                TextSprite textSprite = outPackets.getFirst();
-                if (textSprite.y < 0) {
-                    outPackets.removeFirst();
-                } else break;
-            }
+        String[] lines = {"Network: measuring..."};
+        
+        // A new window of telemetry. Formatted here, once, not every frame
+        public void onTelemetry() {
+            String rtt = telemetry.rttMillis < 0 ? "-" : nf((float) telemetry.rttMillis, 0, 1);
+            lines = new String[] {
+                "RTT " + rtt + " ms   jitter " + nf((float) telemetry.jitterMillis, 0, 1)
+                        + " ms   loss " + nf((float) telemetry.lossPercent, 0, 1) + "%   reordered "
+                        + telemetry.reordered,
+                "In " + round((float) telemetry.inPacketsPerSecond) + " pkt/s "
+                        + round((float) telemetry.inBytesPerSecond) + " B/s   out "
+                        + round((float) telemetry.outPacketsPerSecond) + " pkt/s "
+                        + round((float) telemetry.outBytesPerSecond) + " B/s",
+                "Queue " + telemetry.queueDepth + "   dropped " + telemetry.droppedIn + " in "
+                        + telemetry.droppedOut + " out   superseded " + inbound.superseded,
+            };
         }
         
         public void display() {
             if (! SHOW_PACKET_INDICATOR) return;
             
-            // inPackets
-            for (int i = 0; i < inPackets.size(); ++i) {
-                inPackets.get(i).display();
-            }
-            
-            // outPackets
-            for (int i = 0; i < outPackets.size(); ++i) {
-                outPackets.get(i).display();
+            textSize(12);
+            textAlign(LEFT, TOP);
+            for (int i = 0; i < lines.length; ++i) {
+                fill(0, 0, 0);
+                text(lines[i], 9, 9 + 15 * i);
+                fill(255, 255, 255);
+                text(lines[i], 8, 8 + 15 * i);
             }
         }
-        
-        public void addInPacket() {
-            inPackets.addLast(new TextSprite("@", 30, WIDTH, 0, 20));;
-        }
-        
-        public void addOutPacket() {
-            outPackets.addLast(new TextSprite("@", 30, 0, HEIGHT, -20));;
-        }
     }
 }
\ No newline at end of file
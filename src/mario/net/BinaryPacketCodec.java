@@ -0,0 +1,125 @@
+package mario.net;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary codec. Little endian.
+ * 
+ *  0  version         u8
+ *  1  type            u8   PacketType ordinal
+ *  2  player          u8
+ *  3  whoWon          i8
+ *  4  seq             u16
+ *  6  sentAt          u32      Sender's milliseconds
+ * 10  tickRate        u8       Sender's simulation. Others' are refused
+ * 11  snapshot                 MARIO_STATE, see SnapshotCodec
+ *     inputSeq        u16      INPUT
+ *     input           u16      INPUT
+ *     echoPlayer      u8       PONG
+ *     echoSentAt      u32      PONG
+ * 
+ * An authoritative server never gets MARIO_STATE back, so it never gets
+ * acks either, and all it sends are keyframes.
+ */
+public class BinaryPacketCodec implements PacketCodec {
+    static final int VERSION = 7;
+    static final int HEADER_SIZE = 11;
+    static final int INPUT_SIZE = HEADER_SIZE + 4;
+    static final int PONG_SIZE = HEADER_SIZE + 5;
+    static final int MAX_PACKET_SIZE = 256;
+
+    ByteBuffer writeBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    ByteBuffer readBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    Packet readPacket = new Packet();
+    SnapshotCodec snapshotCodec;
+    final int tickRate;
+    long refused = 0;
+
+    // values() clones its array every call, so keep our own copy
+    PacketType[] packetTypes = PacketType.values();
+
+    public BinaryPacketCodec(SnapshotCodec snapshotCodec, int tickRate) {
+        this.snapshotCodec = snapshotCodec;
+        this.tickRate = tickRate;
+        writeBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public ByteBuffer encode(Packet packet) {
+        ByteBuffer buf = writeBuffer;
+        buf.clear();
+        buf.put((byte) VERSION);
+        buf.put((byte) packet.type.ordinal());
+        buf.put((byte) packet.player);
+        buf.put((byte) packet.whoWon);
+        buf.putShort((short) packet.seq);
+        buf.putInt(packet.sentAt);
+        buf.put((byte) tickRate);
+        if (packet.type == PacketType.MARIO_STATE) {
+            snapshotCodec.encode(packet, buf);
+        } else if (packet.type == PacketType.INPUT) {
+            buf.putShort((short) packet.inputSeq);
+            buf.putShort((short) packet.input);
+        } else if (packet.type == PacketType.PONG) {
+            buf.put((byte) packet.echoPlayer);
+            buf.putInt(packet.echoSentAt);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public Packet decode(byte[] frame, int length) {
+        Packet packet = readPacket;
+        if (! peekHeader(frame, length, packet)) return null;
+        if (packet.tickRate != tickRate) {
+            ++refused;
+            return null;
+        }
+        if (packet.type == PacketType.GAME_OVER || packet.type == PacketType.PING) return packet;
+        if (packet.type == PacketType.INPUT && length < INPUT_SIZE) return null;
+        if (packet.type == PacketType.PONG && length < PONG_SIZE) return null;
+
+        ByteBuffer buf = readBuffer;
+        buf.clear();
+        buf.put(frame, HEADER_SIZE, length - HEADER_SIZE);
+        buf.flip();
+        if (packet.type == PacketType.INPUT) {
+            packet.inputSeq = buf.getShort() & 0xFFFF;
+            packet.input = buf.getShort() & 0xFFFF;
+            return packet;
+        }
+        if (packet.type == PacketType.PONG) {
+            packet.echoPlayer = buf.get() & 0xFF;
+            packet.echoSentAt = buf.getInt();
+            return packet;
+        }
+        try {
+            if (! snapshotCodec.decode(buf, packet)) return null;
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            return null;  // Truncated or garbage
+        }
+        return packet;
+    }
+
+    public boolean peekHeader(byte[] frame, int length, Packet into) {
+        if (length < HEADER_SIZE || length > MAX_PACKET_SIZE
+                || frame[0] != VERSION) return false;
+        int type = frame[1];
+        if (type < 0 || type >= packetTypes.length) return false;
+
+        into.type = packetTypes[type];
+        into.player = frame[2] & 0xFF;
+        into.whoWon = frame[3];
+        into.seq = (frame[4] & 0xFF) | (frame[5] & 0xFF) << 8;
+        into.sentAt = (frame[6] & 0xFF) | (frame[7] & 0xFF) << 8 | (frame[8] & 0xFF) << 16
+                | (frame[9] & 0xFF) << 24;
+        into.tickRate = frame[10] & 0xFF;
+        return true;
+    }
+    
+    public long getRefused() {
+        return refused;
+    }
+}
@@ -0,0 +1,59 @@
+package mario.net;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Latest state wins. The frames received since the last look are collected
+ * here, then handed on in order, except for MARIO_STATEs superseded by a
+ * newer one of the same player: those are dropped before anyone parses
+ * them. GAME_OVER, and whatever the codec can't peek at, all go through in
+ * the order they came.
+ * 
+ * Frames are the network thread's ring slots, so drain() before releasing
+ * them. A dropped state is as good as lost. It was never decoded, so never acked,
+ * and the delta codec doesn't use it as a baseline.
+ */
+public class Conflator {
+    static final int PLAYERS = 256;  // As many as the player byte holds
+    
+    final PacketCodec codec;
+    final Packet header = new Packet();
+    NetworkThread.Frame[] frames = new NetworkThread.Frame[64];
+    int count = 0;
+    int[] latestState = new int[PLAYERS];  // 1 + its index in frames, by player. 0 for none
+    
+    public long superseded = 0;
+    
+    public Conflator(PacketCodec codec) {
+        this.codec = codec;
+    }
+    
+    public void add(NetworkThread.Frame frame) {
+        if (count == frames.length) frames = Arrays.copyOf(frames, 2 * count);
+        if (codec.peekHeader(frame.body, frame.bodyLength, header) && header.type == PacketType.MARIO_STATE) {
+            int player = header.player;
+            if (latestState[player] > 0) {
+                frames[latestState[player] - 1] = null;
+                ++superseded;
+            }
+            latestState[player] = count + 1;
+        }
+        frames[count++] = frame;
+    }
+    
+    // Hands over what is still worth reading, oldest first, and forgets it all
+    public void drain(Consumer<NetworkThread.Frame> consumer) {
+        for (int i = 0; i < count; ++i) {
+            NetworkThread.Frame frame = frames[i];
+            frames[i] = null;
+            if (frame != null) consumer.accept(frame);
+        }
+        count = 0;
+        Arrays.fill(latestState, 0);
+    }
+    
+    public int size() {
+        return count;
+    }
+}
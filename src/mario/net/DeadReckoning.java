@@ -0,0 +1,65 @@
+package mario.net;
+
+import mario.sim.MarioBody;
+import mario.sim.MarioInput;
+import mario.sim.World;
+
+/**
+ * Decides when our Mario's state is worth sending.
+ * 
+ * Between two states the receiver runs its physics forward from the last
+ * one with no input, so we keep a ghost that does exactly that. We send
+ * when the ghost has drifted more than threshold pixels from the real
+ * Mario, when the keys it holds differ, or when maxIntervalTicks have
+ * passed anyway, so a lost packet is never wrong for long.
+ */
+public class DeadReckoning {
+    World world;
+    float threshold;
+    int maxIntervalTicks;
+    
+    MarioBody ghost = new MarioBody();  // What the receiver thinks we are
+    int ticksSinceSent = 0;
+    boolean resync = true;
+    
+    public DeadReckoning(World world, float threshold, int maxIntervalTicks) {
+        this.world = world;
+        this.threshold = threshold;
+        this.maxIntervalTicks = maxIntervalTicks;
+        ghost.judgesTrample = false;
+        ghost.setPhysics(world.physics);
+    }
+    
+    /**
+     * Call once a tick, after the simulation. If it returns true, send
+     * mario's state now.
+     */
+    public boolean needsSend(MarioBody mario) {
+        world.step(ghost, MarioInput.NONE);
+        ++ticksSinceSent;
+        
+        if (! resync && ticksSinceSent < maxIntervalTicks
+                && getError(mario) <= threshold
+                && ghost.arrowX == mario.arrowX && ghost.arrowY == mario.arrowY
+                && ghost.jumpPressed == mario.jumpPressed
+                && ghost.boostJumping == mario.boostJumping
+                && ghost.faceState == mario.faceState) {
+            return false;
+        }
+        ghost.copyFrom(mario);
+        ticksSinceSent = 0;
+        resync = false;
+        return true;
+    }
+    
+    // Send on the next tick whatever the error, e.g. after a respawn
+    public void resync() {
+        resync = true;
+    }
+    
+    float getError(MarioBody mario) {
+        float dx = ghost.x - mario.x;
+        float dy = ghost.y - mario.y;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,71 @@
+package mario.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring of frames made once, up front, for exactly one producer
+ * thread and one consumer thread. Lock free: the producer only moves tail,
+ * the consumer only head. The producer claims the slot at the tail, copies
+ * a message into it and publishes it; the consumer polls published slots,
+ * reads them in place, and releases them all at once when it no longer
+ * looks at any. So nothing is allocated per message, and a frame polled
+ * stays good until release(). Full means full: claim says no, and the
+ * caller decides what to drop.
+ */
+public final class FrameRing {
+    final NetworkThread.Frame[] slots;
+    final int mask;
+    final AtomicLong head = new AtomicLong();  // Oldest not released
+    final AtomicLong tail = new AtomicLong();  // Next to publish
+    long cachedHead = 0;  // The producer's last look at head
+    long cachedTail = 0;  // The consumer's last look at tail
+    long read = 0;  // Consumer. Next to poll
+    
+    public FrameRing(int capacity, int topicCapacity, int bodyCapacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Not a power of two: " + capacity);
+        slots = new NetworkThread.Frame[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new NetworkThread.Frame(topicCapacity, bodyCapacity);
+        }
+        mask = capacity - 1;
+    }
+    
+    // Producer. The slot to fill, or null if full. Claiming again without
+    // publishing gives the same slot
+    public NetworkThread.Frame claim() {
+        long t = tail.get();
+        if (t - cachedHead == slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == slots.length) return null;
+        }
+        return slots[(int) t & mask];
+    }
+    
+    // Producer. Hands the claimed slot over
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+    
+    // Consumer. The oldest published frame not polled yet, or null
+    public NetworkThread.Frame poll() {
+        if (read == cachedTail) {
+            cachedTail = tail.get();
+            if (read == cachedTail) return null;
+        }
+        return slots[(int) read++ & mask];
+    }
+    
+    // Consumer. Every frame polled goes back to the producer
+    public void release() {
+        head.lazySet(read);
+    }
+    
+    // Published, not polled yet
+    public int size() {
+        return (int) (tail.get() - read);
+    }
+    
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,243 @@
+package mario.net;
+
+import java.nio.ByteBuffer;
+
+import mario.sim.MarioBody;
+import mario.sim.MarioInput;
+import mario.sim.World;
+
+/**
+ * Jitter buffer for one remote Mario.
+ * 
+ * Snapshots are stamped with the sender's tick. The remote Mario is shown
+ * a little in the past, interpolated between the two snapshots around
+ * that moment, instead of jumping to each snapshot as it arrives. How far
+ * in the past follows the measured jitter and the interval between
+ * snapshots, so there is nearly always a snapshot on either side. When
+ * there is not, we run the physics forward from the newest one, as we did
+ * before there was a buffer.
+ * 
+ * With dead reckoning, snapshots can be far apart, and a straight line
+ * between them cuts a jump's arc into chords. Across a gap of more than
+ * a few ticks we follow the path the physics gives from the older one,
+ * which is what the sender checked us against, and spread what's left of
+ * the difference to the newer one over the gap.
+ * 
+ * Times are in System.nanoTime() nanoseconds. Sender times are tick *
+ * tickNanos, so both ends must run the same tick rate.
+ */
+public class InterpolationBuffer {
+    static final int CAPACITY = 32;
+    static final double GAIN = 1 / 16.0;  // Smoothing of jitter and interval, as RFC 3550
+    static final double OFFSET_RISE = 1 / 64.0;  // How fast we believe a slower route
+    static final int JITTER_MULTIPLIER = 3;
+    static final int MAX_EXTRAPOLATION_TICKS = 120;
+    static final int MAX_LINEAR_TICKS = 2;  // Gaps this short are drawn straight
+    // Longer gaps are a sender with nothing to say (packet_frugal), not its
+    // rhythm. We extrapolate through those rather than wait for them
+    static final long MAX_INTERVAL_NANOS = 100000000L;
+    // Further back than this, the sender has restarted
+    static final long RESTART_NANOS = 1000000000L;
+    
+    long tickNanos;
+    long minDelayNanos;
+    
+    MarioBody[] states = new MarioBody[CAPACITY];
+    long[] times = new long[CAPACITY];  // Sender time
+    int newest = -1;
+    int count = 0;
+    
+    // Clock estimate
+    boolean synced = false;
+    double offset;    // Arrival minus sender time of the fastest recent snapshots
+    double jitter;    // Mean deviation of the transit time
+    double interval;  // Mean sender time between snapshots
+    long lastTransit;
+    
+    // Extrapolation state of the Mario we placed last
+    long extrapolatedFrom = -1;
+    int extrapolatedTicks;
+    
+    // The path across the gap being drawn, a tick at a time. Made from the
+    // snapshots, so not saved
+    MarioBody path = new MarioBody();
+    float[] pathX = new float[MAX_EXTRAPOLATION_TICKS + 1];
+    float[] pathY = new float[MAX_EXTRAPOLATION_TICKS + 1];
+    float[] pathVx = new float[MAX_EXTRAPOLATION_TICKS + 1];
+    float[] pathVy = new float[MAX_EXTRAPOLATION_TICKS + 1];
+    long pathFrom = -1;  // Sender time of the snapshot it starts at
+    
+    public InterpolationBuffer(long tickNanos, long minDelayNanos) {
+        this.tickNanos = tickNanos;
+        this.minDelayNanos = minDelayNanos;
+        for (int i = 0; i < CAPACITY; ++i) {
+            states[i] = new MarioBody();
+        }
+        path.judgesTrample = false;
+    }
+    
+    public void add(Packet packet, long arrivalNanos) {
+        long time = packet.tick * tickNanos;
+        if (count > 0 && time < times[newest] - RESTART_NANOS) clear();
+        if (count > 0 && time <= times[newest]) return;  // Late or duplicate
+        
+        long transit = arrivalNanos - time;
+        if (! synced) {
+            offset = transit;
+            interval = tickNanos;
+            synced = true;
+        } else {
+            jitter += (Math.abs(transit - lastTransit) - jitter) * GAIN;
+            long gap = time - times[newest];
+            if (gap <= MAX_INTERVAL_NANOS) interval += (gap - interval) * GAIN;
+            if (transit < offset) offset = transit;
+            else offset += (transit - offset) * OFFSET_RISE;
+        }
+        lastTransit = transit;
+        
+        newest = (newest + 1) % CAPACITY;
+        packet.copyTo(states[newest]);
+        times[newest] = time;
+        if (count < CAPACITY) ++count;
+    }
+    
+    public void clear() {
+        count = 0;
+        newest = -1;
+        synced = false;
+        jitter = 0;
+        extrapolatedFrom = -1;
+        pathFrom = -1;
+    }
+    
+    /** Snapshots kept and clock estimate, for a match log. */
+    public void save(ByteBuffer buf) {
+        buf.put((byte) count);
+        buf.put((byte) newest);
+        for (int n = 0, i = newest; n < count; ++n, i = (i - 1 + CAPACITY) % CAPACITY) {
+            buf.putLong(times[i]);
+            states[i].save(buf);
+        }
+        buf.put((byte) (synced ? 1 : 0));
+        buf.putDouble(offset);
+        buf.putDouble(jitter);
+        buf.putDouble(interval);
+        buf.putLong(lastTransit);
+        buf.putLong(extrapolatedFrom);
+        buf.putInt(extrapolatedTicks);
+    }
+    
+    public void restore(ByteBuffer buf) {
+        count = buf.get();
+        newest = buf.get();
+        for (int n = 0, i = newest; n < count; ++n, i = (i - 1 + CAPACITY) % CAPACITY) {
+            times[i] = buf.getLong();
+            states[i].restore(buf);
+        }
+        synced = buf.get() != 0;
+        offset = buf.getDouble();
+        jitter = buf.getDouble();
+        interval = buf.getDouble();
+        lastTransit = buf.getLong();
+        extrapolatedFrom = buf.getLong();
+        extrapolatedTicks = buf.getInt();
+        pathFrom = -1;
+    }
+    
+    public long getDelayNanos() {
+        return Math.max(minDelayNanos, (long) (interval + JITTER_MULTIPLIER * jitter));
+    }
+    
+    public double getJitterNanos() {
+        return jitter;
+    }
+    
+    /**
+     * Places mario where it was getDelayNanos() before now. Returns false
+     * while nothing has arrived yet.
+     */
+    public boolean sample(long nowNanos, MarioBody mario, World world) {
+        if (count == 0) return false;
+        
+        long renderTime = nowNanos - (long) offset - getDelayNanos();
+        
+        // Ahead of everything we have: run the newest one forward
+        if (renderTime >= times[newest]) {
+            long ticksAhead = Math.min((renderTime - times[newest]) / tickNanos,
+                    MAX_EXTRAPOLATION_TICKS);
+            if (extrapolatedFrom != times[newest] || ticksAhead < extrapolatedTicks) {
+                mario.copyFrom(states[newest]);
+                extrapolatedFrom = times[newest];
+                extrapolatedTicks = 0;
+            }
+            while (extrapolatedTicks < ticksAhead) {
+                world.step(mario, MarioInput.NONE);
+                ++extrapolatedTicks;
+            }
+            return true;
+        }
+        extrapolatedFrom = -1;
+        
+        // Find the newest snapshot at or before renderTime
+        int before = newest;
+        int n = 1;
+        while (n < count && times[before] > renderTime) {
+            before = (before - 1 + CAPACITY) % CAPACITY;
+            ++n;
+        }
+        if (times[before] > renderTime) {  // Older than anything we kept
+            mario.copyFrom(states[before]);
+            return true;
+        }
+        
+        MarioBody a = states[before];
+        int after = (before + 1) % CAPACITY;
+        MarioBody b = states[after];
+        long gap = times[after] - times[before];
+        float t = (float) (renderTime - times[before]) / gap;
+        mario.copyFrom(a);
+        int gapTicks = (int) (gap / tickNanos);
+        if (gapTicks <= MAX_LINEAR_TICKS || gapTicks > MAX_EXTRAPOLATION_TICKS) {
+            mario.x = a.x + (b.x - a.x) * t;
+            mario.y = a.y + (b.y - a.y) * t;
+            mario.vx = a.vx + (b.vx - a.vx) * t;
+            mario.vy = a.vy + (b.vy - a.vy) * t;
+            return true;
+        }
+        
+        if (pathFrom != times[before]) tracePath(a, times[before], b, gapTicks, world);
+        float ticks = t * gapTicks;
+        int k = Math.min((int) ticks, gapTicks - 1);
+        float f = ticks - k;
+        mario.x = pathX[k] + (pathX[k + 1] - pathX[k]) * f;
+        mario.y = pathY[k] + (pathY[k + 1] - pathY[k]) * f;
+        mario.vx = pathVx[k] + (pathVx[k + 1] - pathVx[k]) * f;
+        mario.vy = pathVy[k] + (pathVy[k + 1] - pathVy[k]) * f;
+        return true;
+    }
+    
+    // a, sent at from, run forward gapTicks with no input, bent to end on b
+    void tracePath(MarioBody a, long from, MarioBody b, int gapTicks, World world) {
+        path.setPhysics(world.physics);
+        path.copyFrom(a);
+        for (int i = 0; i <= gapTicks; ++i) {
+            if (i > 0) world.step(path, MarioInput.NONE);
+            pathX[i] = path.x;
+            pathY[i] = path.y;
+            pathVx[i] = path.vx;
+            pathVy[i] = path.vy;
+        }
+        float dx = b.x - pathX[gapTicks];
+        float dy = b.y - pathY[gapTicks];
+        float dvx = b.vx - pathVx[gapTicks];
+        float dvy = b.vy - pathVy[gapTicks];
+        for (int i = 1; i <= gapTicks; ++i) {
+            float share = (float) i / gapTicks;
+            pathX[i] += dx * share;
+            pathY[i] += dy * share;
+            pathVx[i] += dvx * share;
+            pathVy[i] += dvy * share;
+        }
+        pathFrom = from;
+    }
+}
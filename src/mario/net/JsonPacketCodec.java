@@ -0,0 +1,92 @@
+package mario.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * The old Gson wire format, kept for debugging. Human readable, but slow
+ * and it allocates on every call. peekHeader() streams through the object
+ * for the header fields, so conflation and telemetry work here too, at the
+ * cost of reading each frame twice.
+ */
+public class JsonPacketCodec implements PacketCodec {
+    Gson gson = new Gson();
+    final int tickRate;
+    long refused = 0;
+    
+    public JsonPacketCodec(int tickRate) {
+        this.tickRate = tickRate;
+    }
+    
+    public ByteBuffer encode(Packet packet) {
+        packet.tickRate = tickRate;
+        return ByteBuffer.wrap(gson.toJson(packet).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Packet decode(byte[] frame, int length) {
+        if (length == 0 || frame[0] != '{') return null;
+        Packet packet;
+        try {
+            packet = gson.fromJson(new String(frame, 0, length, StandardCharsets.UTF_8),
+                    Packet.class);
+        } catch (JsonParseException e) {
+            return null;  // Truncated or garbage
+        }
+        if (packet == null || packet.type == null) return null;  // Or a type we don't know
+        if (packet.tickRate != tickRate) {
+            ++refused;
+            return null;
+        }
+        return packet;
+    }
+
+    public boolean peekHeader(byte[] frame, int length, Packet into) {
+        if (length == 0 || frame[0] != '{') return false;
+        PacketType type = null;
+        int player = 0, whoWon = 0, seq = 0, sentAt = 0, tickRate = 0;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(frame, 0, length), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                case "type": type = typeOf(reader.nextString()); break;
+                case "player": player = reader.nextInt(); break;
+                case "whoWon": whoWon = reader.nextInt(); break;
+                case "seq": seq = reader.nextInt(); break;
+                case "sentAt": sentAt = reader.nextInt(); break;
+                case "tickRate": tickRate = reader.nextInt(); break;
+                default: reader.skipValue(); break;
+                }
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return false;  // Truncated or garbage
+        }
+        if (type == null) return false;
+        
+        into.type = type;
+        into.player = player;
+        into.whoWon = whoWon;
+        into.seq = seq;
+        into.sentAt = sentAt;
+        into.tickRate = tickRate;
+        return true;
+    }
+    
+    // Null for a name we don't know, as Gson has it
+    static PacketType typeOf(String name) {
+        for (PacketType type : PacketType.values()) {
+            if (type.name().equals(name)) return type;
+        }
+        return null;
+    }
+    
+    public long getRefused() {
+        return refused;
+    }
+}
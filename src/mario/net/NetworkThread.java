@@ -0,0 +1,205 @@
+package mario.net;
+
+import java.nio.ByteBuffer;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * The one thread touching the sockets: a SUB for what comes in and a PUB for
+ * what goes out, serviced from a single poller. The game thread hands it
+ * frames through a ring and takes frames from another, and never blocks on
+ * either. When a ring is full the frame is dropped and counted, instead of
+ * a queue growing for as long as the other side is stalled. The rings' frames
+ * are made up front and messages copied through them, so the game thread
+ * allocates nothing per message.
+ * 
+ * The poller blocks until the SUB has something or the game thread rings:
+ * a byte on an inproc PAIR, sent when it queues a frame and no ring is
+ * already waiting to be answered. So an idle thread sleeps, and a frame
+ * goes out as soon as it's queued.
+ * 
+ * Frames are still encoded: decoding stays with the codec, on the game
+ * thread, since the delta codec's baselines are shared by both directions.
+ */
+public class NetworkThread implements Runnable {
+    static int instances = 0;  // For the wake addresses
+    public static final int MAX_TOPIC_SIZE = 256;
+    public static final int MAX_BODY_SIZE = 1024;  // A JSON state fits. Bigger ones are dropped
+    
+    /**
+     * A topic and a body, as they go over the wire, in the first
+     * topicLength and bodyLength bytes, and when a received one came off the
+     * socket, in System.nanoTime(). A ring slot, reused.
+     */
+    public static final class Frame {
+        public final byte[] topic;
+        public final byte[] body;
+        public int topicLength;
+        public int bodyLength;
+        public long receivedAt;
+        
+        // One byte over, to tell a full one from a cut off one
+        Frame(int topicCapacity, int bodyCapacity) {
+            topic = new byte[topicCapacity + 1];
+            body = new byte[bodyCapacity + 1];
+        }
+    }
+    
+    final Context context;
+    final String subAddress, pubAddress;
+    final byte[] subscription;
+    final FrameRing inbox, outbox;
+    final Thread thread;
+    final Frame spare = new Frame(MAX_TOPIC_SIZE, MAX_BODY_SIZE);  // For what gets dropped
+    final Socket wakeIn;  // Network thread, once started
+    final Socket wakeOut;  // Game thread
+    final byte[] wakeByte = new byte[1];
+    volatile boolean wakePending = false;  // Rung and not answered yet
+    volatile boolean running = true;
+    
+    // Each written by one thread only
+    public volatile long received, receivedBytes, droppedIn;  // Network thread
+    public volatile long sent, sentBytes;  // Network thread
+    public volatile long droppedOut;  // Game thread
+    
+    /**
+     * Subscribes to the topics starting with subscription on subAddress,
+     * publishes to pubAddress. Both rings hold capacity frames, a power of two.
+     */
+    public NetworkThread(String subAddress, String pubAddress, byte[] subscription, int capacity) {
+        this.subAddress = subAddress;
+        this.pubAddress = pubAddress;
+        this.subscription = subscription;
+        inbox = new FrameRing(capacity, MAX_TOPIC_SIZE, MAX_BODY_SIZE);
+        outbox = new FrameRing(capacity, MAX_TOPIC_SIZE, MAX_BODY_SIZE);
+        context = ZMQ.context(1);
+        String wakeAddress = "inproc://network-wake-" + nextInstance();
+        wakeIn = context.socket(ZMQ.PAIR);
+        wakeIn.bind(wakeAddress);  // Before the connect, for inproc
+        wakeOut = context.socket(ZMQ.PAIR);
+        wakeOut.setLinger(0);
+        wakeOut.connect(wakeAddress);
+        thread = new Thread(this, "network");
+        thread.setDaemon(true);
+    }
+    
+    static synchronized int nextInstance() {
+        return instances++;
+    }
+    
+    public void start() {
+        thread.start();
+    }
+    
+    // Game thread. False if the frame was dropped
+    public boolean send(byte[] topic, ByteBuffer frame) {
+        Frame slot = outbox.claim();
+        if (slot == null || topic.length > MAX_TOPIC_SIZE || frame.remaining() > MAX_BODY_SIZE) {
+            ++droppedOut;
+            return false;
+        }
+        System.arraycopy(topic, 0, slot.topic, 0, topic.length);
+        slot.topicLength = topic.length;
+        slot.bodyLength = frame.remaining();
+        frame.duplicate().get(slot.body, 0, slot.bodyLength);
+        outbox.publish();
+        wake();
+        return true;
+    }
+    
+    // Game thread. The network thread clears the flag before it drains the
+    // outbox, so a frame published while it's set is still seen
+    void wake() {
+        if (wakePending) return;
+        wakePending = true;
+        wakeOut.send(wakeByte, 0, 1, ZMQ.DONTWAIT);  // If full, it's awake anyway
+    }
+    
+    // Game thread. The oldest frame received, or null. Good until release()
+    public Frame poll() {
+        return inbox.poll();
+    }
+    
+    // Game thread. Done with every frame polled so far
+    public void release() {
+        inbox.release();
+    }
+    
+    // Game thread. Frames received but not polled yet
+    public int pending() {
+        return inbox.size();
+    }
+    
+    public void run() {
+        Socket subSocket = context.socket(ZMQ.SUB);
+        subSocket.connect(subAddress);
+        subSocket.subscribe(subscription);
+        Socket pubSocket = context.socket(ZMQ.PUB);
+        pubSocket.connect(pubAddress);
+        ZMQ.Poller poller = new ZMQ.Poller(2);
+        poller.register(subSocket, ZMQ.Poller.POLLIN);
+        poller.register(wakeIn, ZMQ.Poller.POLLIN);
+        byte[] rung = new byte[1];
+        
+        while (running) {
+            poller.poll(-1);
+            wakePending = false;
+            while (wakeIn.recv(rung, 0, 1, ZMQ.DONTWAIT) >= 0) ;
+            
+            // In, everything waiting. With the ring full, into the spare
+            Frame slot;
+            int topicLength;
+            while ((topicLength = subSocket.recv((slot = claimIn()).topic, 0, slot.topic.length,
+                    ZMQ.DONTWAIT)) >= 0) {
+                if (! subSocket.hasReceiveMore()) continue;
+                int bodyLength = subSocket.recv(slot.body, 0, slot.body.length, 0);
+                if (bodyLength < 0) break;
+                ++received;
+                receivedBytes += topicLength + bodyLength;
+                if (slot == spare || topicLength == slot.topic.length
+                        || bodyLength == slot.body.length) {
+                    ++droppedIn;
+                    continue;
+                }
+                slot.topicLength = topicLength;
+                slot.bodyLength = bodyLength;
+                slot.receivedAt = System.nanoTime();
+                inbox.publish();
+            }
+            
+            // Out, everything queued
+            Frame frame;
+            while ((frame = outbox.poll()) != null) {
+                pubSocket.send(frame.topic, 0, frame.topicLength, ZMQ.SNDMORE);
+                pubSocket.send(frame.body, 0, frame.bodyLength, 0);
+                ++sent;
+                sentBytes += frame.topicLength + frame.bodyLength;
+            }
+            outbox.release();
+        }
+        
+        subSocket.close();
+        pubSocket.close();
+        wakeIn.close();
+    }
+    
+    // Network thread. The inbox slot to read into, or the spare if it's full
+    Frame claimIn() {
+        Frame slot = inbox.claim();
+        return slot != null ? slot : spare;
+    }
+    
+    public void close() {
+        running = false;
+        wakePending = false;
+        wake();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wakeOut.close();
+        context.term();
+    }
+}
@@ -0,0 +1,79 @@
+package mario.net;
+
+import mario.sim.MarioArrowX;
+import mario.sim.MarioArrowY;
+import mario.sim.MarioBody;
+import mario.sim.MarioFace;
+import mario.sim.MotionState;
+
+public class Packet {
+    public PacketType type;
+    public int player;  // Whose state or input this is
+    public int whoWon;  // 0, 1, -1
+    public float x;
+    public float y;
+    public float vx;
+    public float vy;
+    public float ax;
+    public float ay;
+    public MotionState motionState;
+    public MarioFace faceState;
+    public boolean boostJumping;
+    public boolean jumpPressed;
+    public MarioArrowX arrowX;
+    public MarioArrowY arrowY;
+    public float frictionalForce;
+    
+    // INPUT: a tick of MarioInput bits and its number. MARIO_STATE from an
+    // authoritative server: the newest input of this player it has applied
+    public int inputSeq;
+    public int input;
+    
+    // MARIO_STATE: the sender's simulation tick it was taken at
+    public int tick;
+    
+    // Every message: its number on the sender's channel, and when it was
+    // sent, in the sender's milliseconds. For loss, reordering and jitter
+    public int seq;
+    public int sentAt;
+    public int tickRate;  // Of the sender's simulation, set by the codec
+    
+    // PONG: the PING it answers, whose and sent when
+    public int echoPlayer;
+    public int echoSentAt;
+    
+    public Packet copyFrom(MarioBody mario) {
+        type = PacketType.MARIO_STATE;
+        whoWon = -1;  // For none
+        x = mario.x;
+        y = mario.y;
+        vx = mario.vx;
+        vy = mario.vy;
+        ax = mario.ax;
+        ay = mario.ay;
+        motionState = mario.motionState;
+        faceState = mario.faceState;
+        boostJumping = mario.boostJumping;
+        jumpPressed = mario.jumpPressed;
+        arrowX = mario.arrowX;
+        arrowY = mario.arrowY;
+        frictionalForce = mario.frictionalForce;
+        return this;
+    }
+    
+    public void copyTo(MarioBody mario) {
+        mario.x = x;
+        mario.y = y;
+        mario.vx = vx;
+        mario.vy = vy;
+        mario.ax = ax;
+        mario.ay = ay;
+        mario.motionState = motionState;
+        mario.faceState = faceState;
+        mario.boostJumping = boostJumping;
+        mario.jumpPressed = jumpPressed;
+        mario.arrowX = arrowX;
+        mario.arrowY = arrowY;
+        mario.frictionalForce = frictionalForce;
+    }
+}
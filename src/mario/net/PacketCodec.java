@@ -0,0 +1,41 @@
+package mario.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a packet into the bytes of one ZeroMQ frame, and back.
+ * 
+ * Both directions may reuse their buffers, so the returned buffer or packet
+ * is only valid until the next call. Every message says the tick rate it was
+ * sent at, and decode() takes only our own.
+ */
+public interface PacketCodec {
+    ByteBuffer encode(Packet packet);
+
+    /**
+     * Reads the first length bytes of frame. Returns null if the frame is not
+     * readable by this codec.
+     */
+    Packet decode(byte[] frame, int length);
+    
+    default Packet decode(byte[] frame) {
+        return decode(frame, frame.length);
+    }
+    
+    /**
+     * Reads type, player, whoWon, seq and sentAt from the header alone, into
+     * into. False if this codec can't without a full decode. Lets a receiver
+     * count frames, and skip the stale ones, unread.
+     */
+    boolean peekHeader(byte[] frame, int length, Packet into);
+    
+    default boolean peekHeader(byte[] frame, Packet into) {
+        return peekHeader(frame, frame.length, into);
+    }
+    
+    /**
+     * Frames decode() refused for coming from a simulation at another tick
+     * rate than ours. Its states are in its ticks, so we can't use them.
+     */
+    long getRefused();
+}
@@ -0,0 +1,9 @@
+package mario.net;
+
+public enum PacketType {
+    MARIO_STATE,
+    GAME_OVER,
+    INPUT,  // Client to authoritative server
+    PING,  // Anyone in the room, answer with a PONG
+    PONG
+}
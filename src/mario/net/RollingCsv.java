@@ -0,0 +1,54 @@
+package mario.net;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A CSV file that never grows past maxBytes: once it does, it is moved to
+ * name.1 (replacing the one before) and started again, header first.
+ */
+public class RollingCsv implements Closeable {
+    final Path path;
+    final Path previous;
+    final String header;
+    final long maxBytes;
+    BufferedWriter writer;
+    long bytes;
+    
+    public RollingCsv(Path path, String header, long maxBytes) throws IOException {
+        this.path = path;
+        this.previous = Paths.get(path + ".1");
+        this.header = header;
+        this.maxBytes = maxBytes;
+        open();
+    }
+    
+    void open() throws IOException {
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        bytes = 0;
+        append(header);
+    }
+    
+    // One row, written through
+    public void append(String row) throws IOException {
+        if (bytes > maxBytes) {
+            writer.close();
+            Files.move(path, previous, StandardCopyOption.REPLACE_EXISTING);
+            open();
+        }
+        writer.write(row);
+        writer.newLine();
+        writer.flush();
+        bytes += row.length() + 1;
+    }
+    
+    public void close() throws IOException {
+        writer.close();
+    }
+}
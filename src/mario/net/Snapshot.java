@@ -0,0 +1,12 @@
+package mario.net;
+
+/**
+ * Quantized MARIO_STATE, exactly as both ends see it.
+ */
+class Snapshot {
+    int seq = -1;
+    int x, y, vx, vy, ax, ay, frictionalForce;
+    int motionState, faceState, arrowX, arrowY, flags;
+    int inputSeq;
+    int tick;
+}
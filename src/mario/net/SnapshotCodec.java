@@ -0,0 +1,371 @@
+package mario.net;
+
+import java.nio.ByteBuffer;
+import mario.sim.MarioArrowX;
+import mario.sim.MarioArrowY;
+import mario.sim.MarioFace;
+import mario.sim.MotionState;
+
+/**
+ * Delta compresses MARIO_STATE snapshots.
+ * 
+ * Every snapshot is quantized and numbered. Peers piggyback, on their own
+ * MARIO_STATE, the newest snapshot they got from each other player and a
+ * mask of which of the WINDOW before it they also have, and we send only
+ * the fields that differ from the newest snapshot every peer we still hear
+ * from has. Everybody gets the same bytes, so the baseline must be one
+ * they all hold, not just one each has acked past: one that lost it could
+ * decode nothing until the next keyframe. If there is no such snapshot,
+ * or every keyframeInterval snapshots, we send a keyframe against all
+ * zeros instead, so a peer that lost its baselines recovers.
+ * 
+ * One codec sends one player's stream, and receives any number of others,
+ * told apart by the packet's player.
+ * 
+ *  0  snapFlags       u8   bit 0: keyframe, bit 1: has acks
+ *  1  seq             u16
+ *     ackCount        u8   If has acks. Then, that many times:
+ *       player        u8     Whose stream
+ *       ack           u16    Their newest seq we have
+ *       held          u32    Bit i set if we have ack - i too
+ *     baseline        u16  Our seq this is a delta from (if not keyframe)
+ *     fields          u16  FIELD_* bits of the fields that follow
+ *     x .. friction        zigzag varint, quantized value - baseline value
+ *     enums, flags    u8
+ *     inputSeq, tick  zigzag varint, difference as above
+ */
+public class SnapshotCodec {
+    static final int WINDOW = 32;  // Snapshots remembered per side. Power of two
+    static final int SEQ_MASK = 0xFFFF;
+    public static final int MAX_PLAYERS = 64;
+    static final int MAX_ACKS = 4;  // Per snapshot. With more peers, they take turns
+
+    static final int SNAP_KEYFRAME = 1;
+    static final int SNAP_HAS_ACK = 1 << 1;
+
+    static final int FIELD_X = 1;
+    static final int FIELD_Y = 1 << 1;
+    static final int FIELD_VX = 1 << 2;
+    static final int FIELD_VY = 1 << 3;
+    static final int FIELD_AX = 1 << 4;
+    static final int FIELD_AY = 1 << 5;
+    static final int FIELD_FRICTION = 1 << 6;
+    static final int FIELD_MOTION = 1 << 7;
+    static final int FIELD_FACE = 1 << 8;
+    static final int FIELD_ARROW_X = 1 << 9;
+    static final int FIELD_ARROW_Y = 1 << 10;
+    static final int FIELD_FLAGS = 1 << 11;
+    static final int FIELD_INPUT_SEQ = 1 << 12;
+    static final int FIELD_TICK = 1 << 13;
+
+    static final int FLAG_BOOST_JUMPING = 1;
+    static final int FLAG_JUMP_PRESSED = 1 << 1;
+
+    float positionPrecision, velocityPrecision;
+    float positionScale, velocityScale;
+    int keyframeInterval;
+
+    // Our stream
+    int self = -1;  // Whose it is, once we have sent
+    Snapshot[] sent = new Snapshot[WINDOW];
+    Snapshot zero = new Snapshot();
+    int nextSeq = 0;
+    int sinceKeyframe = 0;
+    int[] ackedSeq = new int[MAX_PLAYERS];   // Newest of our snapshots each peer has
+    int[] ackedHeld = new int[MAX_PLAYERS];  // Bit i: and ackedSeq - i
+    int[] heardAt = new int[MAX_PLAYERS];    // Our nextSeq when each peer last sent, or -1
+    int ackCursor = 0;
+
+    // Their streams, made as they turn up
+    Snapshot[][] received = new Snapshot[MAX_PLAYERS][];
+    int[] receivedSeq = new int[MAX_PLAYERS];  // Newest of each one's snapshots we have
+
+    MotionState[] motionStates = MotionState.values();
+    MarioFace[] faceStates = MarioFace.values();
+    MarioArrowX[] arrowXs = MarioArrowX.values();
+    MarioArrowY[] arrowYs = MarioArrowY.values();
+
+    public SnapshotCodec(float positionPrecision, float velocityPrecision,
+            int keyframeInterval) {
+        this.positionPrecision = positionPrecision;
+        this.velocityPrecision = velocityPrecision;
+        this.positionScale = 1 / positionPrecision;
+        this.velocityScale = 1 / velocityPrecision;
+        this.keyframeInterval = keyframeInterval;
+        for (int i = 0; i < WINDOW; ++i) {
+            sent[i] = new Snapshot();
+        }
+        for (int p = 0; p < MAX_PLAYERS; ++p) {
+            ackedSeq[p] = -1;
+            heardAt[p] = -1;
+            receivedSeq[p] = -1;
+        }
+    }
+
+    public void encode(Packet packet, ByteBuffer buf) {
+        self = packet.player;
+        int seq = nextSeq;
+        nextSeq = (nextSeq + 1) & SEQ_MASK;
+        Snapshot snap = sent[seq & (WINDOW - 1)];
+        quantize(packet, snap);
+        snap.seq = seq;
+
+        // Pick the baseline
+        Snapshot base = null;
+        int baseSeq = sinceKeyframe < keyframeInterval ? commonBaseline(seq) : -1;
+        if (baseSeq >= 0) base = sent[baseSeq & (WINDOW - 1)];
+
+        int snapFlags = 0;
+        if (base == null) {
+            snapFlags |= SNAP_KEYFRAME;
+            sinceKeyframe = 0;
+        } else {
+            ++sinceKeyframe;
+        }
+        int ackCount = countAcks();
+        if (ackCount > 0) snapFlags |= SNAP_HAS_ACK;
+        buf.put((byte) snapFlags);
+        buf.putShort((short) seq);
+        if (ackCount > 0) putAcks(buf, ackCount);
+        if (base != null) buf.putShort((short) base.seq);
+        else base = zero;
+
+        int fields = 0;
+        if (snap.x != base.x) fields |= FIELD_X;
+        if (snap.y != base.y) fields |= FIELD_Y;
+        if (snap.vx != base.vx) fields |= FIELD_VX;
+        if (snap.vy != base.vy) fields |= FIELD_VY;
+        if (snap.ax != base.ax) fields |= FIELD_AX;
+        if (snap.ay != base.ay) fields |= FIELD_AY;
+        if (snap.frictionalForce != base.frictionalForce) fields |= FIELD_FRICTION;
+        if (snap.motionState != base.motionState) fields |= FIELD_MOTION;
+        if (snap.faceState != base.faceState) fields |= FIELD_FACE;
+        if (snap.arrowX != base.arrowX) fields |= FIELD_ARROW_X;
+        if (snap.arrowY != base.arrowY) fields |= FIELD_ARROW_Y;
+        if (snap.flags != base.flags) fields |= FIELD_FLAGS;
+        if (snap.inputSeq != base.inputSeq) fields |= FIELD_INPUT_SEQ;
+        if (snap.tick != base.tick) fields |= FIELD_TICK;
+        buf.putShort((short) fields);
+
+        if ((fields & FIELD_X) != 0) putVarInt(buf, snap.x - base.x);
+        if ((fields & FIELD_Y) != 0) putVarInt(buf, snap.y - base.y);
+        if ((fields & FIELD_VX) != 0) putVarInt(buf, snap.vx - base.vx);
+        if ((fields & FIELD_VY) != 0) putVarInt(buf, snap.vy - base.vy);
+        if ((fields & FIELD_AX) != 0) putVarInt(buf, snap.ax - base.ax);
+        if ((fields & FIELD_AY) != 0) putVarInt(buf, snap.ay - base.ay);
+        if ((fields & FIELD_FRICTION) != 0) putVarInt(buf, snap.frictionalForce - base.frictionalForce);
+        if ((fields & FIELD_MOTION) != 0) buf.put((byte) snap.motionState);
+        if ((fields & FIELD_FACE) != 0) buf.put((byte) snap.faceState);
+        if ((fields & FIELD_ARROW_X) != 0) buf.put((byte) snap.arrowX);
+        if ((fields & FIELD_ARROW_Y) != 0) buf.put((byte) snap.arrowY);
+        if ((fields & FIELD_FLAGS) != 0) buf.put((byte) snap.flags);
+        if ((fields & FIELD_INPUT_SEQ) != 0) putVarInt(buf, snap.inputSeq - base.inputSeq);
+        if ((fields & FIELD_TICK) != 0) putVarInt(buf, snap.tick - base.tick);
+    }
+
+    // Returns false if we don't have the baseline it was made against
+    public boolean decode(ByteBuffer buf, Packet packet) {
+        int sender = packet.player;
+        if (sender < 0 || sender >= MAX_PLAYERS || sender == self) return false;
+        int snapFlags = buf.get();
+        int seq = buf.getShort() & SEQ_MASK;
+        if ((snapFlags & SNAP_HAS_ACK) != 0) {
+            int ackCount = buf.get() & 0xFF;
+            for (int i = 0; i < ackCount; ++i) {
+                int player = buf.get() & 0xFF;
+                int ack = buf.getShort() & SEQ_MASK;
+                int held = buf.getInt();
+                if (player == self) onAck(sender, ack, held);
+            }
+        }
+        heardAt[sender] = nextSeq;
+
+        Snapshot[] ring = received[sender];
+        if (ring == null) {
+            ring = received[sender] = new Snapshot[WINDOW];
+            for (int i = 0; i < WINDOW; ++i) {
+                ring[i] = new Snapshot();
+                ring[i].seq = -1;
+            }
+        }
+        Snapshot base = zero;
+        if ((snapFlags & SNAP_KEYFRAME) == 0) {
+            int baseSeq = buf.getShort() & SEQ_MASK;
+            base = ring[baseSeq & (WINDOW - 1)];
+            if (base.seq != baseSeq) return false;
+        }
+        Snapshot snap = ring[seq & (WINDOW - 1)];
+        if (snap == base) return false;
+
+        int fields = buf.getShort() & 0xFFFF;
+        snap.x = base.x + ((fields & FIELD_X) != 0 ? getVarInt(buf) : 0);
+        snap.y = base.y + ((fields & FIELD_Y) != 0 ? getVarInt(buf) : 0);
+        snap.vx = base.vx + ((fields & FIELD_VX) != 0 ? getVarInt(buf) : 0);
+        snap.vy = base.vy + ((fields & FIELD_VY) != 0 ? getVarInt(buf) : 0);
+        snap.ax = base.ax + ((fields & FIELD_AX) != 0 ? getVarInt(buf) : 0);
+        snap.ay = base.ay + ((fields & FIELD_AY) != 0 ? getVarInt(buf) : 0);
+        snap.frictionalForce = base.frictionalForce
+                + ((fields & FIELD_FRICTION) != 0 ? getVarInt(buf) : 0);
+        snap.motionState = (fields & FIELD_MOTION) != 0 ? buf.get() : base.motionState;
+        snap.faceState = (fields & FIELD_FACE) != 0 ? buf.get() : base.faceState;
+        snap.arrowX = (fields & FIELD_ARROW_X) != 0 ? buf.get() : base.arrowX;
+        snap.arrowY = (fields & FIELD_ARROW_Y) != 0 ? buf.get() : base.arrowY;
+        snap.flags = (fields & FIELD_FLAGS) != 0 ? buf.get() : base.flags;
+        snap.inputSeq = base.inputSeq + ((fields & FIELD_INPUT_SEQ) != 0 ? getVarInt(buf) : 0);
+        snap.tick = base.tick + ((fields & FIELD_TICK) != 0 ? getVarInt(buf) : 0);
+        snap.seq = seq;
+
+        if (receivedSeq[sender] < 0 || seqDiff(seq, receivedSeq[sender]) > 0) {
+            receivedSeq[sender] = seq;
+        }
+        dequantize(snap, packet);
+        return true;
+    }
+
+    // Acks can come out of order, so what they say is merged
+    void onAck(int sender, int seq, int held) {
+        held |= 1;
+        if (ackedSeq[sender] < 0) {
+            ackedSeq[sender] = seq;
+            ackedHeld[sender] = held;
+            return;
+        }
+        int d = seqDiff(seq, ackedSeq[sender]);
+        if (d > 0) {
+            ackedHeld[sender] = (d < WINDOW ? ackedHeld[sender] << d : 0) | held;
+            ackedSeq[sender] = seq;
+        } else if (d > -WINDOW) {
+            ackedHeld[sender] |= held >>> -d;
+        }
+    }
+
+    // Peers who sent something within our last WINDOW snapshots. The rest
+    // have left, or are too far behind to have a baseline anyway
+    boolean isPresent(int player) {
+        return player != self && heardAt[player] >= 0
+                && seqDiff(nextSeq, heardAt[player]) < WINDOW;
+    }
+
+    // The newest of our snapshots before seq that every present peer holds,
+    // -1 if there is none or nobody is there
+    int commonBaseline(int seq) {
+        boolean anyone = false;
+        for (int p = 0; p < MAX_PLAYERS; ++p) {
+            if (! isPresent(p)) continue;
+            if (ackedSeq[p] < 0) return -1;
+            anyone = true;
+        }
+        if (! anyone) return -1;
+
+        // Within WINDOW of seq, neither our ring nor theirs has reused the slot
+        for (int back = 1; back < WINDOW; ++back) {
+            int candidate = (seq - back) & SEQ_MASK;
+            if (sent[candidate & (WINDOW - 1)].seq != candidate) continue;
+            if (isHeldByAll(candidate)) return candidate;
+        }
+        return -1;
+    }
+
+    boolean isHeldByAll(int candidate) {
+        for (int p = 0; p < MAX_PLAYERS; ++p) {
+            if (! isPresent(p)) continue;
+            int d = seqDiff(ackedSeq[p], candidate);
+            if (d < 0 || d >= WINDOW || (ackedHeld[p] >>> d & 1) == 0) return false;
+        }
+        return true;
+    }
+
+    int countAcks() {
+        int count = 0;
+        for (int p = 0; p < MAX_PLAYERS && count < MAX_ACKS; ++p) {
+            if (receivedSeq[p] >= 0 && isPresent(p)) ++count;
+        }
+        return count;
+    }
+
+    // count of them, round robin, so with many peers each gets its turn
+    void putAcks(ByteBuffer buf, int count) {
+        buf.put((byte) count);
+        for (int n = 0; n < MAX_PLAYERS && count > 0; ++n) {
+            int p = (ackCursor + n) % MAX_PLAYERS;
+            if (receivedSeq[p] < 0 || ! isPresent(p)) continue;
+            buf.put((byte) p);
+            buf.putShort((short) receivedSeq[p]);
+            buf.putInt(held(p));
+            if (--count == 0) ackCursor = p + 1;
+        }
+    }
+
+    // Which of the WINDOW up to p's newest we have, bit i for newest - i
+    int held(int p) {
+        Snapshot[] ring = received[p];
+        int newest = receivedSeq[p];
+        int held = 0;
+        for (int i = 0; i < WINDOW; ++i) {
+            int seq = (newest - i) & SEQ_MASK;
+            if (ring[seq & (WINDOW - 1)].seq == seq) held |= 1 << i;
+        }
+        return held;
+    }
+
+    void quantize(Packet packet, Snapshot snap) {
+        snap.x = Math.round(packet.x * positionScale);
+        snap.y = Math.round(packet.y * positionScale);
+        snap.vx = Math.round(packet.vx * velocityScale);
+        snap.vy = Math.round(packet.vy * velocityScale);
+        snap.ax = Math.round(packet.ax * velocityScale);
+        snap.ay = Math.round(packet.ay * velocityScale);
+        snap.frictionalForce = Math.round(packet.frictionalForce * velocityScale);
+        snap.motionState = packet.motionState.ordinal();
+        snap.faceState = packet.faceState.ordinal();
+        snap.arrowX = packet.arrowX.ordinal();
+        snap.arrowY = packet.arrowY.ordinal();
+        snap.flags = 0;
+        if (packet.boostJumping) snap.flags |= FLAG_BOOST_JUMPING;
+        if (packet.jumpPressed) snap.flags |= FLAG_JUMP_PRESSED;
+        snap.inputSeq = packet.inputSeq;
+        snap.tick = packet.tick;
+    }
+
+    void dequantize(Snapshot snap, Packet packet) {
+        packet.x = snap.x * positionPrecision;
+        packet.y = snap.y * positionPrecision;
+        packet.vx = snap.vx * velocityPrecision;
+        packet.vy = snap.vy * velocityPrecision;
+        packet.ax = snap.ax * velocityPrecision;
+        packet.ay = snap.ay * velocityPrecision;
+        packet.frictionalForce = snap.frictionalForce * velocityPrecision;
+        packet.motionState = motionStates[snap.motionState];
+        packet.faceState = faceStates[snap.faceState];
+        packet.arrowX = arrowXs[snap.arrowX];
+        packet.arrowY = arrowYs[snap.arrowY];
+        packet.boostJumping = (snap.flags & FLAG_BOOST_JUMPING) != 0;
+        packet.jumpPressed = (snap.flags & FLAG_JUMP_PRESSED) != 0;
+        packet.inputSeq = snap.inputSeq;
+        packet.tick = snap.tick;
+    }
+
+    // Signed distance from b to a, across the u16 wrap around
+    int seqDiff(int a, int b) {
+        return (short) (a - b);
+    }
+
+    void putVarInt(ByteBuffer buf, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            buf.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buf.put((byte) zigzag);
+    }
+
+    int getVarInt(ByteBuffer buf) {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buf.get();
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
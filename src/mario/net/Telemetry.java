@@ -0,0 +1,170 @@
+package mario.net;
+
+/**
+ * What the network is doing, for one client, a window of a second at a time.
+ * 
+ * Every frame received is counted by its header: each sender's channel is
+ * numbered, so gaps are loss and going back is reordering. PINGs and PONGs
+ * are numbered on their own, since with a server the rest of a player's
+ * channel comes from the server, not the player. Frames are also stamped with
+ * the sender's clock, so the change in transit time is jitter (RFC 3550,
+ * the worst sender's). Round trips are PING to PONG on our own clock. The
+ * rest comes from the network thread's counters.
+ * 
+ * Game thread only.
+ */
+public class Telemetry {
+    static final int PLAYERS = 256;  // As many as the player byte holds
+    static final double JITTER_GAIN = 1 / 16.0;  // RFC 3550
+    static final double RTT_GAIN = 1 / 8.0;  // As TCP's smoothed RTT
+    static final int RESTART_GAP = 1000;  // Further back than this, the sender has restarted
+    
+    public static final String CSV_HEADER = "time_ms,rtt_ms,jitter_ms,loss_pct,reordered,"
+            + "in_pps,in_bps,out_pps,out_bps,queue_max,dropped_in,dropped_out";
+    
+    final long windowNanos;
+    
+    // By stream: player, plus PLAYERS for PINGs and PONGs
+    final boolean[] heard = new boolean[2 * PLAYERS];
+    final int[] highestSeq = new int[2 * PLAYERS];  // Extended past 16 bits
+    final int[] windowStartSeq = new int[2 * PLAYERS];
+    final int[] lastTransit = new int[2 * PLAYERS];
+    final double[] jitter = new double[2 * PLAYERS];
+    
+    // This window so far
+    long windowStart = -1;
+    int received, reorderedNow, queueMax;
+    long lastReceived, lastReceivedBytes, lastSent, lastSentBytes, lastDroppedIn, lastDroppedOut;
+    
+    // The last whole window
+    public int windows = 0;
+    public double rttMillis = -1;  // Smoothed, -1 before the first PONG
+    public double lastRttMillis = -1;
+    public double jitterMillis;
+    public double lossPercent;
+    public int reordered;
+    public double inPacketsPerSecond, inBytesPerSecond;
+    public double outPacketsPerSecond, outBytesPerSecond;
+    public int queueDepth;  // The most frames waiting for the game thread at once
+    public long droppedIn, droppedOut;
+    
+    public Telemetry(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+    
+    /**
+     * A frame from a sender, header only. receivedAt in System.nanoTime().
+     */
+    public void onReceive(Packet header, long receivedAt) {
+        int p = stream(header);
+        int transit = (int) (receivedAt / 1000000) - header.sentAt;
+        if (! heard[p]) {
+            heard[p] = true;
+            highestSeq[p] = header.seq;
+            windowStartSeq[p] = header.seq - 1;
+            lastTransit[p] = transit;
+            jitter[p] = 0;
+            ++received;
+            return;
+        }
+        
+        int delta = (short) (header.seq - highestSeq[p]);
+        if (delta < -RESTART_GAP) {  // Sender started over
+            heard[p] = false;
+            onReceive(header, receivedAt);
+            return;
+        }
+        if (delta == 0) return;  // Twice
+        if (delta > 0) highestSeq[p] += delta;
+        else ++reorderedNow;
+        ++received;
+        
+        jitter[p] += (Math.abs(transit - lastTransit[p]) - jitter[p]) * JITTER_GAIN;
+        lastTransit[p] = transit;
+    }
+    
+    public static boolean isPing(Packet header) {
+        return header.type == PacketType.PING || header.type == PacketType.PONG;
+    }
+    
+    static int stream(Packet header) {
+        return isPing(header) ? PLAYERS + header.player : header.player;
+    }
+    
+    public void onPong(double rttMillis) {
+        lastRttMillis = rttMillis;
+        if (this.rttMillis < 0) this.rttMillis = rttMillis;
+        else this.rttMillis += (rttMillis - this.rttMillis) * RTT_GAIN;
+    }
+    
+    // Frames waiting when the game thread came to read them
+    public void onQueueDepth(int depth) {
+        if (depth > queueMax) queueMax = depth;
+    }
+    
+    /**
+     * Closes the window if it is time. True if it did, and the numbers are
+     * new.
+     */
+    public boolean update(long now, NetworkThread network) {
+        if (windowStart < 0) {
+            windowStart = now;
+            lastReceived = network.received;
+            lastReceivedBytes = network.receivedBytes;
+            lastSent = network.sent;
+            lastSentBytes = network.sentBytes;
+            lastDroppedIn = network.droppedIn;
+            lastDroppedOut = network.droppedOut;
+            return false;
+        }
+        if (now - windowStart < windowNanos) return false;
+        
+        double seconds = (now - windowStart) / 1e9;
+        windowStart = now;
+        
+        int expected = 0;
+        jitterMillis = 0;
+        for (int p = 0; p < heard.length; ++p) {
+            if (! heard[p]) continue;
+            expected += highestSeq[p] - windowStartSeq[p];
+            windowStartSeq[p] = highestSeq[p];
+            jitterMillis = Math.max(jitterMillis, jitter[p]);
+        }
+        lossPercent = expected > 0 ? Math.max(0, 100.0 * (expected - received) / expected) : 0;
+        reordered = reorderedNow;
+        queueDepth = queueMax;
+        received = 0;
+        reorderedNow = 0;
+        queueMax = 0;
+        
+        long r = network.received, rb = network.receivedBytes, s = network.sent, sb = network.sentBytes;
+        long di = network.droppedIn, dout = network.droppedOut;
+        inPacketsPerSecond = (r - lastReceived) / seconds;
+        inBytesPerSecond = (rb - lastReceivedBytes) / seconds;
+        outPacketsPerSecond = (s - lastSent) / seconds;
+        outBytesPerSecond = (sb - lastSentBytes) / seconds;
+        droppedIn = di - lastDroppedIn;
+        droppedOut = dout - lastDroppedOut;
+        lastReceived = r;
+        lastReceivedBytes = rb;
+        lastSent = s;
+        lastSentBytes = sb;
+        lastDroppedIn = di;
+        lastDroppedOut = dout;
+        
+        ++windows;
+        return true;
+    }
+    
+    // The last window, as a CSV_HEADER row
+    public String toCsv(long timeMillis) {
+        return timeMillis + "," + format(rttMillis) + "," + format(jitterMillis) + ","
+                + format(lossPercent) + "," + reordered + "," + format(inPacketsPerSecond) + ","
+                + format(inBytesPerSecond) + "," + format(outPacketsPerSecond) + ","
+                + format(outBytesPerSecond) + "," + queueDepth + "," + droppedIn + "," + droppedOut;
+    }
+    
+    static String format(double value) {
+        return String.format(java.util.Locale.ROOT, "%.1f", value);
+    }
+}
@@ -0,0 +1,75 @@
+package mario.perf;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Where the time of a frame goes, phase by phase.
+ * 
+ * begin() and end() around a phase cost two System.nanoTime() calls and a
+ * histogram increment, so it can stay on in a release build. Each phase
+ * has a histogram since the last dump, and a summary line of it can be
+ * put on screen.
+ * 
+ * Game thread only.
+ */
+public class FrameProfiler {
+    final String[] phases;
+    final Histogram[] histograms;
+    final long[] started;
+    final long dumpNanos;
+    long lastDump;
+    
+    /**
+     * Dumps every dumpNanos, when asked to. 0 for never.
+     */
+    public FrameProfiler(long dumpNanos, String... phases) {
+        this.phases = phases;
+        this.dumpNanos = dumpNanos;
+        histograms = new Histogram[phases.length];
+        for (int i = 0; i < phases.length; ++i) {
+            histograms[i] = new Histogram();
+        }
+        started = new long[phases.length];
+        lastDump = System.nanoTime();
+    }
+    
+    public void begin(int phase) {
+        started[phase] = System.nanoTime();
+    }
+    
+    public void end(int phase) {
+        histograms[phase].record(System.nanoTime() - started[phase]);
+    }
+    
+    public int getPhaseCount() {
+        return phases.length;
+    }
+    
+    public Histogram getHistogram(int phase) {
+        return histograms[phase];
+    }
+    
+    // p50, p99, p99.9 and max of a phase, in milliseconds
+    public String summary(int phase) {
+        Histogram h = histograms[phase];
+        return String.format(Locale.ROOT, "%-8s %7d  p50 %6.2f  p99 %6.2f  p99.9 %6.2f  max %6.2f ms",
+                phases[phase], h.getCount(), h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6,
+                h.getPercentile(99.9) / 1e6, h.getMax() / 1e6);
+    }
+    
+    /**
+     * If it is time, prints every phase to out and starts counting afresh.
+     * True if it did.
+     */
+    public boolean dumpIfDue(long now, PrintStream out) {
+        if (dumpNanos <= 0 || now - lastDump < dumpNanos) return false;
+        out.println(String.format(Locale.ROOT, "Frame profile, last %.0f s:", (now - lastDump) / 1e9));
+        for (int i = 0; i < phases.length; ++i) {
+            out.println("  " + summary(i));
+            histograms[i].reset();
+        }
+        lastDump = now;
+        return true;
+    }
+}
@@ -0,0 +1,82 @@
+package mario.perf;
+
+/**
+ * Counts of non-negative values, such as nanoseconds, in fixed memory.
+ * 
+ * Log-linear buckets: every power of two is split into SUB_BUCKETS equal
+ * ones, so a percentile is never off by more than 1 / SUB_BUCKETS of its
+ * value, from 1 ns to minutes, in a few kilobytes. Recording is a shift and
+ * an increment. The max is kept exactly.
+ * 
+ * Not thread safe.
+ */
+public class Histogram {
+    static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int MAX_EXPONENT = 40;  // 2^40 ns, 18 minutes. Beyond goes in the last bucket
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+    
+    final long[] counts = new long[BUCKETS];
+    long count = 0;
+    long max = 0;
+    
+    public void record(long value) {
+        if (value < 0) value = 0;
+        ++counts[index(value)];
+        ++count;
+        if (value > max) max = value;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public long getMax() {
+        return max;
+    }
+    
+    /**
+     * The value at or below which percentile percent of the values are, as
+     * the top of its bucket. 0 if empty.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, highest(i));
+        }
+        return max;
+    }
+    
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+    
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+    
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    // The largest value that goes in bucket i
+    static long highest(int i) {
+        if (i < SUB_BUCKETS) return i;
+        int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = i % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,152 @@
+package mario.replay;
+
+import java.nio.ByteBuffer;
+
+import mario.net.InterpolationBuffer;
+import mario.net.Packet;
+import mario.net.PacketType;
+import mario.sim.MarioArrowX;
+import mario.sim.MarioArrowY;
+import mario.sim.MarioFace;
+import mario.sim.MotionState;
+import mario.sim.Prediction;
+import mario.sim.World;
+
+/**
+ * A recorded match: everything one client's simulation was given, tick by
+ * tick, so it can run again without the client. Little endian, and only
+ * ever appended to.
+ * 
+ *  0  magic           4    "MMLG"
+ *  4  version         u16
+ *  6  players         u8
+ *  7  me              u8   Whose client recorded it
+ *  8  tickRate        u16
+ * 10  flags           u8   PREDICTION, INTERPOLATION
+ * 11  minDelay        u16  Of the interpolation buffers, ms
+ * 13  records
+ * 
+ * A record is a kind u8, a varint length and that many bytes:
+ * 
+ *   TICK      varint tickTime less the last one's less tickNanos, zigzag,
+ *             then varint input. The local input of a tick
+ *   MESSAGE   A MARIO_STATE or GAME_OVER, as the client decoded it, after
+ *             the tick it was read in
+ *   RESET     Back to the start after a game over, between ticks
+ *   SNAPSHOT  i64 tick, i64 tickTime of the last tick, then the state:
+ *             the world, the prediction and the interpolation buffers
+ * 
+ * Messages are kept decoded, not as they were on the wire, so a replay
+ * needs no codec state and can start from any snapshot. A log starts with
+ * a snapshot at tick 0. The recorder writes a second of ticks at a time,
+ * so a crash costs at most the last second, and a last record torn in the
+ * write, which readers leave out.
+ */
+class MatchLog {
+    static final int MAGIC = 'M' | 'M' << 8 | 'L' << 16 | 'G' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 13;
+    
+    static final int FLAG_PREDICTION = 1;
+    static final int FLAG_INTERPOLATION = 1 << 1;
+    
+    static final int TICK = 1;
+    static final int MESSAGE = 2;
+    static final int RESET = 3;
+    static final int SNAPSHOT = 4;
+    
+    static final int MAX_RECORD_SIZE = 1 << 20;
+    
+    static void putState(ByteBuffer buf, World world, Prediction prediction,
+            InterpolationBuffer[] buffers) {
+        world.save(buf);
+        if (prediction != null) prediction.save(buf);
+        if (buffers == null) return;
+        for (int i = 0; i < buffers.length; ++i) {
+            if (buffers[i] != null) buffers[i].save(buf);
+        }
+    }
+    
+    static void getState(ByteBuffer buf, World world, Prediction prediction,
+            InterpolationBuffer[] buffers) {
+        world.restore(buf);
+        if (prediction != null) prediction.restore(buf);
+        if (buffers == null) return;
+        for (int i = 0; i < buffers.length; ++i) {
+            if (buffers[i] != null) buffers[i].restore(buf);
+        }
+    }
+    
+    // What the simulation uses of it, no more
+    static void putPacket(ByteBuffer buf, Packet packet) {
+        buf.put((byte) packet.type.ordinal());
+        buf.put((byte) packet.player);
+        buf.put((byte) packet.whoWon);
+        if (packet.type != PacketType.MARIO_STATE) return;
+        buf.putInt(packet.tick);
+        buf.putShort((short) packet.inputSeq);
+        buf.putFloat(packet.x);
+        buf.putFloat(packet.y);
+        buf.putFloat(packet.vx);
+        buf.putFloat(packet.vy);
+        buf.putFloat(packet.ax);
+        buf.putFloat(packet.ay);
+        buf.putFloat(packet.frictionalForce);
+        buf.put((byte) packet.motionState.ordinal());
+        buf.put((byte) packet.faceState.ordinal());
+        buf.put((byte) packet.arrowX.ordinal());
+        buf.put((byte) packet.arrowY.ordinal());
+        buf.put((byte) ((packet.jumpPressed ? 1 : 0) | (packet.boostJumping ? 2 : 0)));
+    }
+    
+    static void getPacket(ByteBuffer buf, Packet packet) {
+        packet.type = PacketType.values()[buf.get()];
+        packet.player = buf.get() & 0xFF;
+        packet.whoWon = buf.get();
+        if (packet.type != PacketType.MARIO_STATE) return;
+        packet.tick = buf.getInt();
+        packet.inputSeq = buf.getShort() & 0xFFFF;
+        packet.x = buf.getFloat();
+        packet.y = buf.getFloat();
+        packet.vx = buf.getFloat();
+        packet.vy = buf.getFloat();
+        packet.ax = buf.getFloat();
+        packet.ay = buf.getFloat();
+        packet.frictionalForce = buf.getFloat();
+        packet.motionState = MotionState.values()[buf.get()];
+        packet.faceState = MarioFace.values()[buf.get()];
+        packet.arrowX = MarioArrowX.values()[buf.get()];
+        packet.arrowY = MarioArrowY.values()[buf.get()];
+        int flags = buf.get();
+        packet.jumpPressed = (flags & 1) != 0;
+        packet.boostJumping = (flags & 2) != 0;
+    }
+    
+    static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+    
+    // -1 if the buffer ends first
+    static long getVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (! buf.hasRemaining()) return -1;
+            int b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        return -1;
+    }
+    
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,117 @@
+package mario.replay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import mario.net.InterpolationBuffer;
+import mario.net.Packet;
+import mario.net.PacketType;
+import mario.sim.Prediction;
+import mario.sim.World;
+
+/**
+ * Writes a MatchLog as the client plays: tick() with each tick's input,
+ * message() with what the network changed after it, reset() when the
+ * player starts over, and a snapshot() every so often, the first before
+ * the first tick.
+ * 
+ * Records pile up in memory and go to disk once a second of ticks and with
+ * each snapshot, so a tick costs a few bytes and rarely any I/O, and a
+ * crash loses no more than that second. Game thread only.
+ */
+public class MatchRecorder implements Closeable {
+    final FileChannel channel;
+    final long tickNanos;
+    final int flushTicks;
+    final ByteBuffer pending = ByteBuffer.allocate(MatchLog.MAX_RECORD_SIZE * 2)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer body = ByteBuffer.allocate(MatchLog.MAX_RECORD_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    long lastTickTime;
+    boolean ticked = false;  // Since the log began
+    int sinceFlush = 0;  // Ticks
+    
+    public MatchRecorder(Path path, int players, int me, int tickRate, boolean prediction,
+            boolean interpolation, int minDelayMillis) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        tickNanos = 1000000000L / tickRate;
+        flushTicks = tickRate;
+        pending.putInt(MatchLog.MAGIC);
+        pending.putShort((short) MatchLog.VERSION);
+        pending.put((byte) players);
+        pending.put((byte) me);
+        pending.putShort((short) tickRate);
+        pending.put((byte) ((prediction ? MatchLog.FLAG_PREDICTION : 0)
+                | (interpolation ? MatchLog.FLAG_INTERPOLATION : 0)));
+        pending.putShort((short) minDelayMillis);
+    }
+    
+    public void tick(long tickTime, int input) throws IOException {
+        body.clear();
+        long delta = ticked ? tickTime - lastTickTime - tickNanos : 0;
+        MatchLog.putVarLong(body, MatchLog.zigzag(delta));
+        MatchLog.putVarLong(body, input);
+        append(MatchLog.TICK);
+        lastTickTime = tickTime;
+        ticked = true;
+        if (++sinceFlush >= flushTicks) flush();
+    }
+    
+    // Others don't touch the simulation, and are left out
+    public void message(Packet packet) throws IOException {
+        if (packet.type != PacketType.MARIO_STATE && packet.type != PacketType.GAME_OVER) return;
+        body.clear();
+        MatchLog.putPacket(body, packet);
+        append(MatchLog.MESSAGE);
+    }
+    
+    public void reset() throws IOException {
+        body.clear();
+        append(MatchLog.RESET);
+    }
+    
+    /**
+     * Between ticks. tickTime is of the tick coming, which the first
+     * snapshot needs as no tick has been recorded yet.
+     */
+    public void snapshot(long tick, long tickTime, World world, Prediction prediction,
+            InterpolationBuffer[] buffers) throws IOException {
+        if (! ticked) {
+            lastTickTime = tickTime - tickNanos;
+            ticked = true;
+        }
+        body.clear();
+        body.putLong(tick);
+        body.putLong(lastTickTime);
+        MatchLog.putState(body, world, prediction, buffers);
+        append(MatchLog.SNAPSHOT);
+        flush();
+    }
+    
+    public void flush() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) channel.write(pending);
+        pending.clear();
+        sinceFlush = 0;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+    
+    void append(int kind) throws IOException {
+        body.flip();
+        if (pending.remaining() < body.remaining() + 16) flush();
+        pending.put((byte) kind);
+        MatchLog.putVarLong(pending, body.remaining());
+        pending.put(body);
+    }
+}
@@ -0,0 +1,302 @@
+package mario.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import mario.net.InterpolationBuffer;
+import mario.net.Packet;
+import mario.net.PacketType;
+import mario.sim.LevelLoader;
+import mario.sim.MarioBody;
+import mario.sim.Physics;
+import mario.sim.Prediction;
+import mario.sim.TileMap;
+import mario.sim.World;
+
+/**
+ * Runs a MatchLog through the simulation again, headless and as fast as it
+ * goes, doing with each record what MarioMultiplay did with it.
+ * 
+ * seek() starts over from the newest snapshot at or before a tick and
+ * plays on to it. Playing through a snapshot checks our state against the
+ * recorded one, byte for byte, and counts a desync where they differ, so
+ * a replay tells whether the match it came from was deterministic.
+ * 
+ *   gradle replayMatch -Pmatch=matches/20261018-120000.mlog
+ *   gradle replayMatch -Pmatch=... -PreplayArgs="--seek 3600 --until 4000"
+ * 
+ * Options: --data, --seek, --until, --repeat (times over, for timing).
+ */
+public class MatchReplayer {
+    final ByteBuffer log;
+    final int end;  // Of the last whole record
+    public final int players;
+    public final int me;
+    public final int tickRate;
+    final long tickNanos;
+    
+    public final World world;
+    public final MarioBody[] marios;
+    final Prediction prediction;
+    final InterpolationBuffer[] buffers;
+    final int[] inputs;
+    final Packet packet = new Packet();
+    final ByteBuffer scratch = ByteBuffer.allocate(MatchLog.MAX_RECORD_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    
+    // Snapshots, in order
+    long[] snapshotTicks = new long[16];
+    int[] snapshotOffsets = new int[16];
+    int snapshotCount = 0;
+    
+    long tick;
+    long tickTime;  // Of the last tick
+    public long desyncs = 0;
+    public long firstDesync = -1;  // Tick of the first, -1 for none
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("MatchReplayer <log> [--data dir] [--seek tick] [--until tick]"
+                    + " [--repeat n]");
+            return;
+        }
+        String dataDir = "data";
+        long seek = 0;
+        long until = Long.MAX_VALUE;
+        int repeat = 1;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--data": dataDir = value; break;
+            case "--seek": seek = Long.parseLong(value); break;
+            case "--until": until = Long.parseLong(value); break;
+            case "--repeat": repeat = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        
+        TileMap map = LevelLoader.load(Paths.get(dataDir), "map");
+        MatchReplayer replayer = new MatchReplayer(Paths.get(args[0]), map);
+        System.out.println(args[0] + ": " + replayer.players + " players, recorded by "
+                + replayer.me + ", " + replayer.tickRate + " ticks/s, "
+                + replayer.snapshotCount + " snapshots, the last at tick "
+                + replayer.snapshotTicks[replayer.snapshotCount - 1]);
+        
+        long ticks = 0;
+        long started = System.nanoTime();
+        for (int r = 0; r < repeat; ++r) {
+            replayer.seek(seek);
+            long from = replayer.getTick();
+            replayer.runTo(until);
+            ticks += replayer.getTick() - from;
+        }
+        long nanos = System.nanoTime() - started;
+        
+        System.out.println("Tick " + replayer.getTick() + ", winner " + replayer.world.winner
+                + ", " + replayer.desyncs + " desyncs"
+                + (replayer.firstDesync >= 0 ? ", the first at tick " + replayer.firstDesync : ""));
+        for (int i = 0; i < replayer.players; ++i) {
+            MarioBody m = replayer.marios[i];
+            System.out.println("  mario " + i + ": " + m.x + ", " + m.y + " moving " + m.vx + ", "
+                    + m.vy + ", " + m.motionState);
+        }
+        System.out.println(ticks + " ticks in " + nanos / 1000000 + " ms, "
+                + (nanos > 0 ? ticks * 1000000000L / nanos : 0) + " ticks/s");
+    }
+    
+    public MatchReplayer(Path path, TileMap map) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        log.order(ByteOrder.LITTLE_ENDIAN);
+        if (log.limit() < MatchLog.HEADER_SIZE || log.getInt(0) != MatchLog.MAGIC
+                || log.getShort(4) != MatchLog.VERSION) {
+            throw new IOException(path + " is not a version " + MatchLog.VERSION + " match log");
+        }
+        players = log.get(6) & 0xFF;
+        me = log.get(7) & 0xFF;
+        tickRate = log.getShort(8) & 0xFFFF;
+        int flags = log.get(10);
+        int minDelayMillis = log.getShort(11) & 0xFFFF;
+        tickNanos = 1000000000L / tickRate;
+        
+        // Built the way the client built it; the first snapshot does the rest
+        marios = new MarioBody[players];
+        for (int i = 0; i < players; ++i) {
+            marios[i] = new MarioBody();
+        }
+        world = new World(map, marios, new Physics(tickRate));
+        inputs = new int[players];
+        prediction = (flags & MatchLog.FLAG_PREDICTION) != 0 ? new Prediction() : null;
+        if ((flags & MatchLog.FLAG_INTERPOLATION) != 0) {
+            buffers = new InterpolationBuffer[players];
+            for (int i = 0; i < players; ++i) {
+                if (i == me) continue;
+                buffers[i] = new InterpolationBuffer(tickNanos, minDelayMillis * 1000000L);
+            }
+        } else {
+            buffers = null;
+        }
+        
+        end = index();
+        if (snapshotCount == 0) throw new IOException(path + " has no snapshot to start from");
+        seek(0);
+    }
+    
+    public long getTick() {
+        return tick;
+    }
+    
+    public boolean isAtEnd() {
+        return log.position() >= end;
+    }
+    
+    /**
+     * Restores the newest snapshot at or before tick, then plays to tick.
+     */
+    public void seek(long target) {
+        int s = Arrays.binarySearch(snapshotTicks, 0, snapshotCount, target);
+        if (s < 0) s = Math.max(0, -s - 2);
+        log.position(snapshotOffsets[s]);
+        ByteBuffer record = nextRecord();
+        record.getLong();  // Tick, which the index has
+        tick = snapshotTicks[s];
+        tickTime = record.getLong();
+        MatchLog.getState(record, world, prediction, buffers);
+        runTo(target);
+    }
+    
+    /**
+     * Plays until tick ticks have run, stopping before the next one, or to
+     * the end. Returns false at the end.
+     */
+    public boolean runTo(long target) {
+        while (tick < target || peekKind() != MatchLog.TICK) {
+            if (! next()) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Plays one record. Returns false at the end.
+     */
+    public boolean next() {
+        int kind = peekKind();
+        if (kind < 0) return false;
+        ByteBuffer record = nextRecord();
+        switch (kind) {
+        case MatchLog.TICK:
+            tickTime += MatchLog.unzigzag(MatchLog.getVarLong(record)) + tickNanos;
+            tick((int) MatchLog.getVarLong(record));
+            break;
+        case MatchLog.MESSAGE:
+            MatchLog.getPacket(record, packet);
+            apply(packet);
+            break;
+        case MatchLog.RESET:
+            world.reset();
+            marios[me].respawn(me);
+            break;
+        case MatchLog.SNAPSHOT:
+            check(record);
+            break;
+        default: ;  // Newer than us. Skip it
+            break;
+        }
+        return true;
+    }
+    
+    // As MarioMultiplay's processUserInput and processGameLogic
+    void tick(int input) {
+        inputs[me] = input;
+        if (prediction != null) prediction.record(input);
+        if (buffers != null) {
+            for (int i = 0; i < players; ++i) {
+                if (buffers[i] != null) buffers[i].sample(tickTime, marios[i], world);
+            }
+        }
+        world.tick(inputs);
+        world.map.stream(world.marios);
+        ++tick;
+    }
+    
+    // As MarioMultiplay's processMsg
+    void apply(Packet packet) {
+        switch (packet.type) {
+        case GAME_OVER:
+            if (packet.whoWon >= 0 && packet.whoWon < players) world.winner = packet.whoWon;
+            break;
+        case MARIO_STATE:
+            if (packet.player == me) {
+                if (prediction == null) break;
+                packet.copyTo(marios[me]);
+                prediction.reconcile(world, marios[me], packet.inputSeq);
+                break;
+            }
+            if (packet.player >= players) break;
+            if (buffers != null) buffers[packet.player].add(packet, tickTime);
+            else packet.copyTo(marios[packet.player]);
+            break;
+        default: ;
+            break;
+        }
+    }
+    
+    // Ours against the recorded state, past the tick and time
+    void check(ByteBuffer record) {
+        record.position(record.position() + 16);
+        scratch.clear();
+        MatchLog.putState(scratch, world, prediction, buffers);
+        scratch.flip();
+        if (! scratch.equals(record)) {
+            if (firstDesync < 0) firstDesync = tick;
+            ++desyncs;
+        }
+    }
+    
+    // The kind of the record at the position, -1 at the end
+    int peekKind() {
+        return log.position() < end ? log.get(log.position()) : -1;
+    }
+    
+    // The body of the record at the position, which moves past it
+    ByteBuffer nextRecord() {
+        log.get();
+        int length = (int) MatchLog.getVarLong(log);
+        ByteBuffer record = log.slice().order(ByteOrder.LITTLE_ENDIAN);
+        record.limit(length);
+        log.position(log.position() + length);
+        return record;
+    }
+    
+    // Finds the snapshots, and where the whole records end
+    int index() {
+        log.position(MatchLog.HEADER_SIZE);
+        int last = log.position();
+        while (log.hasRemaining()) {
+            int at = log.position();
+            int kind = log.get();
+            long length = MatchLog.getVarLong(log);
+            if (length < 0 || length > log.remaining()) break;  // Torn
+            if (kind == MatchLog.SNAPSHOT) {
+                if (length < 16) break;
+                if (snapshotCount == snapshotTicks.length) {
+                    snapshotTicks = Arrays.copyOf(snapshotTicks, snapshotCount * 2);
+                    snapshotOffsets = Arrays.copyOf(snapshotOffsets, snapshotCount * 2);
+                }
+                snapshotTicks[snapshotCount] = log.getLong(log.position());
+                snapshotOffsets[snapshotCount++] = at;
+            }
+            log.position(log.position() + (int) length);
+            last = log.position();
+        }
+        log.position(MatchLog.HEADER_SIZE);
+        return last;
+    }
+}
@@ -0,0 +1,300 @@
+package mario.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+import mario.net.Packet;
+import mario.net.PacketCodec;
+import mario.net.PacketType;
+import mario.perf.Histogram;
+import mario.sim.MarioBody;
+import mario.sim.MarioInput;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+import mario.sim.World;
+
+/**
+ * A thread of the load generator and the rooms of bots pinned to it.
+ * 
+ * Every bot is a client as far as the broker can tell: a PUB socket to
+ * 1234 and a SUB to 5678 subscribed to its room, publishing its Mario's
+ * state on its channel in the binary codec. A room's bots share a world
+ * and all live here, so when a message comes back the time its sender
+ * sent it is at hand, to the nanosecond, without the clocks or threads
+ * getting in the way. Gaps in a sender's sequence numbers are drops.
+ * 
+ * The codec is the clients', with their settings, and each bot decodes
+ * the others' states as a client does. So acks flow back, and deltas,
+ * baselines and keyframes, and the bytes they come to, are a client's.
+ * 
+ * Between ticks it waits on the SUB sockets, so what it measures is the
+ * broker and the wire, plus one poll.
+ */
+class BotShard implements Runnable {
+    static final int SENT_WINDOW = 256;  // Send times kept per bot. Power of two
+    static final int SEQ_MASK = 0xFFFF;
+    static final long DRAIN_NANOS = 1000000000L;  // Listening on after the last send
+    
+    // What one window of a shard saw, for the generator to add up
+    static class Window {
+        final int shard;
+        final long index;
+        final Histogram latency = new Histogram();
+        long sent, sentBytes, received, receivedBytes, dropped, late, unmatched;
+        
+        Window(int shard, long index) {
+            this.shard = shard;
+            this.index = index;
+        }
+    }
+    
+    static class Bot {
+        final int player;
+        final MarioBody mario = new MarioBody();
+        final PacketCodec codec;
+        final Packet packet = new Packet();
+        byte[] topic;
+        Socket pubSocket;
+        Socket subSocket;
+        int seq = 0;
+        final long[] sentAt = new long[SENT_WINDOW];  // By seq
+        final int[] sentSeq = new int[SENT_WINDOW];
+        int[] lastSeq;  // Of each sender heard from, -1 before
+        BotRoom room;
+        
+        Bot(int player, PacketCodec codec) {
+            this.player = player;
+            this.codec = codec;
+        }
+    }
+    
+    static class BotRoom {
+        final Bot[] bots;
+        final World world;
+        final int[] inputs;
+        
+        BotRoom(Bot[] bots, TileMap map, Physics physics) {
+            this.bots = bots;
+            MarioBody[] marios = new MarioBody[bots.length];
+            for (int i = 0; i < bots.length; ++i) {
+                marios[i] = bots[i].mario;
+                marios[i].frictionalForce = 0.7f;
+            }
+            world = new World(map, marios, physics);
+            for (int i = 0; i < bots.length; ++i) {
+                marios[i].respawn(i);
+                bots[i].room = this;
+            }
+            inputs = new int[bots.length];
+        }
+    }
+    
+    final int index;
+    final BotRoom[] rooms;
+    final long tickNanos;
+    final int ticksPerSend;
+    final boolean randomInputs;
+    final Random random;
+    final long startAt;  // Sending starts, System.nanoTime()
+    final long stopAt;
+    final long windowNanos;
+    final ConcurrentLinkedQueue<Window> windows;
+    Thread thread;
+    
+    ZMQ.Poller poller;
+    Bot[] polled;  // By poller index
+    final Packet header = new Packet();  // Of the message being counted
+    Window window;
+    long tick = 0;
+    
+    BotShard(int index, int firstRoom, int roomCount, int players, String roomPrefix,
+            TileMap map, Physics physics, int tickRate, Supplier<PacketCodec> codecs, int sendRate,
+            boolean randomInputs, long seed, long startAt, long stopAt, long windowNanos,
+            ConcurrentLinkedQueue<Window> windows) {
+        this.index = index;
+        this.tickNanos = 1000000000L / tickRate;
+        this.ticksPerSend = Math.max(1, tickRate / Math.max(1, sendRate));
+        this.randomInputs = randomInputs;
+        this.random = new Random(seed + index);
+        this.startAt = startAt;
+        this.stopAt = stopAt;
+        this.windowNanos = windowNanos;
+        this.windows = windows;
+        
+        rooms = new BotRoom[roomCount];
+        for (int r = 0; r < roomCount; ++r) {
+            String room = roomPrefix + (firstRoom + r);
+            Bot[] bots = new Bot[players];
+            for (int p = 0; p < players; ++p) {
+                bots[p] = new Bot(p, codecs.get());
+                bots[p].topic = (room + GameServer.STATE_TOPIC + p).getBytes(StandardCharsets.UTF_8);
+                bots[p].lastSeq = new int[players];
+                java.util.Arrays.fill(bots[p].lastSeq, -1);
+            }
+            rooms[r] = new BotRoom(bots, map, physics);
+        }
+    }
+    
+    // Sockets are made here, but used only by our thread from start() on
+    void connect(Context context, String pubAddress, String subAddress, String roomPrefix,
+            int firstRoom) {
+        int count = 0;
+        for (BotRoom room : rooms) count += room.bots.length;
+        poller = new ZMQ.Poller(count);
+        polled = new Bot[count];
+        for (int r = 0; r < rooms.length; ++r) {
+            byte[] subscription = (roomPrefix + (firstRoom + r) + GameServer.STATE_TOPIC)
+                    .getBytes(StandardCharsets.UTF_8);
+            for (Bot bot : rooms[r].bots) {
+                bot.pubSocket = context.socket(ZMQ.PUB);
+                bot.pubSocket.connect(pubAddress);
+                bot.subSocket = context.socket(ZMQ.SUB);
+                bot.subSocket.connect(subAddress);
+                bot.subSocket.subscribe(subscription);
+                polled[poller.register(bot.subSocket, ZMQ.Poller.POLLIN)] = bot;
+            }
+        }
+    }
+    
+    void start() {
+        thread = new Thread(this, "bots-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    @Override
+    public void run() {
+        long next = startAt;
+        window = new Window(index, 0);
+        while (! Thread.currentThread().isInterrupted()) {
+            long now = System.nanoTime();
+            if (now - stopAt >= DRAIN_NANOS) break;
+            
+            if (now - next >= 0 && now - stopAt < 0) {
+                if (now - startAt >= (window.index + 1) * windowNanos) {
+                    windows.add(window);
+                    window = new Window(index, window.index + 1);
+                }
+                tick(now);
+                next += tickNanos;
+                if (now - next > 5 * tickNanos) next = now;  // Too slow to catch up
+            }
+            
+            // Wait for messages until the next tick, to the millisecond
+            long until = now - stopAt < 0 ? next : stopAt + DRAIN_NANOS;
+            long wait = (until - System.nanoTime() + 999999) / 1000000;
+            poller.poll(Math.max(0, wait));
+            receive();
+        }
+        windows.add(window);  // The last one, with what came in the drain
+        
+        for (BotRoom room : rooms) {
+            for (Bot bot : room.bots) {
+                bot.pubSocket.close();
+                bot.subSocket.close();
+            }
+        }
+    }
+    
+    void tick(long now) {
+        for (BotRoom room : rooms) {
+            for (int i = 0; i < room.bots.length; ++i) {
+                room.inputs[i] = nextInput(room.bots[i]);
+            }
+            room.world.tick(room.inputs);
+            if (room.world.isOver()) {
+                room.world.reset();
+                for (int i = 0; i < room.bots.length; ++i) {
+                    room.bots[i].mario.respawn(i);
+                }
+            }
+            
+            // Staggered, so the broker doesn't see everyone in the same instant
+            for (int i = 0; i < room.bots.length; ++i) {
+                Bot bot = room.bots[i];
+                if ((tick + bot.player + index) % ticksPerSend == 0) send(bot, now);
+            }
+        }
+        ++tick;
+    }
+    
+    // A run right, a jump, a run left, or a random key now and then
+    int nextInput(Bot bot) {
+        if (randomInputs) {
+            if (random.nextInt(8) != 0) return MarioInput.NONE;
+            return 1 << random.nextInt(10);
+        }
+        int phase = (int) (tick + bot.player * 7) & 63;
+        if (phase == 0) return (bot.player & 1) == 0 ? MarioInput.RIGHT : MarioInput.LEFT;
+        if (phase == 32) return MarioInput.JUMP | MarioInput.RELEASE_LEFT | MarioInput.RELEASE_RIGHT;
+        if (phase == 40) return MarioInput.RELEASE_JUMP;
+        return MarioInput.NONE;
+    }
+    
+    void send(Bot bot, long now) {
+        Packet packet = bot.packet.copyFrom(bot.mario);
+        packet.player = bot.player;
+        packet.tick = (int) tick;
+        packet.seq = bot.seq;
+        packet.sentAt = (int) (now / 1000000);
+        ByteBuffer body = bot.codec.encode(packet);
+        bot.sentAt[bot.seq & (SENT_WINDOW - 1)] = System.nanoTime();
+        bot.sentSeq[bot.seq & (SENT_WINDOW - 1)] = bot.seq;
+        bot.seq = (bot.seq + 1) & SEQ_MASK;
+        
+        int size = body.remaining();
+        byte[] bytes = new byte[size];
+        body.get(bytes);
+        bot.pubSocket.sendMore(bot.topic);
+        if (bot.pubSocket.send(bytes, ZMQ.DONTWAIT)) {
+            ++window.sent;
+            window.sentBytes += bot.topic.length + size;
+        }
+    }
+    
+    // Whatever the poll found, without blocking
+    void receive() {
+        for (int i = 0; i < polled.length; ++i) {
+            if (! poller.pollin(i)) continue;
+            Bot bot = polled[i];
+            byte[] topic;
+            while ((topic = bot.subSocket.recv(ZMQ.DONTWAIT)) != null) {
+                if (! bot.subSocket.hasReceiveMore()) continue;
+                byte[] body = bot.subSocket.recv();
+                long now = System.nanoTime();
+                ++window.received;
+                window.receivedBytes += topic.length + body.length;
+                onMessage(bot, body, now);
+            }
+        }
+    }
+    
+    void onMessage(Bot bot, byte[] body, long now) {
+        if (! bot.codec.peekHeader(body, header) || header.type != PacketType.MARIO_STATE) return;
+        if (header.player >= bot.lastSeq.length) return;
+        if (header.player != bot.player) bot.codec.decode(body);  // For the acks
+        
+        int last = bot.lastSeq[header.player];
+        if (last >= 0) {
+            int gap = (header.seq - last) & SEQ_MASK;
+            if (gap == 0 || gap > SEQ_MASK / 2) {  // Duplicate or out of order
+                ++window.late;
+                return;
+            }
+            window.dropped += gap - 1;
+        }
+        bot.lastSeq[header.player] = header.seq;
+        
+        Bot sender = bot.room.bots[header.player];
+        int slot = header.seq & (SENT_WINDOW - 1);
+        if (sender.sentSeq[slot] == header.seq) window.latency.record(now - sender.sentAt[slot]);
+        else ++window.unmatched;  // Sent too long ago
+    }
+}
@@ -0,0 +1,144 @@
+package mario.server;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * One direction of a bad network, in the manner of Linux netem: messages
+ * go in with offer() and come out of poll() when they are due, or never.
+ * 
+ * A message first waits its turn behind the bandwidth cap, if there is
+ * one, then travels for the latency. Jitter is drawn per message, so it
+ * reorders too, as it does on a real network. Loss is a two-state chain
+ * whose bad state drops everything and lasts lossBurst messages on
+ * average, so the mean loss is lossPercent whatever the burst.
+ * 
+ * The profile can be swapped any time; what is in flight keeps its times.
+ * One thread only.
+ */
+class EmulatedLink {
+    static class Message implements Comparable<Message> {
+        final long dueNanos;
+        final long order;  // Ties go in arrival order
+        final byte[] topic;
+        final byte[] body;
+        
+        Message(long dueNanos, long order, byte[] topic, byte[] body) {
+            this.dueNanos = dueNanos;
+            this.order = order;
+            this.topic = topic;
+            this.body = body;
+        }
+        
+        @Override
+        public int compareTo(Message o) {
+            if (dueNanos != o.dueNanos) return dueNanos < o.dueNanos ? -1 : 1;
+            return Long.compare(order, o.order);
+        }
+    }
+    
+    final String name;
+    final Random random;
+    final PriorityQueue<Message> inFlight = new PriorityQueue<Message>();
+    volatile LinkProfile profile = new LinkProfile();  // Swapped by any thread
+    long order = 0;
+    long freeAt = 0;  // When the cap has sent everything before
+    boolean losing = false;
+    
+    // Since the last report
+    long offered = 0;
+    long delivered = 0;
+    long lost = 0;
+    long overflowed = 0;  // Dropped behind the bandwidth cap
+    long duplicated = 0;
+    long reordered = 0;
+    
+    EmulatedLink(String name, long seed) {
+        this.name = name;
+        random = new Random(seed);
+    }
+    
+    void offer(byte[] topic, byte[] body, long now) {
+        ++offered;
+        if (lose()) {
+            ++lost;
+            return;
+        }
+        if (! schedule(topic, body, now)) return;
+        if (chance(profile.duplicatePercent)) {
+            ++duplicated;
+            schedule(topic, body, now);
+        }
+    }
+    
+    // The next message due by now, or null
+    Message poll(long now) {
+        Message m = inFlight.peek();
+        if (m == null || m.dueNanos - now > 0) return null;
+        ++delivered;
+        return inFlight.poll();
+    }
+    
+    // When poll() will next have something, or Long.MAX_VALUE
+    long nextDue() {
+        Message m = inFlight.peek();
+        return m == null ? Long.MAX_VALUE : m.dueNanos;
+    }
+    
+    int size() {
+        return inFlight.size();
+    }
+    
+    void resetStats() {
+        offered = delivered = lost = overflowed = duplicated = reordered = 0;
+    }
+    
+    String stats() {
+        return name + ": " + offered + " in, " + delivered + " out, " + lost + " lost, "
+                + overflowed + " overflowed, " + duplicated + " duplicated, " + reordered
+                + " reordered, " + inFlight.size() + " in flight";
+    }
+    
+    boolean schedule(byte[] topic, byte[] body, long now) {
+        long sent = now;
+        if (profile.bandwidthKbps > 0) {
+            if (freeAt - now > 0) sent = freeAt;
+            if (sent - now > profile.queueMillis * 1000000L) {
+                ++overflowed;
+                return false;
+            }
+            long bits = 8L * (topic.length + body.length);
+            freeAt = sent + bits * 1000000L / profile.bandwidthKbps;
+            sent = freeAt;
+        }
+        
+        long delay;
+        if (chance(profile.reorderPercent)) {
+            ++reordered;
+            delay = 0;
+        } else {
+            delay = profile.latencyMillis * 1000000L;
+            if (profile.jitterMillis > 0) {
+                delay += (long) ((random.nextDouble() * 2 - 1) * profile.jitterMillis * 1000000L);
+            }
+        }
+        inFlight.add(new Message(sent + Math.max(0, delay), order++, topic, body));
+        return true;
+    }
+    
+    boolean lose() {
+        float loss = profile.lossPercent / 100;
+        if (loss <= 0) return losing = false;
+        if (loss >= 1) return losing = true;
+        if (profile.lossBurst <= 1) return losing = random.nextFloat() < loss;
+        // Leave the bad state after lossBurst on average, enter it to keep the mean
+        float leave = 1 / profile.lossBurst;
+        float enter = loss * leave / (1 - loss);
+        losing = random.nextFloat() < (losing ? 1 - leave : enter);
+        return losing;
+    }
+    
+    boolean chance(float percent) {
+        return percent > 0 && random.nextFloat() * 100 < percent;
+    }
+}
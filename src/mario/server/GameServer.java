@@ -0,0 +1,222 @@
+package mario.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.function.Supplier;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+import mario.net.BinaryPacketCodec;
+import mario.net.JsonPacketCodec;
+import mario.net.Packet;
+import mario.net.PacketCodec;
+import mario.net.PacketType;
+import mario.net.SnapshotCodec;
+import mario.sim.LevelLoader;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+
+/**
+ * The authoritative game server. It sits where the proxy did: clients
+ * publish to port 1234 and subscribe at 5678.
+ * 
+ * This thread owns the sockets. INPUT messages are taken off the wire and
+ * queued to their room, a room being opened the first time one of its
+ * players is heard from, on the least loaded shard. Each shard is a thread
+ * ticking its rooms at the tick rate, and the states and game overs they
+ * decide come back here to go out on the rooms' CHANNEL_MARIO_ topics.
+ * Everything else is forwarded untouched, so peer netcode clients can use
+ * it as the plain proxy it replaces.
+ * 
+ *   gradle runServer -PserverArgs="--tick-rate 30 --friction 0.7"
+ * 
+ * Options: --tick-rate, --friction, --codec binary|json, --data, --in,
+ * --out, --players (per room), --shards (one per core but ours by
+ * default), --idle-seconds. Tick rate, players, friction and codec must
+ * match the clients' config; inputs at another tick rate are refused.
+ */
+public class GameServer {
+    static final String INPUT_TOPIC = "INPUT_MARIO_";
+    static final String STATE_TOPIC = "CHANNEL_MARIO_";
+    static final String SHARD_OUT = "inproc://shard-out";
+    static final long STATS_INTERVAL_NANOS = 10000000000L;
+    
+    int tickRate = Physics.BASE_TICK_RATE;
+    int players = 2;
+    float frictionalForce = 0.7f;
+    String codec = "binary";
+    String dataDir = "data";
+    String inAddress = "tcp://*:1234";
+    String outAddress = "tcp://*:5678";
+    int shardCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    int idleSeconds = 30;  // Without a word from its players, a room is closed
+    
+    TileMap map;
+    Physics physics;
+    Supplier<PacketCodec> codecs;
+    PacketCodec inputCodec;
+    Shard[] shards;
+    RoomRegistry registry;
+    long lastStats;
+    
+    Context context;
+    Socket subSocket;
+    Socket pubSocket;
+    Socket pullSocket;  // What the shards publish
+    
+    public static void main(String[] args) throws IOException {
+        GameServer server = new GameServer();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--tick-rate": server.tickRate = Integer.parseInt(value); break;
+            case "--players": server.players = Integer.parseInt(value); break;
+            case "--friction": server.frictionalForce = Float.parseFloat(value); break;
+            case "--codec": server.codec = value; break;
+            case "--data": server.dataDir = value; break;
+            case "--in": server.inAddress = value; break;
+            case "--out": server.outAddress = value; break;
+            case "--shards": server.shardCount = Integer.parseInt(value); break;
+            case "--idle-seconds": server.idleSeconds = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        server.start();
+        server.run();
+    }
+    
+    static byte[] topic(String topic) {
+        return topic.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    public void start() throws IOException {
+        map = LevelLoader.load(Paths.get(dataDir), "map");  // Shared by all rooms
+        physics = new Physics(tickRate);
+        if (codec.equals("json")) {
+            codecs = () -> new JsonPacketCodec(tickRate);
+        } else {
+            // Precision doesn't matter: nobody acks us, so all we send is keyframes
+            codecs = () -> new BinaryPacketCodec(new SnapshotCodec(0.01f, 0.01f, 1), tickRate);
+        }
+        inputCodec = codecs.get();
+        
+        context = ZMQ.context(1);
+        subSocket = context.socket(ZMQ.SUB);
+        subSocket.bind(inAddress);
+        subSocket.subscribe(new byte[0]);
+        pubSocket = context.socket(ZMQ.PUB);
+        pubSocket.bind(outAddress);
+        pullSocket = context.socket(ZMQ.PULL);
+        pullSocket.bind(SHARD_OUT);
+        
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; ++i) {
+            shards[i] = new Shard(i, 1000000000L / tickRate, idleSeconds * tickRate,
+                    STATS_INTERVAL_NANOS, context, SHARD_OUT);
+            shards[i].start();
+        }
+        registry = new RoomRegistry(shards, players, map, physics, frictionalForce, codecs);
+        lastStats = System.nanoTime();
+        System.out.println("Game server on " + inAddress + " -> " + outAddress
+                + ", " + tickRate + " ticks/s, " + codec + ", " + shardCount + " shards");
+    }
+    
+    public void run() {
+        ZMQ.Poller poller = new ZMQ.Poller(2);
+        poller.register(subSocket, ZMQ.Poller.POLLIN);
+        poller.register(pullSocket, ZMQ.Poller.POLLIN);
+        
+        while (! Thread.currentThread().isInterrupted()) {
+            poller.poll(100);
+            receive();
+            forward();
+            registry.reapClosed();
+            
+            long now = System.nanoTime();
+            if (now - lastStats >= STATS_INTERVAL_NANOS) {
+                printStats();
+                lastStats = now;
+            }
+        }
+        stop();
+    }
+    
+    public void stop() {
+        for (Shard shard : shards) {
+            shard.thread.interrupt();
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        subSocket.close();
+        pubSocket.close();
+        pullSocket.close();
+        context.term();
+    }
+    
+    void printStats() {
+        System.out.println(registry.size() + " rooms, " + inputCodec.getRefused()
+                + " inputs refused for another tick rate");
+        for (Shard shard : shards) {
+            Shard.Stats stats = shard.stats;  // Its last window, whole
+            System.out.println("  shard " + shard.index + ": " + stats.rooms + " rooms, tick "
+                    + stats.avgTickNanos / 1000 + " us avg " + stats.maxTickNanos / 1000
+                    + " us max, " + stats.lateTicks + " late, " + stats.inputs + " inputs, "
+                    + shard.droppedInputs + " dropped, " + shard.inbox.size() + " queued, "
+                    + stats.droppedOut + " sends dropped");
+        }
+    }
+    
+    // Everything waiting, without blocking
+    void receive() {
+        byte[] topic;
+        while ((topic = subSocket.recv(ZMQ.DONTWAIT)) != null) {
+            if (! subSocket.hasReceiveMore()) continue;
+            byte[] body = subSocket.recv();
+            if (onInput(topic, body)) continue;
+            pubSocket.sendMore(topic);
+            pubSocket.send(body, 0);
+        }
+    }
+    
+    // What the shards published, out to the clients
+    void forward() {
+        byte[] topic;
+        while ((topic = pullSocket.recv(ZMQ.DONTWAIT)) != null) {
+            if (! pullSocket.hasReceiveMore()) continue;
+            byte[] body = pullSocket.recv();
+            pubSocket.sendMore(topic);
+            pubSocket.send(body, 0);
+        }
+    }
+    
+    // Returns false if it isn't ours to take
+    boolean onInput(byte[] topic, byte[] body) {
+        String name = new String(topic, StandardCharsets.UTF_8);
+        int at = name.indexOf(INPUT_TOPIC);
+        if (at < 0) return false;
+        
+        Packet packet = inputCodec.decode(body);
+        if (packet == null || packet.type != PacketType.INPUT) return true;
+        String id = name.substring(0, at);
+        int rooms = registry.size();
+        Room room = registry.getOrOpen(id);
+        if (room == null) return true;  // Full
+        if (registry.size() > rooms) {
+            System.out.println("Room " + id + " opened on shard " + room.shard.index
+                    + ", " + registry.size() + " in all");
+        }
+        if (! room.shard.post(Shard.KIND_INPUT, room, packet.player, packet.inputSeq,
+                packet.input)) {
+            ++room.shard.droppedInputs;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+package mario.server;
+
+import java.util.Map;
+
+/**
+ * How bad one direction of an emulated link is. All zero is a perfect one.
+ * 
+ * In a profiles file these are the keys latency_ms, jitter_ms,
+ * loss_percent, loss_burst, duplicate_percent, reorder_percent,
+ * bandwidth_kbps and queue_ms.
+ */
+public class LinkProfile {
+    public int latencyMillis = 0;
+    public int jitterMillis = 0;  // Each packet gets latency plus or minus up to this
+    public float lossPercent = 0;
+    public float lossBurst = 1;  // Mean run of losses. 1 for independent losses, more is Wi-Fi
+    public float duplicatePercent = 0;
+    public float reorderPercent = 0;  // These skip the latency, overtaking the ones in flight
+    public int bandwidthKbps = 0;  // 0 for unlimited
+    public int queueMillis = 500;  // Behind a bandwidth cap, more than this backlog is dropped
+    
+    public LinkProfile() {
+    }
+    
+    public LinkProfile(LinkProfile other) {
+        latencyMillis = other.latencyMillis;
+        jitterMillis = other.jitterMillis;
+        lossPercent = other.lossPercent;
+        lossBurst = other.lossBurst;
+        duplicatePercent = other.duplicatePercent;
+        reorderPercent = other.reorderPercent;
+        bandwidthKbps = other.bandwidthKbps;
+        queueMillis = other.queueMillis;
+    }
+    
+    /**
+     * A copy of this with the keys of map applied. Others are left alone.
+     */
+    public LinkProfile with(Map<?, ?> map) {
+        LinkProfile p = new LinkProfile(this);
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (! (e.getValue() instanceof Number)) continue;
+            Number value = (Number) e.getValue();
+            switch (String.valueOf(e.getKey())) {
+            case "latency_ms": p.latencyMillis = value.intValue(); break;
+            case "jitter_ms": p.jitterMillis = value.intValue(); break;
+            case "loss_percent": p.lossPercent = value.floatValue(); break;
+            case "loss_burst": p.lossBurst = Math.max(1, value.floatValue()); break;
+            case "duplicate_percent": p.duplicatePercent = value.floatValue(); break;
+            case "reorder_percent": p.reorderPercent = value.floatValue(); break;
+            case "bandwidth_kbps": p.bandwidthKbps = value.intValue(); break;
+            case "queue_ms": p.queueMillis = value.intValue(); break;
+            default: throw new IllegalArgumentException("Unknown link setting " + e.getKey());
+            }
+        }
+        return p;
+    }
+    
+    @Override
+    public String toString() {
+        return latencyMillis + "+-" + jitterMillis + " ms, " + lossPercent + "% loss (burst "
+                + lossBurst + "), " + duplicatePercent + "% dup, " + reorderPercent + "% reorder, "
+                + (bandwidthKbps > 0 ? bandwidthKbps + " kbit/s" : "unlimited");
+    }
+}
@@ -0,0 +1,221 @@
+package mario.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+import org.yaml.snakeyaml.Yaml;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+
+import mario.net.BinaryPacketCodec;
+import mario.net.PacketCodec;
+import mario.net.SnapshotCodec;
+import mario.perf.Histogram;
+import mario.sim.LevelLoader;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+
+/**
+ * Bots by the hundred or thousand in one JVM, playing against the broker,
+ * to find how many rooms it carries before the latency climbs.
+ * 
+ * The bots are split into rooms, and the rooms over a few threads. Each
+ * one moves its Mario on a scripted or random input every tick and
+ * publishes its state a few times a second, like a client with
+ * packet_frugal off. Every report, and at the end, it prints what went
+ * through: messages and bytes per second each way, the fan-out latency
+ * from a bot's send to each room member's receive, as percentiles, and
+ * the drops.
+ * 
+ *   gradle runLoad -PloadArgs="--clients 1000 --players 4 --seconds 60"
+ * 
+ * Options: --host, --pub-port, --sub-port, --clients, --players (per
+ * room), --threads, --tick-rate, --send-rate (states a second per
+ * client), --inputs pattern|random, --seconds, --report-seconds,
+ * --warmup-seconds, --room-prefix, --seed, --io-threads, --data. Each
+ * client has two sockets, so a thousand want the open file limit raised.
+ * The snapshot codec takes its settings from config.yml in the data
+ * folder, as the clients do.
+ */
+public class LoadGenerator {
+    String host = "127.0.0.1";
+    int pubPort = 1234;
+    int subPort = 5678;
+    int clients = 200;
+    int players = 2;
+    int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    int tickRate = Physics.BASE_TICK_RATE;
+    int sendRate = 20;
+    boolean randomInputs = false;
+    int seconds = 30;
+    int reportSeconds = 5;
+    int warmupSeconds = 2;  // For subscriptions to get to the broker before we count
+    String roomPrefix = "load";
+    long seed = 1;
+    int ioThreads = 2;
+    String dataDir = "data";
+    float positionPrecision = 0.01f;  // The snapshot codec's, until config.yml says
+    float velocityPrecision = 0.01f;
+    int keyframeInterval = 30;
+    
+    BotShard[] shards;
+    Context context;
+    final ConcurrentLinkedQueue<BotShard.Window> windows = new ConcurrentLinkedQueue<BotShard.Window>();
+    final BotShard.Window total = new BotShard.Window(-1, -1);
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--host": generator.host = value; break;
+            case "--pub-port": generator.pubPort = Integer.parseInt(value); break;
+            case "--sub-port": generator.subPort = Integer.parseInt(value); break;
+            case "--clients": generator.clients = Integer.parseInt(value); break;
+            case "--players": generator.players = Integer.parseInt(value); break;
+            case "--threads": generator.threadCount = Integer.parseInt(value); break;
+            case "--tick-rate": generator.tickRate = Integer.parseInt(value); break;
+            case "--send-rate": generator.sendRate = Integer.parseInt(value); break;
+            case "--inputs": generator.randomInputs = value.equals("random"); break;
+            case "--seconds": generator.seconds = Integer.parseInt(value); break;
+            case "--report-seconds": generator.reportSeconds = Integer.parseInt(value); break;
+            case "--warmup-seconds": generator.warmupSeconds = Integer.parseInt(value); break;
+            case "--room-prefix": generator.roomPrefix = value; break;
+            case "--seed": generator.seed = Long.parseLong(value); break;
+            case "--io-threads": generator.ioThreads = Integer.parseInt(value); break;
+            case "--data": generator.dataDir = value; break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        generator.start();
+        generator.run();
+    }
+    
+    public void start() throws IOException {
+        TileMap map = LevelLoader.load(Paths.get(dataDir), "map");  // Shared, as the server does
+        Physics physics = new Physics(tickRate);
+        loadCodecSettings(Paths.get(dataDir, "config.yml"));
+        Supplier<PacketCodec> codecs = () -> new BinaryPacketCodec(new SnapshotCodec(
+                positionPrecision, velocityPrecision, keyframeInterval), tickRate);
+        int rooms = Math.max(1, clients / players);
+        threadCount = Math.min(threadCount, rooms);
+        long startAt = System.nanoTime() + warmupSeconds * 1000000000L;
+        long stopAt = startAt + seconds * 1000000000L;
+        
+        context = ZMQ.context(ioThreads);
+        shards = new BotShard[threadCount];
+        int firstRoom = 0;
+        for (int i = 0; i < threadCount; ++i) {
+            int count = rooms / threadCount + (i < rooms % threadCount ? 1 : 0);
+            shards[i] = new BotShard(i, firstRoom, count, players, roomPrefix, map, physics,
+                    tickRate, codecs, sendRate, randomInputs, seed, startAt, stopAt,
+                    reportSeconds * 1000000000L, windows);
+            shards[i].connect(context, "tcp://" + host + ":" + pubPort,
+                    "tcp://" + host + ":" + subPort, roomPrefix, firstRoom);
+            firstRoom += count;
+        }
+        System.out.println(rooms * players + " clients in " + rooms + " rooms of " + players
+                + " on " + threadCount + " threads against " + host + ":" + pubPort + "/" + subPort
+                + ", " + sendRate + " states/s each, " + (randomInputs ? "random" : "pattern")
+                + " inputs, for " + seconds + " s after " + warmupSeconds + " s warmup, snapshots"
+                + " to " + positionPrecision + "/" + velocityPrecision + " with a keyframe every "
+                + keyframeInterval);
+        for (BotShard shard : shards) {
+            shard.start();
+        }
+    }
+    
+    // The snapshot_* keys of the clients' config. The file is optional
+    void loadCodecSettings(Path path) throws IOException {
+        if (! Files.exists(path)) return;
+        Map<?, ?> config;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            config = (Map<?, ?>) new Yaml().load(reader);
+        }
+        if (config == null) return;
+        if (config.containsKey("snapshot_position_precision")) {
+            positionPrecision = ((Number) config.get("snapshot_position_precision")).floatValue();
+        }
+        if (config.containsKey("snapshot_velocity_precision")) {
+            velocityPrecision = ((Number) config.get("snapshot_velocity_precision")).floatValue();
+        }
+        if (config.containsKey("snapshot_keyframe_interval")) {
+            keyframeInterval = ((Number) config.get("snapshot_keyframe_interval")).intValue();
+        }
+    }
+    
+    public void run() throws InterruptedException {
+        Map<Long, BotShard.Window> pending = new HashMap<Long, BotShard.Window>();
+        Map<Long, Integer> reported = new HashMap<Long, Integer>();
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (BotShard shard : shards) {
+                shard.thread.join(100);
+                if (shard.thread.isAlive()) running = true;
+            }
+            
+            // A window is printed once every shard has handed theirs in
+            BotShard.Window w;
+            while ((w = windows.poll()) != null) {
+                BotShard.Window sum = pending.get(w.index);
+                if (sum == null) {
+                    sum = new BotShard.Window(-1, w.index);
+                    pending.put(w.index, sum);
+                }
+                add(sum, w);
+                add(total, w);
+                int count = reported.containsKey(w.index) ? reported.get(w.index) + 1 : 1;
+                reported.put(w.index, count);
+                if (count == shards.length) {
+                    print("window " + w.index, sum, reportSeconds);
+                    pending.remove(w.index);
+                }
+            }
+        }
+        for (BotShard.Window rest : pending.values()) {  // Cut short at the end
+            print("window " + rest.index, rest, reportSeconds);
+        }
+        context.term();
+        
+        print("total", total, seconds);
+        
+        // Every state goes to the room, its sender included
+        long expected = total.sent * players;
+        System.out.println(String.format(Locale.ROOT,
+                "  %d of %d expected deliveries, %.3f%% missing",
+                total.received, expected,
+                expected > 0 ? 100.0 * (expected - total.received) / expected : 0));
+    }
+    
+    void add(BotShard.Window sum, BotShard.Window w) {
+        sum.latency.add(w.latency);
+        sum.sent += w.sent;
+        sum.sentBytes += w.sentBytes;
+        sum.received += w.received;
+        sum.receivedBytes += w.receivedBytes;
+        sum.dropped += w.dropped;
+        sum.late += w.late;
+        sum.unmatched += w.unmatched;
+    }
+    
+    void print(String name, BotShard.Window w, int seconds) {
+        Histogram h = w.latency;
+        System.out.println(String.format(Locale.ROOT,
+                "%-10s out %8.0f msg/s %7.0f KB/s  in %8.0f msg/s %7.0f KB/s  latency p50 %6.2f"
+                + "  p99 %6.2f  p99.9 %6.2f  max %6.2f ms  dropped %d  late %d  unmatched %d",
+                name, (double) w.sent / seconds, w.sentBytes / 1024.0 / seconds,
+                (double) w.received / seconds, w.receivedBytes / 1024.0 / seconds,
+                h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getPercentile(99.9) / 1e6,
+                h.getMax() / 1e6, w.dropped, w.late, w.unmatched));
+    }
+}
@@ -0,0 +1,48 @@
+package mario.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Bounded queue of longs for exactly one producer thread and one consumer
+ * thread. Lock free: the producer only moves tail, the consumer only head.
+ */
+final class LongRing {
+    final long[] buffer;
+    final int mask;
+    final AtomicLong head = new AtomicLong();
+    final AtomicLong tail = new AtomicLong();
+    long cachedHead = 0;  // The producer's last look at head
+    
+    LongRing(int capacity) {  // Power of two
+        buffer = new long[capacity];
+        mask = capacity - 1;
+    }
+    
+    // Producer. False if full
+    boolean offer(long value) {
+        long t = tail.get();
+        if (t - cachedHead == buffer.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == buffer.length) return false;
+        }
+        buffer[(int) t & mask] = value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+    
+    // Consumer. Hands over everything there is now, oldest first
+    int drain(LongConsumer consumer) {
+        long h = head.get();
+        long t = tail.get();
+        for (long i = h; i < t; ++i) {
+            consumer.accept(buffer[(int) i & mask]);
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+    
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
@@ -0,0 +1,278 @@
+package mario.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.Yaml;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * A stand-in for the broker that makes the network as bad as asked, so
+ * netcode can be tried under loss and latency on one machine.
+ * 
+ * Like server/Program.cs it takes publishers on 1234 (XSUB) and
+ * subscribers on 5678 (XPUB), and forwards everything, but every message
+ * goes up a link from its sender and down another to everyone, each with
+ * its own latency, jitter, loss, duplication, reordering and bandwidth.
+ * With --server-in and --server-out it goes in front of a game server
+ * instead: up to the server's 1234, and down from its 5678, which then
+ * want other ports than ours.
+ * 
+ *   gradle runEmulator -PemulatorArgs="--profile bad"
+ *   gradle runEmulator -PemulatorArgs="--script wifi_dropout --seed 7"
+ * 
+ * Profiles and scripts, timed profile changes, are read from
+ * data/netem.yml. Options: --in, --out, --server-in, --server-out,
+ * --profiles, --profile, --script, --seed. Down is applied once for all
+ * subscribers, as a PUB socket cannot tell them apart. The poller wakes
+ * to the millisecond, so that is as fine as the timing gets.
+ */
+public class NetEmulator {
+    static final long STATS_INTERVAL_NANOS = 10000000000L;
+    static final String DEFAULT_PROFILE = "perfect";
+    
+    String inAddress = "tcp://*:1234";
+    String outAddress = "tcp://*:5678";
+    String serverIn = null;  // A game server to go in front of, or null to be the broker
+    String serverOut = null;
+    String profilesFile = "data/netem.yml";
+    String profileName = DEFAULT_PROFILE;
+    String scriptName = null;
+    long seed = 1;  // The same seed on the same traffic loses the same messages
+    
+    final Map<String, LinkProfile[]> profiles = new HashMap<String, LinkProfile[]>();
+    final Map<String, List<?>> scripts = new HashMap<String, List<?>>();
+    long[] scriptAt = new long[0];  // Nanoseconds after start
+    String[] scriptProfiles = new String[0];
+    int scriptStep = 0;
+    EmulatedLink up;
+    EmulatedLink down;
+    long startedAt;
+    long lastStats;
+    
+    Context context;
+    Socket xsubSocket;
+    Socket xpubSocket;
+    Socket serverPubSocket;
+    Socket serverSubSocket;
+    
+    public static void main(String[] args) throws IOException {
+        NetEmulator emulator = fromArgs(args);
+        emulator.start();
+        emulator.run();
+    }
+    
+    /**
+     * Configured by command line options, for tests to start and run on a
+     * thread of their own. Interrupting it stops it.
+     */
+    public static NetEmulator fromArgs(String... args) {
+        NetEmulator emulator = new NetEmulator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--in": emulator.inAddress = value; break;
+            case "--out": emulator.outAddress = value; break;
+            case "--server-in": emulator.serverIn = value; break;
+            case "--server-out": emulator.serverOut = value; break;
+            case "--profiles": emulator.profilesFile = value; break;
+            case "--profile": emulator.profileName = value; break;
+            case "--script": emulator.scriptName = value; break;
+            case "--seed": emulator.seed = Long.parseLong(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if ((emulator.serverIn == null) != (emulator.serverOut == null)) {
+            throw new IllegalArgumentException("--server-in and --server-out go together");
+        }
+        return emulator;
+    }
+    
+    public void start() throws IOException {
+        loadProfiles(Paths.get(profilesFile));
+        up = new EmulatedLink("up", seed);
+        down = new EmulatedLink("down", seed + 1);
+        if (scriptName != null) {
+            loadScript(scriptName);  // Perfect until its first step
+        } else {
+            setProfile(profileName);
+        }
+        
+        context = ZMQ.context(1);
+        xsubSocket = context.socket(ZMQ.XSUB);
+        xsubSocket.bind(inAddress);
+        xsubSocket.send(new byte[] { 1 }, 0);  // Subscribe to everything
+        xpubSocket = context.socket(ZMQ.XPUB);
+        xpubSocket.bind(outAddress);
+        if (serverIn != null) {
+            serverPubSocket = context.socket(ZMQ.PUB);
+            serverPubSocket.connect(serverIn);
+            serverSubSocket = context.socket(ZMQ.XSUB);
+            serverSubSocket.connect(serverOut);
+        }
+        
+        startedAt = lastStats = System.nanoTime();
+        advanceScript(startedAt);
+        System.out.println("Network emulator on " + inAddress + " -> " + outAddress
+                + (serverIn != null ? ", in front of " + serverIn + " / " + serverOut : ""));
+    }
+    
+    public void run() {
+        ZMQ.Poller poller = new ZMQ.Poller(3);
+        poller.register(xsubSocket, ZMQ.Poller.POLLIN);
+        poller.register(xpubSocket, ZMQ.Poller.POLLIN);
+        if (serverSubSocket != null) poller.register(serverSubSocket, ZMQ.Poller.POLLIN);
+        
+        while (! Thread.currentThread().isInterrupted()) {
+            long due = Math.min(up.nextDue(), down.nextDue());
+            long wait = due == Long.MAX_VALUE ? 100 : (due - System.nanoTime() + 999999) / 1000000;
+            poller.poll(Math.max(0, Math.min(100, wait)));
+            
+            long now = System.nanoTime();
+            receive(now);
+            deliver(now);
+            advanceScript(now);
+            
+            if (now - lastStats >= STATS_INTERVAL_NANOS) {
+                System.out.println(up.stats());
+                System.out.println(down.stats());
+                up.resetStats();
+                down.resetStats();
+                lastStats = now;
+            }
+        }
+        stop();
+    }
+    
+    public void stop() {
+        xsubSocket.close();
+        xpubSocket.close();
+        if (serverPubSocket != null) {
+            serverPubSocket.close();
+            serverSubSocket.close();
+        }
+        context.term();
+    }
+    
+    /**
+     * Switches both directions to a profile from the file. Any thread.
+     */
+    public void setProfile(String name) {
+        LinkProfile[] profile = profiles.get(name);
+        if (profile == null) throw new IllegalArgumentException("Unknown profile " + name);
+        setProfile(profile[0], profile[1]);
+        System.out.println("Profile " + name + ": up " + profile[0] + "; down " + profile[1]);
+    }
+    
+    public void setProfile(LinkProfile upProfile, LinkProfile downProfile) {
+        up.profile = upProfile;
+        down.profile = downProfile;
+    }
+    
+    // Everything waiting, without blocking
+    void receive(long now) {
+        byte[] topic;
+        while ((topic = xsubSocket.recv(ZMQ.DONTWAIT)) != null) {
+            if (! xsubSocket.hasReceiveMore()) continue;
+            up.offer(topic, xsubSocket.recv(), now);
+        }
+        // Subscriptions. As the broker we already take everything
+        byte[] subscription;
+        while ((subscription = xpubSocket.recv(ZMQ.DONTWAIT)) != null) {
+            if (serverSubSocket != null) serverSubSocket.send(subscription, 0);
+        }
+        if (serverSubSocket == null) return;
+        while ((topic = serverSubSocket.recv(ZMQ.DONTWAIT)) != null) {
+            if (! serverSubSocket.hasReceiveMore()) continue;
+            down.offer(topic, serverSubSocket.recv(), now);
+        }
+    }
+    
+    // Everything due
+    void deliver(long now) {
+        EmulatedLink.Message m;
+        while ((m = up.poll(now)) != null) {
+            if (serverPubSocket != null) {
+                serverPubSocket.sendMore(m.topic);
+                serverPubSocket.send(m.body, 0);
+            } else {
+                down.offer(m.topic, m.body, m.dueNanos);  // Straight back down
+            }
+        }
+        while ((m = down.poll(now)) != null) {
+            xpubSocket.sendMore(m.topic);
+            xpubSocket.send(m.body, 0);
+        }
+    }
+    
+    void advanceScript(long now) {
+        while (scriptStep < scriptAt.length && now - startedAt >= scriptAt[scriptStep]) {
+            setProfile(scriptProfiles[scriptStep++]);
+        }
+    }
+    
+    /*
+     * profiles:
+     *   name: {latency_ms: 50, loss_percent: 1, up: {bandwidth_kbps: 256}}
+     * scripts:
+     *   name: [{at: 0, profile: a}, {at: 30, profile: b}]
+     * 
+     * Settings at the top of a profile are both ways, up: and down: only
+     * the one. The file is optional; the perfect profile always exists.
+     */
+    void loadProfiles(Path path) throws IOException {
+        profiles.put(DEFAULT_PROFILE, new LinkProfile[] { new LinkProfile(), new LinkProfile() });
+        if (! Files.exists(path)) return;
+        Map<?, ?> root;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            root = (Map<?, ?>) new Yaml().load(reader);
+        }
+        if (root == null) return;
+        
+        Map<?, ?> named = (Map<?, ?>) root.get("profiles");
+        if (named != null) {
+            for (Map.Entry<?, ?> e : named.entrySet()) {
+                Map<?, ?> settings = e.getValue() != null
+                        ? (Map<?, ?>) e.getValue() : new HashMap<String, Object>();
+                LinkProfile both = new LinkProfile().with(settings);
+                LinkProfile upProfile = settings.containsKey("up")
+                        ? both.with((Map<?, ?>) settings.get("up")) : both;
+                LinkProfile downProfile = settings.containsKey("down")
+                        ? both.with((Map<?, ?>) settings.get("down")) : both;
+                profiles.put(String.valueOf(e.getKey()), new LinkProfile[] { upProfile, downProfile });
+            }
+        }
+        named = (Map<?, ?>) root.get("scripts");
+        if (named != null) {
+            for (Map.Entry<?, ?> e : named.entrySet()) {
+                scripts.put(String.valueOf(e.getKey()), (List<?>) e.getValue());
+            }
+        }
+    }
+    
+    void loadScript(String name) {
+        List<?> steps = scripts.get(name);
+        if (steps == null) throw new IllegalArgumentException("Unknown script " + name);
+        scriptAt = new long[steps.size()];
+        scriptProfiles = new String[steps.size()];
+        for (int i = 0; i < steps.size(); ++i) {
+            Map<?, ?> step = (Map<?, ?>) steps.get(i);
+            scriptAt[i] = (long) (((Number) step.get("at")).doubleValue() * 1000000000L);
+            scriptProfiles[i] = String.valueOf(step.get("profile"));
+            if (! profiles.containsKey(scriptProfiles[i])) {
+                throw new IllegalArgumentException("Unknown profile " + scriptProfiles[i]
+                        + " in script " + name);
+            }
+        }
+        System.out.println("Script " + name + ", " + steps.size() + " steps");
+    }
+}
@@ -0,0 +1,10 @@
+package mario.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a room's messages go out. The frame is only valid during the call.
+ */
+interface Publisher {
+    void publish(byte[] topic, ByteBuffer frame);
+}
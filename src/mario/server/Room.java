@@ -0,0 +1,154 @@
+package mario.server;
+
+import java.util.function.Supplier;
+
+import mario.net.Packet;
+import mario.net.PacketCodec;
+import mario.net.PacketType;
+import mario.sim.MarioBody;
+import mario.sim.MarioInput;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+import mario.sim.World;
+
+/**
+ * One match, as the server sees it.
+ * 
+ * Players' inputs queue up as they arrive. Each tick applies them to the
+ * world in order, a few at most per player so nobody runs faster by
+ * sending faster, then every player who has joined gets their state out
+ * with the seq of the last input it includes. Trampling is judged here
+ * and nowhere else.
+ */
+public class Room {
+    static final int INPUT_QUEUE = 64;  // Per player. Power of two
+    static final int MAX_INPUTS_PER_TICK = 4;  // Catching up after a stall, no faster
+    static final int REJOIN_GAP = 1000;  // Further back than this, the client has restarted
+    
+    final String id;
+    final int players;
+    final World world;
+    final MarioBody[] marios;
+    final byte[][] channels;
+    final PacketCodec[] codecs;  // One state stream each
+    final Packet packet = new Packet();
+    
+    // Queued inputs per player, (seq << 16) | input
+    final int[][] queue;
+    final int[] head;
+    final int[] tail;
+    final int[] lastSeq;  // Newest seq queued, -1 before any
+    final int[] appliedSeq;
+    final int[] sentSeq;  // Of the messages on each channel
+    boolean gameOverSent = false;
+    int tick = 0;
+    int lastInputTick = 0;
+    long droppedInputs = 0;
+    long rejoins = 0;
+    
+    // Where the registry put it
+    Shard shard;
+    int slot;
+    int generation;  // Of the slot, so what was queued for the room before is told apart
+    
+    public Room(String id, int players, TileMap map, Physics physics, float frictionalForce,
+            Supplier<PacketCodec> codecs) {
+        this.id = id;
+        this.players = players;
+        marios = new MarioBody[players];
+        channels = new byte[players][];
+        this.codecs = new PacketCodec[players];
+        queue = new int[players][INPUT_QUEUE];
+        head = new int[players];
+        tail = new int[players];
+        lastSeq = new int[players];
+        appliedSeq = new int[players];
+        sentSeq = new int[players];
+        for (int i = 0; i < players; ++i) {
+            marios[i] = new MarioBody();
+            marios[i].frictionalForce = frictionalForce;
+            channels[i] = GameServer.topic(id + GameServer.STATE_TOPIC + i);
+            this.codecs[i] = codecs.get();
+            lastSeq[i] = -1;
+        }
+        world = new World(map, marios, physics);
+        for (int i = 0; i < players; ++i) {
+            marios[i].respawn(i);
+        }
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public void onInput(int player, int seq, int input) {
+        if (player < 0 || player >= players) return;
+        if (lastSeq[player] >= 0) {
+            int delta = (short) (seq - lastSeq[player]);
+            if (delta < -REJOIN_GAP || delta < 0 && (input & MarioInput.RESPAWN) != 0) {
+                rejoin(player, seq);
+            } else if (delta <= 0) {
+                return;  // Late or twice
+            }
+        }
+        if (tail[player] - head[player] == INPUT_QUEUE) {
+            ++droppedInputs;
+            return;
+        }
+        queue[player][tail[player]++ & (INPUT_QUEUE - 1)] = seq << 16 | input & 0xFFFF;
+        lastSeq[player] = seq;
+        lastInputTick = tick;
+    }
+    
+    // The client started over with a new seq. What it sent before is moot
+    void rejoin(int player, int seq) {
+        head[player] = tail[player];
+        lastSeq[player] = -1;
+        appliedSeq[player] = (seq - 1) & 0xFFFF;
+        marios[player].respawn(player);
+        ++rejoins;
+    }
+    
+    public boolean isIdle(int ticks) {
+        return tick - lastInputTick > ticks;
+    }
+    
+    public void tick(Publisher out) {
+        for (int i = 0; i < players; ++i) {
+            for (int n = 0; n < MAX_INPUTS_PER_TICK && head[i] != tail[i]; ++n) {
+                int queued = queue[i][head[i]++ & (INPUT_QUEUE - 1)];
+                world.step(marios[i], queued & 0xFFFF);
+                appliedSeq[i] = queued >>> 16;
+            }
+        }
+        ++tick;
+        
+        // Somebody stepped on somebody
+        if (world.winner < 0) {
+            gameOverSent = false;
+        } else if (! gameOverSent) {
+            packet.type = PacketType.GAME_OVER;
+            packet.player = world.winner;
+            packet.whoWon = world.winner;
+            stamp(world.winner);
+            out.publish(channels[world.winner], codecs[world.winner].encode(packet));
+            gameOverSent = true;
+        }
+        
+        for (int i = 0; i < players; ++i) {
+            if (lastSeq[i] < 0) continue;  // Not here yet
+            packet.copyFrom(marios[i]);
+            packet.player = i;
+            packet.inputSeq = appliedSeq[i];
+            packet.tick = tick;
+            stamp(i);
+            out.publish(channels[i], codecs[i].encode(packet));
+        }
+    }
+    
+    // Numbers the packet on player's channel
+    void stamp(int player) {
+        packet.seq = sentSeq[player]++;
+        packet.sentAt = (int) (System.nanoTime() / 1000000);
+    }
+}
@@ -0,0 +1,98 @@
+package mario.server;
+
+import java.util.HashMap;
+import java.util.function.Supplier;
+
+import mario.net.PacketCodec;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+
+/**
+ * Which room lives on which shard. Network thread only.
+ * 
+ * New rooms go to the shard with the fewest, and the least busy of those.
+ * Rooms are all the same size and cost about the same, so the count is
+ * the better guess: busy time only shows a room a tick after it arrives.
+ */
+class RoomRegistry {
+    final Shard[] shards;
+    final HashMap<String, Room> rooms = new HashMap<String, Room>();
+    final int[][] freeSlots;  // Stack per shard
+    final int[] freeCount;
+    final int[][] generations;  // Of the last room in each slot, per shard
+    
+    final int players;
+    final TileMap map;
+    final Physics physics;
+    final float frictionalForce;
+    final Supplier<PacketCodec> codecs;
+    
+    RoomRegistry(Shard[] shards, int players, TileMap map, Physics physics,
+            float frictionalForce, Supplier<PacketCodec> codecs) {
+        this.shards = shards;
+        this.players = players;
+        this.map = map;
+        this.physics = physics;
+        this.frictionalForce = frictionalForce;
+        this.codecs = codecs;
+        freeSlots = new int[shards.length][Shard.MAX_ROOMS];
+        freeCount = new int[shards.length];
+        generations = new int[shards.length][Shard.MAX_ROOMS];
+        for (int s = 0; s < shards.length; ++s) {
+            for (int i = 0; i < Shard.MAX_ROOMS; ++i) {
+                freeSlots[s][i] = Shard.MAX_ROOMS - 1 - i;
+            }
+            freeCount[s] = Shard.MAX_ROOMS;
+        }
+    }
+    
+    // Null if every shard is full
+    Room getOrOpen(String id) {
+        Room room = rooms.get(id);
+        if (room != null) return room;
+        
+        Shard shard = leastLoaded();
+        if (shard == null) return null;
+        room = new Room(id, players, map, physics, frictionalForce, codecs);
+        room.shard = shard;
+        room.slot = freeSlots[shard.index][--freeCount[shard.index]];
+        room.generation = ++generations[shard.index][room.slot];
+        shard.slots[room.slot] = room;
+        if (! shard.post(Shard.KIND_OPEN, room, 0, 0, 0)) {
+            shard.slots[room.slot] = null;
+            ++freeCount[shard.index];
+            return null;
+        }
+        rooms.put(id, room);
+        return room;
+    }
+    
+    Shard leastLoaded() {
+        Shard best = null;
+        for (Shard shard : shards) {
+            if (freeCount[shard.index] == 0) continue;
+            if (best == null || freeCount[shard.index] > freeCount[best.index]
+                    || freeCount[shard.index] == freeCount[best.index]
+                    && shard.avgTickNanos < best.avgTickNanos) {
+                best = shard;
+            }
+        }
+        return best;
+    }
+    
+    // Forget the rooms the shards have closed
+    void reapClosed() {
+        for (Shard shard : shards) {
+            Room room;
+            while ((room = shard.closed.poll()) != null) {
+                rooms.remove(room.id);
+                freeSlots[shard.index][freeCount[shard.index]++] = room.slot;
+                System.out.println("Room " + room.id + " closed, " + rooms.size() + " in all");
+            }
+        }
+    }
+    
+    int size() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,186 @@
+package mario.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * A worker thread and the rooms pinned to it, one per core.
+ * 
+ * Each tick it takes whatever the network thread queued for it, then ticks
+ * all its rooms in one go and pushes what they publish back to the network
+ * thread, which owns the sockets the clients see. A room that has heard
+ * nothing from its players for a while is closed here, and the registry is
+ * told. Its slot goes to the next room opened, so inbox entries carry the
+ * generation of the room they were meant for, and are dropped if it's gone.
+ * 
+ * The load it reports is counted here and handed over a window at a time,
+ * as a Stats nobody writes to after.
+ * 
+ * Publishing never blocks: if the network thread falls behind by OUT_HWM
+ * messages, what the rooms publish is dropped and counted, and the ticks
+ * keep their time. The next state of each player supersedes it anyway.
+ */
+class Shard implements Runnable, Publisher {
+    static final int INBOX = 1 << 16;
+    static final int MAX_ROOMS = 1 << 16;  // Slots, as the inbox addresses them
+    static final int MAX_LATE_TICKS = 5;  // Further behind than this, skip instead
+    static final int GENERATION_MASK = 0x7F;
+    static final int OUT_HWM = 1 << 14;  // Messages queued for the network thread
+    
+    // Inbox entries: kind << 63 | generation << 56 | slot << 40 | player << 32
+    // | seq << 16 | input
+    static final long KIND_INPUT = 0;
+    static final long KIND_OPEN = 1;
+    
+    // One window of a shard's load
+    static final class Stats {
+        final int rooms;
+        final long ticks;
+        final long avgTickNanos;  // Busy time per tick
+        final long maxTickNanos;
+        final long lateTicks;
+        final long inputs;
+        final long droppedOut;  // Publishes the network thread had no room for
+        
+        Stats(int rooms, long ticks, long busyNanos, long maxTickNanos, long lateTicks,
+                long inputs, long droppedOut) {
+            this.rooms = rooms;
+            this.ticks = ticks;
+            this.avgTickNanos = ticks > 0 ? busyNanos / ticks : 0;
+            this.maxTickNanos = maxTickNanos;
+            this.lateTicks = lateTicks;
+            this.inputs = inputs;
+            this.droppedOut = droppedOut;
+        }
+    }
+    
+    final int index;
+    final long tickNanos;
+    final int idleTicks;
+    final long statsNanos;
+    final Context context;
+    final String outAddress;
+    Thread thread;
+    
+    final LongRing inbox = new LongRing(INBOX);
+    final Room[] slots = new Room[MAX_ROOMS];  // Filled in by the registry before it posts OPEN
+    final ArrayList<Room> rooms = new ArrayList<Room>();  // Ours, this thread only
+    final ConcurrentLinkedQueue<Room> closed = new ConcurrentLinkedQueue<Room>();
+    Socket pushSocket;
+    
+    // Load, written by this thread, read by anyone
+    volatile int roomCount = 0;
+    volatile long avgTickNanos = 0;  // Busy time per tick, smoothed
+    volatile Stats stats = new Stats(0, 0, 0, 0, 0, 0, 0);  // The last whole window
+    // The window so far, this thread only
+    long windowStart, windowTicks, windowBusy, windowMax, windowLate, windowInputs;
+    long windowDroppedOut;
+    // Network thread only
+    long droppedInputs = 0;
+    
+    Shard(int index, long tickNanos, int idleTicks, long statsNanos, Context context,
+            String outAddress) {
+        this.index = index;
+        this.tickNanos = tickNanos;
+        this.idleTicks = idleTicks;
+        this.statsNanos = statsNanos;
+        this.context = context;
+        this.outAddress = outAddress;
+    }
+    
+    void start() {
+        thread = new Thread(this, "shard-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    // Network thread
+    boolean post(long kind, Room room, int player, int seq, int input) {
+        return inbox.offer(kind << 63 | (long) (room.generation & GENERATION_MASK) << 56
+                | (long) room.slot << 40 | (long) (player & 0xFF) << 32
+                | (long) (seq & 0xFFFF) << 16 | input & 0xFFFF);
+    }
+    
+    public void run() {
+        pushSocket = context.socket(ZMQ.PUSH);
+        pushSocket.setSndHWM(OUT_HWM);
+        pushSocket.connect(outAddress);
+        
+        long nextTick = System.nanoTime();
+        windowStart = nextTick;
+        while (! Thread.currentThread().isInterrupted()) {
+            long wait = nextTick - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            
+            long start = System.nanoTime();
+            inbox.drain(this::onEntry);
+            for (int i = rooms.size() - 1; i >= 0; --i) {
+                Room room = rooms.get(i);
+                if (room.isIdle(idleTicks)) close(i);
+                else room.tick(this);
+            }
+            long busy = System.nanoTime() - start;
+            
+            avgTickNanos += (busy - avgTickNanos) >> 4;
+            ++windowTicks;
+            windowBusy += busy;
+            if (busy > windowMax) windowMax = busy;
+            if (start - nextTick > tickNanos) ++windowLate;
+            if (start - windowStart >= statsNanos) {
+                stats = new Stats(rooms.size(), windowTicks, windowBusy, windowMax, windowLate,
+                        windowInputs, windowDroppedOut);
+                windowStart = start;
+                windowTicks = windowBusy = windowMax = windowLate = windowInputs = 0;
+                windowDroppedOut = 0;
+            }
+            nextTick += tickNanos;
+            if (start - nextTick > MAX_LATE_TICKS * tickNanos) nextTick = start;
+        }
+        pushSocket.close();
+    }
+    
+    void onEntry(long entry) {
+        int slot = (int) (entry >>> 40) & 0xFFFF;
+        Room room = slots[slot];
+        if (room == null || (room.generation & GENERATION_MASK) != ((int) (entry >>> 56)
+                & GENERATION_MASK)) {
+            return;  // Closed while this was on its way, and maybe the slot reused
+        }
+        if (entry >>> 63 == KIND_OPEN) {
+            rooms.add(room);
+            roomCount = rooms.size();
+        } else {
+            room.onInput((int) (entry >>> 32) & 0xFF, (int) (entry >>> 16) & 0xFFFF,
+                    (int) entry & 0xFFFF);
+            ++windowInputs;
+        }
+    }
+    
+    void close(int i) {
+        Room room = rooms.get(i);
+        rooms.set(i, rooms.get(rooms.size() - 1));
+        rooms.remove(rooms.size() - 1);
+        roomCount = rooms.size();
+        slots[room.slot] = null;
+        closed.add(room);
+    }
+    
+    public void publish(byte[] topic, ByteBuffer frame) {
+        if (! pushSocket.send(topic, ZMQ.SNDMORE | ZMQ.DONTWAIT)) {
+            ++windowDroppedOut;
+            return;
+        }
+        // Once the first part is in, ZeroMQ takes the rest of the message
+        pushSocket.send(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(),
+                ZMQ.DONTWAIT);
+    }
+}
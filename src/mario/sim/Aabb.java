@@ -0,0 +1,25 @@
+package mario.sim;
+
+/**
+ * An axis aligned box, edges included: a point on one is inside. Meant to
+ * be kept and set in place every tick, not allocated.
+ */
+public class Aabb {
+    public float minX, minY, maxX, maxY;
+    
+    public Aabb set(float minX, float minY, float maxX, float maxY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        return this;
+    }
+    
+    public boolean contains(float x, float y) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+    
+    public boolean overlaps(Aabb other) {
+        return other.maxX >= minX && other.minX <= maxX && other.maxY >= minY && other.minY <= maxY;
+    }
+}
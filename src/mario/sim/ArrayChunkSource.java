@@ -0,0 +1,31 @@
+package mario.sim;
+
+/**
+ * Chunks cut from a whole level already in memory, as parsed from map.txt.
+ */
+public class ArrayChunkSource implements ChunkSource {
+    final int width, height;
+    final byte[] tiles;  // [bY * width + bX]
+    
+    public ArrayChunkSource(int width, int height, byte[] tiles) {
+        this.width = width;
+        this.height = height;
+        this.tiles = tiles;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public void read(int chunk, byte[] out) {
+        int bX0 = chunk * TileMap.CHUNK_WIDTH;
+        int columns = Math.min(TileMap.CHUNK_WIDTH, width - bX0);
+        for (int bY = 0; bY < height; ++bY) {
+            System.arraycopy(tiles, bY * width + bX0, out, bY * TileMap.CHUNK_WIDTH, columns);
+        }
+    }
+}
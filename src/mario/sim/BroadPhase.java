@@ -0,0 +1,85 @@
+package mario.sim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sort and sweep along x, to find who might trample whom without checking
+ * every pair. The level is long and low, so x alone keeps most marios
+ * apart.
+ * 
+ * sort() orders the marios by x. It is an insertion sort, so when little
+ * has changed since the last one, as from one tick to the next, it costs a
+ * single pass. Marios may move after it, by at most the margin given.
+ */
+public class BroadPhase {
+    MarioBody[] sorted;
+    float[] keys;  // x of each, when sorted
+    float margin;
+    float maxWidth;
+    
+    public BroadPhase(MarioBody[] marios) {
+        sorted = marios.clone();
+        keys = new float[marios.length];
+    }
+    
+    public void sort(float margin) {
+        this.margin = margin;
+        maxWidth = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            MarioBody mario = sorted[i];
+            float key = mario.x;
+            int j = i - 1;
+            while (j >= 0 && keys[j] > key) {
+                sorted[j + 1] = sorted[j];
+                keys[j + 1] = keys[j];
+                --j;
+            }
+            sorted[j + 1] = mario;
+            keys[j + 1] = key;
+            if (mario.width > maxWidth) maxWidth = mario.width;
+        }
+    }
+    
+    // Index of the first mario that may overlap x from minX to maxX
+    public int first(float minX) {
+        float key = minX - maxWidth - margin;
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+    
+    // False once i is past everything that may overlap up to maxX
+    public boolean inRange(int i, float maxX) {
+        return i < keys.length && keys[i] <= maxX + margin;
+    }
+    
+    public MarioBody get(int i) {
+        return sorted[i];
+    }
+    
+    // The order matters to the next sort, where marios share an x
+    void save(ByteBuffer buf, MarioBody[] marios) {
+        for (int i = 0; i < sorted.length; ++i) {
+            int num = 0;
+            while (marios[num] != sorted[i]) ++num;
+            buf.putShort((short) num);
+            buf.putFloat(keys[i]);
+        }
+        buf.putFloat(margin);
+        buf.putFloat(maxWidth);
+    }
+    
+    void restore(ByteBuffer buf, MarioBody[] marios) {
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = marios[buf.getShort()];
+            keys[i] = buf.getFloat();
+        }
+        margin = buf.getFloat();
+        maxWidth = buf.getFloat();
+    }
+}
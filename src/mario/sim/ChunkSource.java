@@ -0,0 +1,18 @@
+package mario.sim;
+
+/**
+ * Where TileMap gets its chunks from, one at a time, as it needs them.
+ * Must be safe to call from several threads: servers share one map
+ * between all their rooms.
+ */
+public interface ChunkSource {
+    int getWidth();   // Tiles
+    int getHeight();
+    
+    /**
+     * Fills tiles with chunk number chunk, height rows of
+     * TileMap.CHUNK_WIDTH tile ids each. Columns past the level's width
+     * are air.
+     */
+    void read(int chunk, byte[] tiles);
+}
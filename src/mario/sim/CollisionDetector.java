@@ -0,0 +1,134 @@
+package mario.sim;
+
+/**
+ * Boxes moving through the tile grid. A sweep looks only at the cells the
+ * box crosses, column by column in the order it crosses them, and stops at
+ * the first face it touches, so nothing is skipped however fast it goes.
+ */
+public class CollisionDetector {
+    TileMap map;
+    
+    // Reused, one world ticks on one thread
+    private final Aabb box = new Aabb();
+    private final Contact contact = new Contact();
+    
+    public CollisionDetector(TileMap map) {
+        this.map = map;
+    }
+    
+    /**
+     * Sweeps the box of mario by (dx, dy). The result is reused by the next
+     * call.
+     */
+    public Contact sweep(MarioBody mario, float dx, float dy) {
+        box.set(mario.x, mario.y, mario.x + mario.width, mario.y + mario.height);
+        return sweep(box, dx, dy, contact);
+    }
+    
+    /**
+     * The first contact of box with a solid tile on its way by (dx, dy), into
+     * out. Tiles it already overlaps, or only slides along, don't count.
+     */
+    public Contact sweep(Aabb box, float dx, float dy, Contact out) {
+        out.clear();
+        if (dx == 0 && dy == 0) return out;
+        
+        // The columns the box crosses, in order
+        int firstColumn, lastColumn, columnStep;
+        if (dx > 0) {
+            firstColumn = column(box.minX);
+            lastColumn = column(box.maxX + dx);
+            columnStep = 1;
+        } else if (dx < 0) {
+            firstColumn = column(box.maxX);
+            lastColumn = column(box.minX + dx);
+            columnStep = -1;
+        } else {
+            firstColumn = column(box.minX);
+            lastColumn = column(box.maxX);
+            columnStep = 1;
+        }
+        
+        for (int bX = firstColumn; ; bX += columnStep) {
+            // When the box is in this column
+            float left = bX * TileMap.TILE_SIZE + TileMap.BLOCK_OFFSET;
+            float right = left + TileMap.TILE_SIZE;
+            float enter = 0, exit = 1;
+            if (dx > 0) {
+                enter = Math.max(0, (left - box.maxX) / dx);
+                exit = Math.min(1, (right - box.minX) / dx);
+            } else if (dx < 0) {
+                enter = Math.max(0, (right - box.minX) / dx);
+                exit = Math.min(1, (left - box.maxX) / dx);
+            }
+            if (enter > out.time) break;  // Already hit something before getting here
+            
+            // And the rows it covers meanwhile
+            float top = box.minY + Math.min(dy * enter, dy * exit);
+            float bottom = box.maxY + Math.max(dy * enter, dy * exit);
+            for (int bY = row(top), lastRow = row(bottom); bY <= lastRow; ++bY) {
+                if (map.isSolid(bX, bY)) touch(box, dx, dy, left, bY * TileMap.TILE_SIZE, out);
+            }
+            
+            if (bX == lastColumn) break;
+        }
+        return out;
+    }
+    
+    // Swept box against one tile, by the separating axes. Keeps the earliest
+    private void touch(Aabb box, float dx, float dy, float left, float top, Contact out) {
+        float right = left + TileMap.TILE_SIZE;
+        float bottom = top + TileMap.TILE_SIZE;
+        
+        float enterX, exitX;
+        if (dx > 0) {
+            enterX = (left - box.maxX) / dx;
+            exitX = (right - box.minX) / dx;
+        } else if (dx < 0) {
+            enterX = (right - box.minX) / dx;
+            exitX = (left - box.maxX) / dx;
+        } else {
+            if (box.maxX <= left || box.minX >= right) return;
+            enterX = Float.NEGATIVE_INFINITY;
+            exitX = Float.POSITIVE_INFINITY;
+        }
+        
+        float enterY, exitY;
+        if (dy > 0) {
+            enterY = (top - box.maxY) / dy;
+            exitY = (bottom - box.minY) / dy;
+        } else if (dy < 0) {
+            enterY = (bottom - box.minY) / dy;
+            exitY = (top - box.maxY) / dy;
+        } else {
+            if (box.maxY <= top || box.minY >= bottom) return;
+            enterY = Float.NEGATIVE_INFINITY;
+            exitY = Float.POSITIVE_INFINITY;
+        }
+        
+        float enter = Math.max(enterX, enterY);
+        float exit = Math.min(exitX, exitY);
+        if (enter >= exit || enter < 0 || enter > 1) return;
+        if (out.hit && enter >= out.time) return;
+        
+        out.hit = true;
+        out.time = enter;
+        if (enterX > enterY) {
+            out.normalX = dx > 0 ? -1 : 1;
+            out.normalY = 0;
+            out.edge = dx > 0 ? left : right;
+        } else {
+            out.normalX = 0;
+            out.normalY = dy > 0 ? -1 : 1;
+            out.edge = dy > 0 ? top : bottom;
+        }
+    }
+    
+    private int column(float x) {
+        return (int) Math.floor((x - TileMap.BLOCK_OFFSET) / TileMap.TILE_SIZE);
+    }
+    
+    private int row(float y) {
+        return (int) Math.floor(y / TileMap.TILE_SIZE);
+    }
+}
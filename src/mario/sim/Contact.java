@@ -0,0 +1,20 @@
+package mario.sim;
+
+/**
+ * Where a sweep first touched a solid tile: as a fraction of the move, the
+ * tile's face it touched, and that face's coordinate, to land on exactly.
+ */
+public class Contact {
+    public boolean hit;
+    public float time;  // 0 to 1. 1 if nothing was hit
+    public float normalX, normalY;  // Away from the tile, -1, 0 or 1
+    public float edge;  // X of the face if normalX != 0, else its y
+    
+    void clear() {
+        hit = false;
+        time = 1;
+        normalX = 0;
+        normalY = 0;
+        edge = 0;
+    }
+}
@@ -0,0 +1,10 @@
+package mario.sim;
+
+public class Coordinate {
+    public float x = 0, y = 0;
+    
+    public Coordinate(float x, float y) {
+        this.x = x;
+        this.y = y;
+    }
+}
@@ -0,0 +1,23 @@
+package mario.sim;
+
+public class EnemyCollisionDetector {
+    private final Aabb enemyHead = new Aabb();  // Reused, one world ticks on one thread
+    
+    /**
+     * Whether marioMe, falling, has either foot inside the head of
+     * the enemy.
+     */
+    public HitType isTrample(MarioBody marioMe, MarioBody enemy) {
+        if (marioMe.vy < 0.1) return HitType.NONE;
+        
+        enemy.getHitboxHead(enemyHead);
+        float footY = marioMe.y + marioMe.height;
+        if (enemyHead.contains(marioMe.x + 2, footY)
+                || enemyHead.contains(marioMe.x + marioMe.width - 2, footY)) {
+            return HitType.ENEMY;
+        }
+        
+        // Not hit
+        return HitType.NONE;
+    }
+}
@@ -0,0 +1,6 @@
+package mario.sim;
+
+public enum HitType {
+    NONE,
+    ENEMY
+}
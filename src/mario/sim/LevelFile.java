@@ -0,0 +1,110 @@
+package mario.sim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A level on disk, laid out chunk after chunk so a chunk is one read.
+ * Little endian.
+ * 
+ *  0  magic           4    "MLVL"
+ *  4  version         u16
+ *  6  chunkWidth      u16  TileMap.CHUNK_WIDTH
+ *  8  width           u32  Tiles
+ * 12  height          u32
+ * 16  maxX            f32  Pixels
+ * 20  floorY          f32
+ * 24  princessX       f32
+ * 28  sourceHash      u32  CRC-32 of the text it was compiled from, or 0
+ * 32  checksum        u32  CRC-32 of bytes 0 to 32 and the tiles
+ * 36  tiles           u8   Per chunk, height rows of chunkWidth tile ids
+ */
+public class LevelFile {
+    static final int MAGIC = 'M' | 'L' << 8 | 'V' << 16 | 'L' << 24;
+    static final int VERSION = 2;
+    static final int CHECKSUM_OFFSET = 32;
+    static final int HEADER_SIZE = 36;
+    
+    public static void write(TileMap map, Path path) throws IOException {
+        write(map, path, 0);
+    }
+    
+    public static void write(TileMap map, Path path, int sourceHash) throws IOException {
+        int chunkSize = TileMap.CHUNK_WIDTH * map.getHeight();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + map.getChunkCount() * chunkSize);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) TileMap.CHUNK_WIDTH);
+        buf.putInt(map.getWidth());
+        buf.putInt(map.getHeight());
+        buf.putFloat(map.getMaxX());
+        buf.putFloat(map.getFloorY());
+        buf.putFloat(map.getPrincessX());
+        buf.putInt(sourceHash);
+        buf.putInt(0);
+        for (int c = 0; c < map.getChunkCount(); ++c) {
+            buf.put(map.chunk(c).tiles);
+        }
+        buf.putInt(CHECKSUM_OFFSET, checksum(buf));
+        Files.write(path, buf.array());
+    }
+    
+    // What write() was given, without reading any further
+    public static int readSourceHash(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0);
+            if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC
+                    || header.getShort(4) != VERSION) {
+                throw new IOException(path + " is not a version " + VERSION + " level");
+            }
+            return header.getInt(28);
+        }
+    }
+    
+    // Of the whole buffer, the checksum field taken as 0
+    static int checksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = buf.duplicate();
+        view.clear();
+        view.limit(CHECKSUM_OFFSET);
+        crc.update(view);
+        crc.update(new byte[4], 0, 4);
+        view.limit(buf.capacity());
+        view.position(HEADER_SIZE);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+    
+    // Maps the file. Throws IOException if it isn't a level we can read
+    public static TileMap open(Path path) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC
+                || buf.getShort(4) != VERSION || buf.getShort(6) != TileMap.CHUNK_WIDTH) {
+            throw new IOException(path + " is not a version " + VERSION + " level");
+        }
+        int width = buf.getInt(8);
+        int height = buf.getInt(12);
+        int chunks = (width + TileMap.CHUNK_WIDTH - 1) / TileMap.CHUNK_WIDTH;
+        if (width < 0 || height < 0
+                || buf.limit() != HEADER_SIZE + (long) chunks * TileMap.CHUNK_WIDTH * height) {
+            throw new IOException(path + " is truncated");
+        }
+        if (checksum(buf) != buf.getInt(CHECKSUM_OFFSET)) {
+            throw new IOException(path + " is corrupt");
+        }
+        return new TileMap(new MappedChunkSource(buf, HEADER_SIZE, width, height),
+                buf.getFloat(16), buf.getFloat(20), buf.getFloat(24));
+    }
+}
@@ -0,0 +1,104 @@
+package mario.sim;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Finds level name in a data folder.
+ * 
+ * name.lvl is a cache of name.txt, with its bounds from name.yml, compiled.
+ * If the text has changed since, or the cache is missing or broken, we
+ * compile the text again and write a new cache for next time. A level
+ * shipped as name.lvl alone is simply mapped.
+ * 
+ * Compile ahead of time, for a server or a release, with
+ * 
+ *   gradle compileLevel -Plevel=map
+ */
+public class LevelLoader {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: LevelLoader <data folder> <level name>");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[0]);
+        TileMap map = compile(dir, args[1], true);
+        System.out.println(dir.resolve(args[1] + ".lvl") + ": " + map.getWidth() + " x "
+                + map.getHeight() + " tiles, " + map.getChunkCount() + " chunks");
+    }
+    
+    public static TileMap load(Path dir, String name) throws IOException {
+        Path binary = dir.resolve(name + ".lvl");
+        if (! Files.exists(dir.resolve(name + ".txt"))) return LevelFile.open(binary);
+        
+        // The cache, if it is of this text
+        int sourceHash = hashSource(dir, name);
+        if (Files.exists(binary)) {
+            try {
+                if (LevelFile.readSourceHash(binary) == sourceHash) return LevelFile.open(binary);
+            } catch (IOException e) {
+                System.out.println(binary + " can't be used, compiling again: " + e.getMessage());
+            }
+        }
+        return compile(dir, name, false);
+    }
+    
+    /**
+     * Compiles name.txt and name.yml into name.lvl. Failing to write it is
+     * only fatal if strict.
+     */
+    public static TileMap compile(Path dir, String name, boolean strict) throws IOException {
+        String text = new String(Files.readAllBytes(dir.resolve(name + ".txt")), StandardCharsets.UTF_8);
+        Path infoPath = dir.resolve(name + ".yml");
+        String info = Files.exists(infoPath)
+                ? new String(Files.readAllBytes(infoPath), StandardCharsets.UTF_8) : "";
+        TileMap map = compile(text, info);
+        
+        Path binary = dir.resolve(name + ".lvl");
+        try {
+            LevelFile.write(map, binary, hashSource(dir, name));
+        } catch (IOException e) {
+            if (strict) throw e;
+            System.out.println("Can't cache " + binary + ": " + e.getMessage());
+        }
+        return map;
+    }
+    
+    // Of the text and the bounds together
+    static int hashSource(Path dir, String name) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(dir.resolve(name + ".txt")));
+        Path info = dir.resolve(name + ".yml");
+        if (Files.exists(info)) crc.update(Files.readAllBytes(info));
+        return (int) crc.getValue();
+    }
+    
+    static TileMap compile(String text, String info) {
+        String[] lines = text.split("\\r?\\n");
+        TileMap map = new TileMap(lines);
+        readInfo(info, map);
+        return map;
+    }
+    
+    // Bounds it doesn't have stay the defaults
+    static void readInfo(String text, TileMap map) {
+        Map<?, ?> info = (Map<?, ?>) new Yaml().load(new StringReader(text));
+        if (info == null) return;
+        map.setBounds(getFloat(info, "max_x", map.getMaxX()),
+                getFloat(info, "floor_y", map.getFloorY()),
+                getFloat(info, "princess_x", map.getPrincessX()));
+    }
+    
+    static float getFloat(Map<?, ?> info, String key, float otherwise) {
+        Object value = info.get(key);
+        return value instanceof Number ? ((Number) value).floatValue() : otherwise;
+    }
+}
@@ -0,0 +1,35 @@
+package mario.sim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Chunks read out of a level file mapped into memory. The operating system
+ * pages in only what gets read, so the level can be far larger than what
+ * we keep of it.
+ */
+class MappedChunkSource implements ChunkSource {
+    final ByteBuffer buffer;  // Never moved, only duplicated
+    final int tilesOffset;
+    final int width, height;
+    
+    MappedChunkSource(ByteBuffer buffer, int tilesOffset, int width, int height) {
+        this.buffer = buffer;
+        this.tilesOffset = tilesOffset;
+        this.width = width;
+        this.height = height;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public void read(int chunk, byte[] out) {
+        ByteBuffer view = buffer.duplicate();  // Own position, for other threads' sake
+        view.position(tilesOffset + chunk * TileMap.CHUNK_WIDTH * height);
+        view.get(out, 0, TileMap.CHUNK_WIDTH * height);
+    }
+}
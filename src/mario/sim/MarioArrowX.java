@@ -0,0 +1,7 @@
+package mario.sim;
+
+public enum MarioArrowX {
+    NONE,
+    LEFT,
+    RIGHT
+}
@@ -0,0 +1,7 @@
+package mario.sim;
+
+public enum MarioArrowY {
+    NONE,
+    UP,
+    DOWN
+}
@@ -0,0 +1,306 @@
+package mario.sim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Mario as the simulation sees it: space state, motion state and keyboard
+ * state, and the physics stepping them. Knows nothing about sprites.
+ */
+public class MarioBody {
+    public static final int WIDTH = 14 * TileMap.ASSET_SCALE;  // Standing sprite
+    public static final int HEIGHT = 20 * TileMap.ASSET_SCALE;
+    
+    // Space state
+    public int width = WIDTH, height = HEIGHT;
+    public float x = 150, y = 0;
+    public float vx = 0;
+    public float vy = 0;
+    public float ax = 0;
+    public float ay = World.GRAVITY;
+    
+    // Force state
+    public float frictionalForce = 0;  // At Physics.BASE_TICK_RATE, like the config
+    
+    Physics physics = Physics.BASE;
+    
+    // Motion state
+    public MotionState motionState = MotionState.JUMPING;
+    public MarioFace faceState = MarioFace.FACE_RIGHT;
+
+    // Keyboard State
+    public MarioArrowX arrowX = MarioArrowX.NONE;
+    public MarioArrowY arrowY = MarioArrowY.NONE;
+    public boolean jumpPressed = false;
+    
+    public boolean boostJumping = false;
+    
+    // Only the owner judges its own trampling. FTS: Favor The Shooter
+    public boolean judgesTrample = true;
+    
+    // False for a remote Mario that something else places every tick
+    public boolean simulated = true;
+    
+    public void update(World world) {
+        _updateMotion();
+        _updateSpeed();
+        _updatePosition(world);
+    }
+    
+    public float getCenterX() {
+        return x + 0.5f * width;
+    }
+    
+    // Into out, which is returned. Two pixels in on each side
+    public Aabb getHitbox(Aabb out) {
+        return out.set(x + 2, y, x + width - 2, y + height);
+    }
+    
+    // The part of the hitbox above the feet, where one is trampled
+    public Aabb getHitboxHead(Aabb out) {
+        return out.set(x + 2, y, x + width - 2, y + height - 25);
+    }
+    
+    // Space, force, motion and keyboard state, not the settings
+    public void copyFrom(MarioBody other) {
+        x = other.x;
+        y = other.y;
+        vx = other.vx;
+        vy = other.vy;
+        ax = other.ax;
+        ay = other.ay;
+        frictionalForce = other.frictionalForce;
+        motionState = other.motionState;
+        faceState = other.faceState;
+        arrowX = other.arrowX;
+        arrowY = other.arrowY;
+        jumpPressed = other.jumpPressed;
+        boostJumping = other.boostJumping;
+    }
+    
+    /**
+     * Everything but the physics, settings too, for a match log. 37 bytes.
+     */
+    public void save(ByteBuffer buf) {
+        buf.putShort((short) width);
+        buf.putShort((short) height);
+        buf.putFloat(x);
+        buf.putFloat(y);
+        buf.putFloat(vx);
+        buf.putFloat(vy);
+        buf.putFloat(ax);
+        buf.putFloat(ay);
+        buf.putFloat(frictionalForce);
+        buf.put((byte) motionState.ordinal());
+        buf.put((byte) faceState.ordinal());
+        buf.put((byte) arrowX.ordinal());
+        buf.put((byte) arrowY.ordinal());
+        buf.put((byte) ((jumpPressed ? 1 : 0) | (boostJumping ? 2 : 0)
+                | (judgesTrample ? 4 : 0) | (simulated ? 8 : 0)));
+    }
+    
+    public void restore(ByteBuffer buf) {
+        width = buf.getShort();
+        height = buf.getShort();
+        x = buf.getFloat();
+        y = buf.getFloat();
+        vx = buf.getFloat();
+        vy = buf.getFloat();
+        ax = buf.getFloat();
+        ay = buf.getFloat();
+        frictionalForce = buf.getFloat();
+        motionState = MotionState.values()[buf.get()];
+        faceState = MarioFace.values()[buf.get()];
+        arrowX = MarioArrowX.values()[buf.get()];
+        arrowY = MarioArrowY.values()[buf.get()];
+        int flags = buf.get();
+        jumpPressed = (flags & 1) != 0;
+        boostJumping = (flags & 2) != 0;
+        judgesTrample = (flags & 4) != 0;
+        simulated = (flags & 8) != 0;
+    }
+    
+    public void setPhysics(Physics physics) {
+        this.physics = physics;
+        ay = physics.gravity;
+    }
+    
+    // Put back to where player num starts, standing still
+    public void respawn(int num) {
+        x = World.spawnX(num);
+        y = 0;
+        vx = 0;
+        vy = 0;
+        ax = 0;
+        ay = physics.gravity;
+    }
+    
+    /**
+     * Applies the MarioInput bits of one tick. Presses before releases.
+     */
+    public void applyInput(int input) {
+        if (input == MarioInput.NONE) return;
+        
+        if ((input & MarioInput.JUMP) != 0) _jump();
+        if ((input & MarioInput.LEFT) != 0) _left();
+        if ((input & MarioInput.RIGHT) != 0) _right();
+        if ((input & MarioInput.UP) != 0) arrowY = MarioArrowY.UP;
+        if ((input & MarioInput.DOWN) != 0) arrowY = MarioArrowY.DOWN;
+        if ((input & MarioInput.RELEASE_JUMP) != 0) jumpPressed = false;
+        if ((input & MarioInput.RELEASE_LEFT) != 0) {
+            if (arrowX == MarioArrowX.LEFT) arrowX = MarioArrowX.NONE;
+        }
+        if ((input & MarioInput.RELEASE_RIGHT) != 0) {
+            if (arrowX == MarioArrowX.RIGHT) arrowX = MarioArrowX.NONE;
+        }
+        if ((input & MarioInput.RELEASE_UP) != 0) {
+            if (arrowY == MarioArrowY.UP) arrowY = MarioArrowY.NONE;
+        }
+        if ((input & MarioInput.RELEASE_DOWN) != 0) {
+            if (arrowY == MarioArrowY.DOWN) arrowY = MarioArrowY.NONE;
+        }
+    }
+
+    public void _jump() {
+        if (motionState != MotionState.JUMPING) {
+            motionState = MotionState.JUMPING;
+            vy = -physics.marioJumpForce;  // Bounce up!  위로 튕겨주다!
+        }
+        jumpPressed = true;
+    }
+    
+    public void _boostJump() {
+        if (! boostJumping) {
+            boostJumping = true;
+            vy -= physics.boostJumpForce;
+        }
+    }
+    
+    public void _disJump() {
+        // Release the jumping state
+        if (motionState == MotionState.JUMPING) motionState = MotionState.STANDING;
+        boostJumping = false;
+        vy = 0;
+    }
+    
+    public void _friction() {
+        // Damping to break
+        float friction = frictionalForce * physics.accelerationScale;
+        if (vx > 0 && motionState != MotionState.JUMPING) ax = -friction;
+        else if (vx < 0 && motionState != MotionState.JUMPING) ax = friction;
+    }
+
+    public void _left() {
+        // Turn the face to left
+        arrowX = MarioArrowX.LEFT;
+        
+        faceState = MarioFace.FACE_LEFT;
+        // Run, if were standing. 서있던거면 달려라
+        if (motionState == MotionState.STANDING) motionState = MotionState.RUNNING;
+        
+        // Give a force to left
+        if (vx > 0) vx = 0;
+        ax = -physics.marioForce;
+    }
+    
+    public void _right() {
+        arrowX = MarioArrowX.RIGHT;
+        
+        // Turn the face to right
+        faceState = MarioFace.FACE_RIGHT;
+        // Run, if were standing. 서있던거면 달려라
+        if (motionState == MotionState.STANDING) motionState = MotionState.RUNNING;
+        
+        // Give a force to right
+        if (vx < 0) vx = 0;
+        ax = physics.marioForce;
+    }
+    
+    public void _updateMotion() {
+        if (arrowX == MarioArrowX.LEFT) {
+            faceState = MarioFace.FACE_LEFT;
+            
+            if (motionState == MotionState.STANDING) {  // 달리기 로직
+                motionState = MotionState.RUNNING;
+            }
+        } else if (arrowX == MarioArrowX.RIGHT) {
+            faceState = MarioFace.FACE_RIGHT;
+            if (motionState == MotionState.STANDING) {  // 달리기 로직
+                motionState = MotionState.RUNNING;
+            }
+        } else if (arrowX == MarioArrowX.NONE) {
+            // Stopping logic
+            if (motionState == MotionState.RUNNING) motionState = MotionState.STANDING;
+            _friction();
+        }
+    }
+    
+    public void _updateSpeed() {
+        // Y-axis
+        vy += ay;
+        // Boost jump
+        if (vy < 0 && vy > -physics.boostJumpMaxVy && jumpPressed && ! boostJumping) _boostJump();
+        
+        // X-axis
+        float previousVx = vx;
+        vx += ax;
+        // Limit speed
+        if (Math.abs(vx) > physics.marioVxLimit) {
+            if (vx > 0) {
+                vx = physics.marioVxLimit;
+            } else {
+                vx = -physics.marioVxLimit;
+            }
+        } else if (Math.abs(vx) < physics.marioForce) {
+            vx = 0;
+            ax = 0;
+        } else if (previousVx * vx < 0) {  // Symbol changed
+            vx = 0;
+            ax = 0;
+        }
+    }
+
+    public void _updatePosition(World world) {
+        // Game Over?
+        if (world.winner >= 0) return;
+        
+        // Move X, as far as the first tile on the way
+        Contact contact = world.collisionDetector.sweep(this, vx, 0);
+        if (contact.hit) {
+            x = contact.normalX < 0 ? contact.edge - width : contact.edge;
+            vx = 0;
+        } else {
+            x += vx;
+        }
+        if (x < 0) x = 0;
+        if (x > world.map.getMaxX()) x = world.map.getMaxX();
+        
+        // Then Y
+        contact = world.collisionDetector.sweep(this, 0, vy);
+        if (contact.hit && contact.normalY > 0) {  // Head
+            y = contact.edge;
+            vy = 0;
+        } else if (contact.hit) {  // Feet
+            y = contact.edge - height;
+            _disJump();
+        } else {
+            y += vy;
+        }
+        if (y > world.map.getFloorY() - height) {
+            y = world.map.getFloorY() - height;
+            _disJump();
+        }
+        
+        // Enemy Collision Detection
+        if (judgesTrample) {  // 고스트는 밟기 판정 안함
+            BroadPhase broadPhase = world.broadPhase;
+            for (int i = broadPhase.first(x); broadPhase.inRange(i, x + width); ++i) {
+                MarioBody enemy = broadPhase.get(i);
+                if (enemy == this) continue;
+                if (world.enemyCD.isTrample(this, enemy) == HitType.ENEMY) {
+                    world.onTrample(this);
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package mario.sim;
+
+public enum MarioFace {
+    FACE_LEFT, FACE_RIGHT, FACE_FRONT
+}
@@ -0,0 +1,20 @@
+package mario.sim;
+
+/**
+ * Keyboard events of one tick, packed into the bits of an int.
+ */
+public class MarioInput {
+    public static final int NONE = 0;
+    public static final int JUMP = 1;
+    public static final int LEFT = 1 << 1;
+    public static final int RIGHT = 1 << 2;
+    public static final int UP = 1 << 3;
+    public static final int DOWN = 1 << 4;
+    public static final int RELEASE_JUMP = 1 << 5;
+    public static final int RELEASE_LEFT = 1 << 6;
+    public static final int RELEASE_RIGHT = 1 << 7;
+    public static final int RELEASE_UP = 1 << 8;
+    public static final int RELEASE_DOWN = 1 << 9;
+    // Back to the start after a game over. Clears the winner
+    public static final int RESPAWN = 1 << 10;
+}
@@ -0,0 +1,5 @@
+package mario.sim;
+
+public enum MotionState {
+    STANDING, RUNNING, JUMPING, FALLING,
+}
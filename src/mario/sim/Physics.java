@@ -0,0 +1,39 @@
+package mario.sim;
+
+/**
+ * The physics constants, per tick, for one tick rate.
+ * 
+ * The game was tuned at BASE_TICK_RATE. At other rates velocities are
+ * scaled by BASE_TICK_RATE / tickRate and accelerations by its square, so
+ * Mario runs as fast and jumps as high in real time whatever the rate.
+ * Both clients must tick at the same rate, since states go over the wire
+ * in per tick units.
+ */
+public class Physics {
+    public static final int BASE_TICK_RATE = 30;
+    public static final Physics BASE = new Physics(BASE_TICK_RATE);
+    
+    public final int tickRate;
+    public final float velocityScale;
+    public final float accelerationScale;
+    
+    public final float gravity;
+    public final float marioJumpForce;
+    public final float boostJumpForce;
+    public final float boostJumpMaxVy;  // Boost jump only near the top of the jump
+    public final float marioVxLimit;
+    public final float marioForce;
+    
+    public Physics(int tickRate) {
+        this.tickRate = tickRate;
+        velocityScale = (float) BASE_TICK_RATE / tickRate;
+        accelerationScale = velocityScale * velocityScale;
+        
+        gravity = World.GRAVITY * accelerationScale;
+        marioJumpForce = World.MARIO_JUMP_FORCE * velocityScale;
+        boostJumpForce = World.BOOST_JUMP_FORCE * velocityScale;
+        boostJumpMaxVy = 4 * velocityScale;
+        marioVxLimit = World.MARIO_VX_LIMIT * velocityScale;
+        marioForce = World.MARIO_FORCE * accelerationScale;
+    }
+}
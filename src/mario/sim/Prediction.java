@@ -0,0 +1,68 @@
+package mario.sim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Client side prediction against an authoritative server.
+ * 
+ * Every tick's input gets a sequence number and is kept until the server
+ * says it has applied it. When an authoritative state arrives, the local
+ * Mario is set to it and the inputs the server has not seen yet are
+ * replayed on top, so the player never waits a round trip for their own
+ * keys. Sequence numbers are u16, as on the wire.
+ */
+public class Prediction {
+    static final int CAPACITY = 256;  // Inputs in flight. Power of two
+    static final int SEQ_MASK = 0xFFFF;
+    
+    int[] inputs = new int[CAPACITY];
+    int nextSeq = 0;
+    int replayed = 0;  // Inputs replayed by the last reconcile
+    
+    /** Remembers the input of this tick and returns its number. */
+    public int record(int input) {
+        int seq = nextSeq;
+        inputs[seq & (CAPACITY - 1)] = input;
+        nextSeq = (nextSeq + 1) & SEQ_MASK;
+        return seq;
+    }
+    
+    /**
+     * mario must already hold the authoritative state, as it was right
+     * after the server applied input appliedSeq. Replays everything since.
+     */
+    public void reconcile(World world, MarioBody mario, int appliedSeq) {
+        int pending = (nextSeq - appliedSeq - 1) & SEQ_MASK;
+        if (pending >= CAPACITY) {  // Older than we remember, or not ours
+            replayed = 0;
+            return;
+        }
+        
+        int seq = (appliedSeq + 1) & SEQ_MASK;
+        for (int i = 0; i < pending; ++i) {
+            world.step(mario, inputs[seq & (CAPACITY - 1)]);
+            seq = (seq + 1) & SEQ_MASK;
+        }
+        replayed = pending;
+    }
+    
+    public int getReplayed() {
+        return replayed;
+    }
+    
+    /** The inputs in flight, for a match log. */
+    public void save(ByteBuffer buf) {
+        buf.putShort((short) nextSeq);
+        for (int i = 0; i < CAPACITY; ++i) {
+            buf.putShort((short) inputs[i]);
+        }
+    }
+    
+    public void restore(ByteBuffer buf) {
+        nextSeq = buf.getShort() & SEQ_MASK;
+        for (int i = 0; i < CAPACITY; ++i) {
+            inputs[i] = buf.getShort() & 0xFFFF;
+        }
+        replayed = 0;
+    }
+}
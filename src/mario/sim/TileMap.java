@@ -0,0 +1,198 @@
+package mario.sim;
+
+/**
+ * The level as the simulation sees it: one byte per tile, and a bit per
+ * tile telling whether it is solid.
+ * 
+ * Tiles come in chunks CHUNK_WIDTH columns wide, read from a ChunkSource
+ * the first time anything looks at them. A map only one thread uses can
+ * also stream(): load what is near the players before they get there, and
+ * let go of what nobody is near. A map shared between rooms only ever
+ * loads, since no room knows where the others' players are.
+ * 
+ * The world's bounds and the princess come with the level too.
+ */
+public class TileMap {
+    public static final int ASSET_SCALE = 2;
+    public static final int TILE_SIZE = 16 * ASSET_SCALE;
+    public static final int BLOCK_OFFSET = -16;
+    
+    // Tile ids. Air is 0, so a new grid is empty
+    public static final byte AIR = 0;
+    public static final byte GROUND = 1;
+    public static final byte BLOCK = 2;
+    public static final byte BRICK = 3;
+    public static final byte QUESTION = 4;
+    public static final byte GOLD = 5;
+    public static final byte UNKNOWN = 6;  // Solid, but nothing to draw
+    public static final int TILE_TYPES = 7;
+    
+    static final String TILE_CHARS = " #BR?O";  // As map.txt writes them, by id
+    // Gold can be walked through, everything else but air is solid
+    static final boolean[] SOLID = {false, true, true, true, true, false, true};
+    
+    // Chunks
+    public static final int CHUNK_SHIFT = 4;
+    public static final int CHUNK_WIDTH = 1 << CHUNK_SHIFT;  // Tiles. Half a screen
+    static final int CHUNK_MASK = CHUNK_WIDTH - 1;
+    static final float LOAD_DISTANCE = 640;  // Pixels ahead of anyone. A screen
+    static final float KEEP_DISTANCE = 1280;  // Beyond this from everyone, evicted
+    
+    // Bounds of the level before there was level metadata
+    public static final float DEFAULT_MAX_X = 7000;
+    public static final float DEFAULT_FLOOR_Y = 432;
+    public static final float DEFAULT_PRINCESS_X = 6639;
+    
+    static class Chunk {
+        final byte[] tiles;  // [bY * CHUNK_WIDTH + bX % CHUNK_WIDTH]
+        final long[] solid;  // Same index, in bits
+        
+        Chunk(byte[] tiles) {
+            this.tiles = tiles;
+            solid = new long[(tiles.length + 63) >>> 6];
+            for (int i = 0; i < tiles.length; ++i) {
+                if (tiles[i] < 0 || tiles[i] >= TILE_TYPES) tiles[i] = UNKNOWN;
+                if (SOLID[tiles[i]]) solid[i >>> 6] |= 1L << i;
+            }
+        }
+    }
+    
+    final ChunkSource source;
+    final int width, height;
+    final Chunk[] chunks;  // Null until loaded. Chunks are immutable, so racing loads are fine
+    float maxX, floorY, princessX;
+    
+    // stream() bookkeeping
+    int[] wantedAt;
+    int streams = 0;
+    int loadedCount = 0;
+    
+    public TileMap(String[] lines) {
+        this(parse(lines), DEFAULT_MAX_X, DEFAULT_FLOOR_Y, DEFAULT_PRINCESS_X);
+    }
+    
+    public TileMap(ChunkSource source, float maxX, float floorY, float princessX) {
+        this.source = source;
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.maxX = maxX;
+        this.floorY = floorY;
+        this.princessX = princessX;
+        chunks = new Chunk[(width + CHUNK_WIDTH - 1) >> CHUNK_SHIFT];
+        wantedAt = new int[chunks.length];
+    }
+    
+    static ArrayChunkSource parse(String[] lines) {
+        int height = lines.length;
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, line.length());
+        }
+        byte[] tiles = new byte[width * height];
+        for (int bY = 0; bY < height; ++bY) {
+            String line = lines[bY];
+            for (int bX = 0; bX < line.length(); ++bX) {
+                tiles[bY * width + bX] = toTile(line.charAt(bX));
+            }
+        }
+        return new ArrayChunkSource(width, height, tiles);
+    }
+    
+    public static byte toTile(char c) {
+        int id = TILE_CHARS.indexOf(c);
+        return id >= 0 ? (byte) id : UNKNOWN;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getChunkCount() {
+        return chunks.length;
+    }
+    
+    public int getLoadedChunkCount() {
+        return loadedCount;
+    }
+    
+    // Right edge of the world, in pixels. Nobody walks past it
+    public float getMaxX() {
+        return maxX;
+    }
+    
+    public float getFloorY() {
+        return floorY;
+    }
+    
+    public float getPrincessX() {
+        return princessX;
+    }
+    
+    public void setBounds(float maxX, float floorY, float princessX) {
+        this.maxX = maxX;
+        this.floorY = floorY;
+        this.princessX = princessX;
+    }
+    
+    Chunk chunk(int c) {
+        Chunk chunk = chunks[c];
+        if (chunk == null) {
+            byte[] tiles = new byte[CHUNK_WIDTH * height];
+            source.read(c, tiles);
+            chunk = new Chunk(tiles);
+            chunks[c] = chunk;
+            ++loadedCount;
+        }
+        return chunk;
+    }
+    
+    public byte tileAt(int bX, int bY) {
+        if (bX < 0 || bX >= width || bY < 0 || bY >= height) return AIR;  // No block
+        return chunk(bX >> CHUNK_SHIFT).tiles[bY * CHUNK_WIDTH + (bX & CHUNK_MASK)];
+    }
+    
+    public boolean isSolid(int bX, int bY) {
+        if (bX < 0 || bX >= width || bY < 0 || bY >= height) return false;
+        int i = bY * CHUNK_WIDTH + (bX & CHUNK_MASK);
+        return (chunk(bX >> CHUNK_SHIFT).solid[i >>> 6] & 1L << i) != 0;
+    }
+    
+    /**
+     * Loads the chunks within LOAD_DISTANCE of any mario, and evicts those
+     * further than KEEP_DISTANCE from all of them. Once a tick is plenty.
+     * Not for maps shared between threads.
+     */
+    public void stream(MarioBody[] marios) {
+        ++streams;
+        for (MarioBody mario : marios) {
+            int keepFrom = Math.max(0, x2bX(mario.x - KEEP_DISTANCE) >> CHUNK_SHIFT);
+            int keepTo = Math.min(chunks.length - 1, x2bX(mario.x + KEEP_DISTANCE) >> CHUNK_SHIFT);
+            for (int c = keepFrom; c <= keepTo; ++c) {
+                wantedAt[c] = streams;
+            }
+            int loadFrom = Math.max(0, x2bX(mario.x - LOAD_DISTANCE) >> CHUNK_SHIFT);
+            int loadTo = Math.min(chunks.length - 1, x2bX(mario.x + LOAD_DISTANCE) >> CHUNK_SHIFT);
+            for (int c = loadFrom; c <= loadTo; ++c) {
+                chunk(c);
+            }
+        }
+        for (int c = 0; c < chunks.length; ++c) {
+            if (chunks[c] != null && wantedAt[c] != streams) {
+                chunks[c] = null;
+                --loadedCount;
+            }
+        }
+    }
+    
+    public int y2bY(float y) {
+        return (int) y / TILE_SIZE;
+    }
+    
+    public int x2bX(float x) {
+        return (int) (x - BLOCK_OFFSET) / TILE_SIZE;
+    }
+}
@@ -0,0 +1,130 @@
+package mario.sim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * World state of one match, and the tick that advances it.
+ * 
+ * Has no dependency on Processing, so it runs as well in the client as in
+ * a server, a bot or a benchmark.
+ */
+public class World {
+    // At Physics.BASE_TICK_RATE. Physics scales them for other rates
+    public static final float GRAVITY = 2.0f;
+    public static final float MARIO_JUMP_FORCE = 19.0f;
+    public static final float BOOST_JUMP_FORCE = 11.3f;
+    public static final float MARIO_VX_LIMIT = 9.0f;
+    public static final float MARIO_FORCE = 0.45f;
+    static final int SPAWNS_PER_ROW = 22;
+    
+    public Physics physics;
+    public TileMap map;
+    public CollisionDetector collisionDetector;
+    public EnemyCollisionDetector enemyCD;
+    public BroadPhase broadPhase;
+    public MarioBody[] marios;
+    public int winner = -1;  // Index into marios, -1 while playing
+    public long tickCount = 0;
+    
+    public World(TileMap map, MarioBody[] marios) {
+        this(map, marios, Physics.BASE);
+    }
+    
+    public World(TileMap map, MarioBody[] marios, Physics physics) {
+        this.physics = physics;
+        this.map = map;
+        this.marios = marios;
+        for (int i = 0; i < marios.length; ++i) {
+            marios[i].setPhysics(physics);
+        }
+        collisionDetector = new CollisionDetector(map);
+        enemyCD = new EnemyCollisionDetector();
+        broadPhase = new BroadPhase(marios);
+    }
+    
+    // 300 apart, and past the end of the level, back from the start
+    public static float spawnX(int num) {
+        return 150 + num % SPAWNS_PER_ROW * 300 + num / SPAWNS_PER_ROW * 100;
+    }
+    
+    /**
+     * Advances the world by one tick. inputs[i] holds the MarioInput bits
+     * for marios[i]. Inputs still apply once the game is over, so no key
+     * release gets lost, but nobody moves any more.
+     */
+    public void tick(int[] inputs) {
+        for (int i = 0; i < marios.length; ++i) {
+            applyInput(i, inputs[i]);
+        }
+        
+        if (winner >= 0) return;
+        broadPhase.sort(physics.marioVxLimit);  // Nobody moves further in one update
+        for (int i = 0; i < marios.length; ++i) {
+            if (marios[i].simulated) marios[i].update(this);
+        }
+        ++tickCount;
+    }
+    
+    /**
+     * Applies one input to one mario and moves it, leaving the others be.
+     * For replaying predicted inputs, and for servers that step each
+     * player as its inputs arrive.
+     */
+    public void step(MarioBody mario, int input) {
+        int num = -1;
+        if ((input & MarioInput.RESPAWN) != 0) {  // Respawning needs its number
+            for (int i = 0; i < marios.length; ++i) {
+                if (marios[i] == mario) num = i;
+            }
+        }
+        if (num >= 0) applyInput(num, input);
+        else mario.applyInput(input);
+        if (winner >= 0) return;
+        if (mario.judgesTrample) broadPhase.sort(0);  // Only mario moves
+        mario.update(this);
+    }
+    
+    /**
+     * Everything a tick depends on, for a match log. The map and physics
+     * are not saved; restore() needs a world built like this one.
+     */
+    public void save(ByteBuffer buf) {
+        buf.put((byte) winner);
+        buf.putLong(tickCount);
+        for (int i = 0; i < marios.length; ++i) {
+            marios[i].save(buf);
+        }
+        broadPhase.save(buf, marios);
+    }
+    
+    public void restore(ByteBuffer buf) {
+        winner = buf.get();
+        tickCount = buf.getLong();
+        for (int i = 0; i < marios.length; ++i) {
+            marios[i].restore(buf);
+        }
+        broadPhase.restore(buf, marios);
+    }
+    
+    public boolean isOver() {
+        return winner >= 0;
+    }
+    
+    public void reset() {
+        winner = -1;
+    }
+    
+    void applyInput(int num, int input) {
+        if ((input & MarioInput.RESPAWN) != 0) {
+            reset();
+            marios[num].respawn(num);
+        }
+        marios[num].applyInput(input);
+    }
+    
+    void onTrample(MarioBody mario) {
+        for (int i = 0; i < marios.length; ++i) {
+            if (marios[i] == mario) winner = i;
+        }
+    }
+}
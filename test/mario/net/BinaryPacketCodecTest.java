@@ -0,0 +1,100 @@
+package mario.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import mario.sim.MarioBody;
+
+public class BinaryPacketCodecTest {
+    static BinaryPacketCodec codec(int tickRate) {
+        return new BinaryPacketCodec(new SnapshotCodec(0.01f, 0.01f, 30), tickRate);
+    }
+    
+    static byte[] toArray(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+    
+    @Test
+    void headerAndInputRoundTrip() {
+        Packet packet = new Packet();
+        packet.type = PacketType.INPUT;
+        packet.player = 3;
+        packet.whoWon = -1;
+        packet.seq = 65535;
+        packet.sentAt = -123456789;
+        packet.inputSeq = 40000;
+        packet.input = 0x3FF;
+        byte[] frame = toArray(codec(30).encode(packet));
+        
+        Packet header = new Packet();
+        assertTrue(codec(30).peekHeader(frame, header));
+        assertEquals(PacketType.INPUT, header.type);
+        assertEquals(3, header.player);
+        assertEquals(-1, header.whoWon);
+        assertEquals(65535, header.seq);
+        assertEquals(-123456789, header.sentAt);
+        assertEquals(30, header.tickRate);
+        
+        Packet got = codec(30).decode(frame);
+        assertEquals(40000, got.inputSeq);
+        assertEquals(0x3FF, got.input);
+    }
+    
+    @Test
+    void pongRoundTrips() {
+        Packet packet = new Packet();
+        packet.type = PacketType.PONG;
+        packet.echoPlayer = 1;
+        packet.echoSentAt = 987654;
+        Packet got = codec(30).decode(toArray(codec(30).encode(packet)));
+        assertEquals(1, got.echoPlayer);
+        assertEquals(987654, got.echoSentAt);
+    }
+    
+    @Test
+    void onlyTheGivenLengthIsRead() {
+        Packet packet = new Packet().copyFrom(new MarioBody());
+        packet.x = 42;
+        byte[] frame = toArray(codec(30).encode(packet));
+        byte[] slot = Arrays.copyOf(frame, 1024);
+        Arrays.fill(slot, frame.length, slot.length, (byte) 0x55);
+        assertEquals(42, codec(30).decode(slot, frame.length).x, 0.005f);
+    }
+    
+    @Test
+    void truncatedOrForeignFramesAreRefused() {
+        Packet packet = new Packet();
+        packet.type = PacketType.INPUT;
+        byte[] frame = toArray(codec(30).encode(packet));
+        assertNull(codec(30).decode(Arrays.copyOf(frame, frame.length - 1)));
+        assertNull(codec(30).decode(new byte[3]));
+        
+        frame[0] = (byte) (BinaryPacketCodec.VERSION + 1);
+        assertFalse(codec(30).peekHeader(frame, new Packet()));
+        
+        Packet state = new Packet().copyFrom(new MarioBody());
+        byte[] stateFrame = toArray(codec(30).encode(state));
+        assertNull(codec(30).decode(Arrays.copyOf(stateFrame, BinaryPacketCodec.HEADER_SIZE + 2)));
+    }
+    
+    @Test
+    void anotherTickRateIsRefusedAndCounted() {
+        Packet packet = new Packet();
+        packet.type = PacketType.GAME_OVER;
+        packet.whoWon = 1;
+        byte[] frame = toArray(codec(60).encode(packet));
+        BinaryPacketCodec ours = codec(30);
+        assertNull(ours.decode(frame));
+        assertEquals(1, ours.getRefused());
+        assertEquals(1, codec(60).decode(frame).whoWon);
+    }
+}
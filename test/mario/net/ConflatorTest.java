@@ -0,0 +1,74 @@
+package mario.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import mario.sim.MarioBody;
+import mario.sim.Physics;
+
+public class ConflatorTest {
+    final BinaryPacketCodec codec = new BinaryPacketCodec(new SnapshotCodec(0.01f, 0.01f, 30),
+            Physics.BASE_TICK_RATE);
+    
+    NetworkThread.Frame frame(PacketType type, int player, int seq) {
+        Packet packet = type == PacketType.MARIO_STATE ? new Packet().copyFrom(new MarioBody())
+                : new Packet();
+        packet.type = type;
+        packet.player = player;
+        packet.seq = seq;
+        ByteBuffer buf = codec.encode(packet);
+        NetworkThread.Frame frame = new NetworkThread.Frame(8, 256);
+        frame.bodyLength = buf.remaining();
+        buf.get(frame.body, 0, frame.bodyLength);
+        return frame;
+    }
+    
+    List<Integer> drain(Conflator conflator) {
+        List<Integer> seqs = new ArrayList<Integer>();
+        Packet header = new Packet();
+        conflator.drain(frame -> {
+            codec.peekHeader(frame.body, frame.bodyLength, header);
+            seqs.add(header.seq);
+        });
+        return seqs;
+    }
+    
+    @Test
+    void onlyTheNewestStateOfEachPlayerIsKeptInArrivalOrder() {
+        Conflator conflator = new Conflator(codec);
+        conflator.add(frame(PacketType.MARIO_STATE, 0, 1));
+        conflator.add(frame(PacketType.MARIO_STATE, 1, 2));
+        conflator.add(frame(PacketType.GAME_OVER, 0, 3));
+        conflator.add(frame(PacketType.MARIO_STATE, 0, 4));
+        conflator.add(frame(PacketType.PING, 1, 5));
+        assertEquals(5, conflator.size());
+        
+        assertEquals(java.util.Arrays.asList(2, 3, 4, 5), drain(conflator));
+        assertEquals(1, conflator.superseded);
+        assertEquals(0, conflator.size());
+    }
+    
+    @Test
+    void drainingForgetsWhatWasNewest() {
+        Conflator conflator = new Conflator(codec);
+        conflator.add(frame(PacketType.MARIO_STATE, 0, 1));
+        drain(conflator);
+        conflator.add(frame(PacketType.MARIO_STATE, 0, 2));
+        assertEquals(java.util.Arrays.asList(2), drain(conflator));
+        assertEquals(0, conflator.superseded);
+    }
+    
+    @Test
+    void itGrowsPastItsFirstArray() {
+        Conflator conflator = new Conflator(codec);
+        for (int i = 0; i < 200; ++i) {
+            conflator.add(frame(PacketType.GAME_OVER, 0, i));
+        }
+        assertEquals(200, drain(conflator).size());
+    }
+}
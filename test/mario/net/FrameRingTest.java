@@ -0,0 +1,83 @@
+package mario.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class FrameRingTest {
+    static void put(FrameRing ring, int value) {
+        NetworkThread.Frame frame = ring.claim();
+        frame.body[0] = (byte) value;
+        frame.bodyLength = 1;
+        ring.publish();
+    }
+    
+    @Test
+    void capacityMustBeAPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new FrameRing(3, 8, 8));
+    }
+    
+    @Test
+    void framesComeOutInOrderAndStayUntilReleased() {
+        FrameRing ring = new FrameRing(4, 8, 8);
+        for (int i = 0; i < 4; ++i) {
+            put(ring, i);
+        }
+        assertNull(ring.claim());  // Full
+        
+        NetworkThread.Frame first = ring.poll();
+        NetworkThread.Frame second = ring.poll();
+        assertEquals(0, first.body[0]);
+        assertEquals(1, second.body[0]);
+        assertEquals(2, ring.size());
+        assertNull(ring.claim());  // Polled isn't released
+        
+        ring.release();
+        assertSame(first, ring.claim());  // The same slot, reused
+        put(ring, 4);
+        put(ring, 5);
+        assertNull(ring.claim());
+        for (int i = 2; i < 6; ++i) {
+            assertEquals(i, ring.poll().body[0]);
+        }
+        assertNull(ring.poll());
+    }
+    
+    @Test
+    void claimingTwiceWithoutPublishingGivesTheSameSlot() {
+        FrameRing ring = new FrameRing(2, 8, 8);
+        assertSame(ring.claim(), ring.claim());
+        assertNull(ring.poll());
+    }
+    
+    @Test
+    void aProducerAndAConsumerThreadSeeEveryFrameInOrder() throws InterruptedException {
+        FrameRing ring = new FrameRing(8, 8, 8);
+        int count = 200000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; ) {
+                NetworkThread.Frame frame = ring.claim();
+                if (frame == null) {
+                    Thread.yield();
+                    continue;
+                }
+                frame.receivedAt = i++;
+                ring.publish();
+            }
+        });
+        producer.start();
+        for (int expected = 0; expected < count; ) {
+            NetworkThread.Frame frame;
+            while ((frame = ring.poll()) != null) {
+                assertEquals(expected++, frame.receivedAt);
+            }
+            ring.release();
+        }
+        producer.join();
+        assertNotNull(ring.claim());
+    }
+}
@@ -0,0 +1,108 @@
+package mario.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import mario.sim.MarioBody;
+
+public class JsonPacketCodecTest {
+    static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @Test
+    void aPacketRoundTrips() {
+        Packet packet = new Packet();
+        packet.type = PacketType.INPUT;
+        packet.player = 1;
+        packet.inputSeq = 500;
+        packet.input = 7;
+        ByteBuffer buf = new JsonPacketCodec(30).encode(packet);
+        byte[] frame = new byte[buf.remaining()];
+        buf.get(frame);
+        Packet got = new JsonPacketCodec(30).decode(frame);
+        assertEquals(PacketType.INPUT, got.type);
+        assertEquals(1, got.player);
+        assertEquals(500, got.inputSeq);
+        assertEquals(7, got.input);
+    }
+    
+    @Test
+    void malformedFramesAreRefused() {
+        JsonPacketCodec codec = new JsonPacketCodec(30);
+        assertNull(codec.decode(bytes("{")));
+        assertNull(codec.decode(bytes("{\"type\":\"INPUT\",\"player\":")));
+        assertNull(codec.decode(bytes("{\"player\":\"one\",\"tickRate\":30}")));
+        assertNull(codec.decode(bytes("{}")));
+        assertNull(codec.decode(bytes("[1]")));
+        assertNull(codec.decode(new byte[0]));
+    }
+    
+    @Test
+    void anUnknownTypeIsRefused() {
+        JsonPacketCodec codec = new JsonPacketCodec(30);
+        assertNull(codec.decode(bytes("{\"type\":\"TELEPORT\",\"tickRate\":30}")));
+        assertEquals(0, codec.getRefused());
+    }
+    
+    @Test
+    void anotherTickRateIsRefusedAndCounted() {
+        JsonPacketCodec codec = new JsonPacketCodec(30);
+        assertNull(codec.decode(bytes("{\"type\":\"PING\",\"tickRate\":60}")));
+        assertEquals(1, codec.getRefused());
+    }
+    
+    @Test
+    void theHeaderIsReadWithoutTheRest() {
+        Packet packet = new Packet().copyFrom(new MarioBody());
+        packet.type = PacketType.MARIO_STATE;
+        packet.player = 1;
+        packet.whoWon = -1;
+        packet.seq = 40000;
+        packet.sentAt = -5;
+        ByteBuffer buf = new JsonPacketCodec(30).encode(packet);
+        byte[] frame = new byte[buf.remaining()];
+        buf.get(frame);
+        
+        Packet header = new Packet();
+        assertTrue(new JsonPacketCodec(30).peekHeader(frame, header));
+        assertEquals(PacketType.MARIO_STATE, header.type);
+        assertEquals(1, header.player);
+        assertEquals(-1, header.whoWon);
+        assertEquals(40000, header.seq);
+        assertEquals(-5, header.sentAt);
+        assertEquals(30, header.tickRate);
+        
+        assertFalse(new JsonPacketCodec(30).peekHeader(bytes("{\"type\":\"TELEPORT\"}"), header));
+        assertFalse(new JsonPacketCodec(30).peekHeader(bytes("{\"type\":\"PING\",\"seq\":"),
+                header));
+        assertFalse(new JsonPacketCodec(30).peekHeader(bytes("{\"seq\":\"x\"}"), header));
+    }
+    
+    @Test
+    void statesAreConflated() {
+        JsonPacketCodec codec = new JsonPacketCodec(30);
+        Conflator conflator = new Conflator(codec);
+        for (int seq = 0; seq < 3; ++seq) {
+            Packet packet = new Packet().copyFrom(new MarioBody());
+            packet.type = PacketType.MARIO_STATE;
+            packet.seq = seq;
+            ByteBuffer buf = codec.encode(packet);
+            NetworkThread.Frame frame = new NetworkThread.Frame(8, 1024);
+            frame.bodyLength = buf.remaining();
+            buf.get(frame.body, 0, frame.bodyLength);
+            conflator.add(frame);
+        }
+        int[] kept = {0};
+        conflator.drain(frame -> ++kept[0]);
+        assertEquals(1, kept[0]);
+        assertEquals(2, conflator.superseded);
+    }
+}
@@ -0,0 +1,71 @@
+package mario.net;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+public class NetworkThreadTest {
+    static final byte[] TOPIC = "room/state/0".getBytes(StandardCharsets.UTF_8);
+    
+    @Test
+    void framesGoOutAndComeInWithoutPolling() throws InterruptedException {
+        Context context = ZMQ.context(1);
+        Socket pub = context.socket(ZMQ.PUB);  // What the broker sends us
+        int pubPort = pub.bindToRandomPort("tcp://127.0.0.1");
+        Socket sub = context.socket(ZMQ.SUB);  // What we send the broker
+        int subPort = sub.bindToRandomPort("tcp://127.0.0.1");
+        sub.subscribe(new byte[0]);
+        NetworkThread network = new NetworkThread("tcp://127.0.0.1:" + pubPort,
+                "tcp://127.0.0.1:" + subPort, "room/".getBytes(StandardCharsets.UTF_8), 64);
+        network.start();
+        
+        // Out: resent until the subscription has got through
+        sub.setReceiveTimeOut(100);
+        byte[] got = null;
+        for (int i = 0; i < 50 && got == null; ++i) {
+            network.send(TOPIC, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            got = sub.recv(0);
+        }
+        assertArrayEquals(TOPIC, got);
+        assertArrayEquals(new byte[]{1, 2, 3}, sub.recv(0));
+        
+        // A frame queued on an idle thread goes out at once, not on a timer
+        while (sub.recv(ZMQ.DONTWAIT) != null) ;
+        Thread.sleep(50);
+        network.send(TOPIC, ByteBuffer.wrap(new byte[]{4}));
+        sub.setReceiveTimeOut(1000);
+        assertArrayEquals(TOPIC, sub.recv(0));
+        assertArrayEquals(new byte[]{4}, sub.recv(0));
+        
+        // In
+        NetworkThread.Frame frame = null;
+        for (int i = 0; i < 50 && frame == null; ++i) {
+            pub.sendMore(TOPIC);
+            pub.send(new byte[]{5, 6}, 0);
+            Thread.sleep(20);
+            frame = network.poll();
+        }
+        assertNotNull(frame);
+        assertArrayEquals(TOPIC, Arrays.copyOf(frame.topic, frame.topicLength));
+        assertArrayEquals(new byte[]{5, 6}, Arrays.copyOf(frame.body, frame.bodyLength));
+        network.release();
+        
+        long closing = System.nanoTime();
+        network.close();
+        assertTrue(System.nanoTime() - closing < 500000000L, "the blocked poll wasn't woken");
+        assertEquals(0, network.droppedOut);
+        pub.close();
+        sub.close();
+        context.term();
+    }
+}
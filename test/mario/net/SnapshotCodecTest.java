@@ -0,0 +1,219 @@
+package mario.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import mario.sim.MarioArrowX;
+import mario.sim.MarioBody;
+import mario.sim.MarioFace;
+import mario.sim.MotionState;
+
+public class SnapshotCodecTest {
+    static SnapshotCodec codec() {
+        return new SnapshotCodec(0.01f, 0.01f, 1000);
+    }
+    
+    static Packet state(int player, float x) {
+        Packet packet = new Packet().copyFrom(new MarioBody());
+        packet.player = player;
+        packet.x = x;
+        return packet;
+    }
+    
+    static ByteBuffer encode(SnapshotCodec codec, Packet packet) {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        codec.encode(packet, buf);
+        buf.flip();
+        return buf;
+    }
+    
+    // Null if it couldn't be decoded
+    static Packet decode(SnapshotCodec codec, ByteBuffer frame, int sender) {
+        Packet packet = new Packet();
+        packet.player = sender;
+        return codec.decode(frame.duplicate(), packet) ? packet : null;
+    }
+    
+    static boolean isKeyframe(ByteBuffer frame) {
+        return (frame.get(0) & SnapshotCodec.SNAP_KEYFRAME) != 0;
+    }
+    
+    @Test
+    void varIntsRoundTripAtTheExtremes() {
+        SnapshotCodec codec = codec();
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        int[] values = {0, 1, -1, 63, -64, 64, 8191, -8192, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int v : values) {
+            codec.putVarInt(buf, v);
+        }
+        buf.flip();
+        for (int v : values) {
+            assertEquals(v, codec.getVarInt(buf));
+        }
+        assertFalse(buf.hasRemaining());
+    }
+    
+    @Test
+    void smallValuesTakeOneByte() {
+        SnapshotCodec codec = codec();
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        codec.putVarInt(buf, -64);
+        codec.putVarInt(buf, 63);
+        assertEquals(2, buf.position());
+    }
+    
+    @Test
+    void everyFieldSurvivesAKeyframeAndADelta() {
+        SnapshotCodec sender = codec();
+        SnapshotCodec receiver = codec();
+        Packet packet = state(0, 123.45f);
+        packet.y = -67.89f;
+        packet.vx = 3.21f;
+        packet.vy = -9.5f;
+        packet.ax = 0.5f;
+        packet.ay = 1.25f;
+        packet.frictionalForce = 0.7f;
+        packet.motionState = MotionState.JUMPING;
+        packet.faceState = MarioFace.FACE_LEFT;
+        packet.arrowX = MarioArrowX.LEFT;
+        packet.jumpPressed = true;
+        packet.boostJumping = true;
+        packet.inputSeq = 65535;
+        packet.tick = 123456;
+        
+        ByteBuffer first = encode(sender, packet);
+        assertTrue(isKeyframe(first));
+        check(packet, decode(receiver, first, 0));
+        
+        // Acked, the next is a delta
+        sender.decode(encode(receiver, state(1, 0)).duplicate(), state(1, 0));
+        packet.x += 1;
+        packet.motionState = MotionState.FALLING;
+        ByteBuffer second = encode(sender, packet);
+        assertFalse(isKeyframe(second));
+        assertTrue(second.remaining() < first.remaining());
+        check(packet, decode(receiver, second, 0));
+    }
+    
+    static void check(Packet expected, Packet got) {
+        assertEquals(expected.x, got.x, 0.005f);
+        assertEquals(expected.y, got.y, 0.005f);
+        assertEquals(expected.vx, got.vx, 0.005f);
+        assertEquals(expected.vy, got.vy, 0.005f);
+        assertEquals(expected.ax, got.ax, 0.005f);
+        assertEquals(expected.ay, got.ay, 0.005f);
+        assertEquals(expected.frictionalForce, got.frictionalForce, 0.005f);
+        assertEquals(expected.motionState, got.motionState);
+        assertEquals(expected.faceState, got.faceState);
+        assertEquals(expected.arrowX, got.arrowX);
+        assertEquals(expected.arrowY, got.arrowY);
+        assertEquals(expected.jumpPressed, got.jumpPressed);
+        assertEquals(expected.boostJumping, got.boostJumping);
+        assertEquals(expected.inputSeq, got.inputSeq);
+        assertEquals(expected.tick, got.tick);
+    }
+    
+    @Test
+    void aDeltaAgainstAMissingBaselineIsRefused() {
+        SnapshotCodec sender = codec();
+        SnapshotCodec receiver = codec();
+        SnapshotCodec other = codec();
+        decode(receiver, encode(sender, state(0, 1)), 0);
+        sender.decode(encode(receiver, state(1, 0)).duplicate(), state(1, 0));
+        ByteBuffer delta = encode(sender, state(0, 2));
+        assertFalse(isKeyframe(delta));
+        assertEquals(null, decode(other, delta, 0));
+    }
+    
+    // A acks 10 and B acks 8, but A lost 8: 8 is no baseline for both
+    @Test
+    void theBaselineIsOneEveryPeerHolds() {
+        SnapshotCodec sender = codec();
+        SnapshotCodec a = codec();
+        SnapshotCodec b = codec();
+        for (int seq = 0; seq <= 10; ++seq) {
+            ByteBuffer frame = encode(sender, state(0, seq));
+            if (seq != 8 && seq <= 10) decode(a, frame, 0);
+            if (seq <= 8) decode(b, frame, 0);
+        }
+        sender.decode(encode(a, state(1, 0)).duplicate(), state(1, 0));
+        sender.decode(encode(b, state(2, 0)).duplicate(), state(2, 0));
+        
+        ByteBuffer next = encode(sender, state(0, 11));
+        assertFalse(isKeyframe(next));
+        assertNotEquals(8, baseline(next));
+        assertEquals(7, baseline(next));
+        assertEquals(11, decode(a, next, 0).x, 0.005f);
+        assertEquals(11, decode(b, next, 0).x, 0.005f);
+    }
+    
+    @Test
+    void withNoSnapshotInCommonItSendsAKeyframe() {
+        SnapshotCodec sender = codec();
+        SnapshotCodec a = codec();
+        SnapshotCodec b = codec();
+        for (int seq = 0; seq < 4; ++seq) {
+            ByteBuffer frame = encode(sender, state(0, seq));
+            decode(seq % 2 == 0 ? a : b, frame, 0);
+        }
+        sender.decode(encode(a, state(1, 0)).duplicate(), state(1, 0));
+        sender.decode(encode(b, state(2, 0)).duplicate(), state(2, 0));
+        assertTrue(isKeyframe(encode(sender, state(0, 4))));
+    }
+    
+    // Three players, each losing 30% of what it's sent: once a sender has
+    // heard from a peer, every snapshot that reaches the peer decodes, with
+    // no stall waiting for a keyframe
+    @Test
+    void nothingThatArrivesIsUndecodableUnderLoss() {
+        Random random = new Random(7);
+        SnapshotCodec[] codecs = {codec(), codec(), codec()};
+        boolean[][] heard = new boolean[3][3];  // [by][from]
+        int arrived = 0;
+        for (int round = 0; round < 3000; ++round) {
+            for (int from = 0; from < codecs.length; ++from) {
+                Packet packet = state(from, round);
+                ByteBuffer frame = encode(codecs[from], packet);
+                for (int to = 0; to < codecs.length; ++to) {
+                    if (to == from || random.nextInt(10) < 3) continue;
+                    Packet got = decode(codecs[to], frame, from);
+                    if (heard[from][to]) {
+                        assertTrue(got != null, "round " + round + ", " + from + " to " + to);
+                    }
+                    if (got == null) continue;
+                    assertEquals(round, got.x, 0.005f);
+                    heard[to][from] = true;
+                    ++arrived;
+                }
+            }
+        }
+        assertTrue(arrived > 3000 * 6 * 6 / 10);
+    }
+    
+    @Test
+    void sequenceNumbersWrapAround() {
+        SnapshotCodec sender = codec();
+        SnapshotCodec receiver = codec();
+        sender.nextSeq = 65530;
+        for (int i = 0; i < 20; ++i) {
+            ByteBuffer frame = encode(sender, state(0, i));
+            assertEquals(i, decode(receiver, frame, 0).x, 0.005f);
+            sender.decode(encode(receiver, state(1, 0)).duplicate(), state(1, 0));
+            if (i > 0) assertFalse(isKeyframe(frame), "snapshot " + i);
+        }
+    }
+    
+    // Where the baseline sits: flags, seq, then the acks if any
+    static int baseline(ByteBuffer frame) {
+        int at = 3;
+        if ((frame.get(0) & SnapshotCodec.SNAP_HAS_ACK) != 0) at += 1 + frame.get(3) * 7;
+        return frame.getShort(at) & 0xFFFF;
+    }
+}
@@ -0,0 +1,65 @@
+package mario.perf;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class HistogramTest {
+    @Test
+    void everyValueFallsInTheBucketThatClaimsIt() {
+        for (long v = 0; v < 1 << 20; v = v < 64 ? v + 1 : v + v / 7) {
+            int i = Histogram.index(v);
+            assertTrue(v <= Histogram.highest(i), "value " + v);
+            if (i > 0) assertTrue(v > Histogram.highest(i - 1), "value " + v);
+        }
+    }
+    
+    @Test
+    void bucketsAreNoWiderThanASixteenthOfTheirValue() {
+        for (int i = Histogram.SUB_BUCKETS; i < Histogram.BUCKETS - 1; ++i) {
+            long low = Histogram.highest(i - 1) + 1;
+            long high = Histogram.highest(i);
+            assertTrue(high - low + 1 <= Math.max(1, low / Histogram.SUB_BUCKETS), "bucket " + i);
+        }
+    }
+    
+    @Test
+    void hugeValuesGoInTheLastBucket() {
+        assertEquals(Histogram.BUCKETS - 1, Histogram.index(Long.MAX_VALUE));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.index(1L << (Histogram.MAX_EXPONENT + 1)));
+    }
+    
+    @Test
+    void percentilesAreWithinABucket() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 100000; ++v) {
+            h.record(v * 1000);
+        }
+        assertEquals(100000, h.getCount());
+        assertEquals(100000000, h.getMax());
+        for (double p : new double[] {1, 50, 90, 99, 99.9}) {
+            double exact = p * 1000000;
+            long got = h.getPercentile(p);
+            assertTrue(got >= exact && got <= exact * (1 + 1.0 / Histogram.SUB_BUCKETS),
+                    p + "th: " + got);
+        }
+        assertEquals(h.getMax(), h.getPercentile(100));
+    }
+    
+    @Test
+    void addMergesCountsAndMax() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        a.record(5);
+        b.record(7);
+        b.record(-3);  // As 0
+        a.add(b);
+        assertEquals(3, a.getCount());
+        assertEquals(7, a.getMax());
+        assertEquals(0, a.getPercentile(1));
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getPercentile(50));
+    }
+}
@@ -0,0 +1,168 @@
+package mario.replay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mario.net.InterpolationBuffer;
+import mario.net.Packet;
+import mario.sim.MarioBody;
+import mario.sim.MarioInput;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+import mario.sim.World;
+
+public class MatchLogTest {
+    static String[] lines;
+    
+    @TempDir
+    Path dir;
+    
+    @BeforeAll
+    static void readMap() throws IOException {
+        lines = Files.readAllLines(Paths.get("data", "map.txt"), StandardCharsets.UTF_8)
+                .toArray(new String[0]);
+    }
+    
+    static World newWorld() {
+        MarioBody[] marios = {new MarioBody(), new MarioBody()};
+        for (int i = 0; i < marios.length; ++i) {
+            marios[i].respawn(i);
+            marios[i].frictionalForce = 0.7f;
+        }
+        marios[1].judgesTrample = false;  // The ghost
+        return new World(new TileMap(lines), marios);
+    }
+    
+    // As a peer client records: our inputs, the rival's state every third tick
+    static MatchRecorder record(Path path, int ticks, boolean close) throws IOException {
+        World world = newWorld();
+        World rival = newWorld();
+        world.marios[1].simulated = false;
+        long tickNanos = 1000000000L / Physics.BASE_TICK_RATE;
+        InterpolationBuffer[] buffers = {null, new InterpolationBuffer(tickNanos, 50000000L)};
+        int[] inputs = new int[2];
+        int[] rivalInputs = new int[2];
+        Packet packet = new Packet();
+        long tickTime = 0;
+        MatchRecorder recorder = new MatchRecorder(path, 2, 0, Physics.BASE_TICK_RATE, false,
+                true, 50);
+        for (int tick = 0; tick < ticks; ++tick) {
+            if (tick % 300 == 0) recorder.snapshot(tick, tickTime + tickNanos, world, null, buffers);
+            tickTime += tickNanos + (tick % 7 == 0 ? 1000000 : 0);  // A little jitter
+            int phase = tick & 63;
+            inputs[0] = phase == 0 ? MarioInput.RIGHT
+                    : phase == 32 ? MarioInput.JUMP | MarioInput.RELEASE_RIGHT : MarioInput.NONE;
+            rivalInputs[1] = phase == 16 ? MarioInput.RIGHT | MarioInput.RELEASE_LEFT
+                    : phase == 48 ? MarioInput.JUMP | MarioInput.LEFT | MarioInput.RELEASE_RIGHT
+                    : MarioInput.NONE;
+            recorder.tick(tickTime, inputs[0]);
+            buffers[1].sample(tickTime, world.marios[1], world);
+            world.tick(inputs);
+            rival.tick(rivalInputs);
+            if (tick % 3 == 0) {
+                packet.copyFrom(rival.marios[1]);
+                packet.player = 1;
+                packet.tick = tick;
+                recorder.message(packet);
+                buffers[1].add(packet, tickTime);
+            }
+            if (world.isOver()) {
+                recorder.reset();
+                world.reset();
+                world.marios[0].respawn(0);
+            }
+            if (rival.isOver()) rival.reset();
+        }
+        if (close) recorder.close();
+        return recorder;
+    }
+    
+    static MatchReplayer replay(Path path) throws IOException {
+        MatchReplayer replayer = new MatchReplayer(path, new TileMap(lines));
+        replayer.runTo(Long.MAX_VALUE);
+        return replayer;
+    }
+    
+    @Test
+    void varLongsAndZigzagsRoundTrip() {
+        long[] values = {0, 1, -1, 63, -64, 64, 127, 128, 300, Integer.MAX_VALUE,
+            Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        for (long value : values) {
+            MatchLog.putVarLong(buf, MatchLog.zigzag(value));
+        }
+        MatchLog.putVarLong(buf, Long.MIN_VALUE);  // Unsigned, all ten bytes
+        buf.flip();
+        for (long value : values) {
+            assertEquals(value, MatchLog.unzigzag(MatchLog.getVarLong(buf)));
+        }
+        assertEquals(Long.MIN_VALUE, MatchLog.getVarLong(buf));
+        assertEquals(-1, MatchLog.getVarLong(buf));
+    }
+    
+    @Test
+    void aVarLongCutShortReadsAsMinusOne() {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        MatchLog.putVarLong(buf, 1L << 40);
+        buf.flip();
+        buf.limit(buf.limit() - 1);
+        assertEquals(-1, MatchLog.getVarLong(buf));
+    }
+    
+    @Test
+    void aReplayMatchesTheRecording() throws IOException {
+        Path path = dir.resolve("match.mlog");
+        record(path, 1000, true);
+        MatchReplayer replayer = replay(path);
+        assertTrue(replayer.isAtEnd());
+        assertEquals(1000, replayer.getTick());
+        assertEquals(0, replayer.desyncs);
+        
+        replayer.seek(450);  // From the snapshot at 300
+        assertEquals(450, replayer.getTick());
+        replayer.runTo(Long.MAX_VALUE);
+        assertEquals(0, replayer.desyncs);
+    }
+    
+    @Test
+    void aTornLastRecordIsLeftOut() throws IOException {
+        Path path = dir.resolve("match.mlog");
+        record(path, 1000, true);
+        byte[] bytes = Files.readAllBytes(path);
+        for (int cut = 1; cut <= 3; ++cut) {
+            Files.write(path, Arrays.copyOf(bytes, bytes.length - cut));
+            MatchReplayer replayer = replay(path);
+            assertTrue(replayer.isAtEnd());
+            assertTrue(replayer.getTick() >= 999, "cut " + cut + " lost more than a tick");
+            assertEquals(0, replayer.desyncs);
+        }
+    }
+    
+    @Test
+    void aCrashLosesUnderASecond() throws IOException {
+        Path path = dir.resolve("match.mlog");
+        MatchRecorder recorder = record(path, 100, false);
+        try {
+            // Not closed: what's on disk is what a crash would leave
+            MatchReplayer replayer = replay(path);
+            assertTrue(replayer.getTick() > 100 - Physics.BASE_TICK_RATE);
+            assertEquals(0, replayer.desyncs);
+            assertFalse(replayer.getTick() > 100);
+        } finally {
+            recorder.close();
+        }
+    }
+}
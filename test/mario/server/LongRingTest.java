@@ -0,0 +1,48 @@
+package mario.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class LongRingTest {
+    @Test
+    void offersPastCapacityAreRefused() {
+        LongRing ring = new LongRing(4);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        
+        List<Long> drained = new ArrayList<Long>();
+        assertEquals(4, ring.drain(drained::add));
+        assertEquals(0, ring.size());
+        assertTrue(ring.offer(Long.MIN_VALUE));  // All 64 bits kept
+        ring.drain(drained::add);
+        assertEquals(java.util.Arrays.asList(0L, 1L, 2L, 3L, Long.MIN_VALUE), drained);
+    }
+    
+    @Test
+    void aProducerAndAConsumerThreadSeeEveryValueInOrder() throws InterruptedException {
+        LongRing ring = new LongRing(16);
+        long count = 500000;
+        Thread producer = new Thread(() -> {
+            for (long i = 0; i < count; ) {
+                if (ring.offer(i)) ++i;
+                else Thread.yield();
+            }
+        });
+        producer.start();
+        long[] expected = {0};
+        while (expected[0] < count) {
+            ring.drain(value -> assertEquals(expected[0]++, value));
+        }
+        producer.join();
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,98 @@
+package mario.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+
+import mario.net.BinaryPacketCodec;
+import mario.net.SnapshotCodec;
+import mario.sim.MarioInput;
+import mario.sim.Physics;
+import mario.sim.TileMap;
+
+public class RoomTest {
+    static final String[] LINES = {
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "                                        ",
+        "########################################",
+    };
+    static final Publisher NOWHERE = (topic, frame) -> { };
+    
+    static Room room() {
+        return new Room("test", 2, new TileMap(LINES), new Physics(Physics.BASE_TICK_RATE), 0.7f,
+                () -> new BinaryPacketCodec(new SnapshotCodec(0.01f, 0.01f, 30),
+                        Physics.BASE_TICK_RATE));
+    }
+    
+    // Player 0 sends seqs from first on, one a tick, running right
+    static int play(Room room, int first, int count, int firstInput) {
+        int seq = first;
+        for (int i = 0; i < count; ++i, seq = (seq + 1) & 0xFFFF) {
+            room.onInput(0, seq, i == 0 ? firstInput : MarioInput.NONE);
+            room.onInput(1, room.tick, MarioInput.NONE);  // Keeps the room busy
+            room.tick(NOWHERE);
+        }
+        return seq;
+    }
+    
+    @Test
+    void lateAndRepeatedInputsAreDropped() {
+        Room room = room();
+        play(room, 0, 10, MarioInput.RESPAWN | MarioInput.RIGHT);
+        room.onInput(0, 9, MarioInput.LEFT);
+        room.onInput(0, 5, MarioInput.LEFT);
+        assertEquals(room.head[0], room.tail[0]);
+        assertEquals(9, room.appliedSeq[0]);
+    }
+    
+    @Test
+    void aClientStartingOverIsTakenBackAtOnce() {
+        Room room = room();
+        play(room, 0, 5000, MarioInput.RESPAWN | MarioInput.RIGHT);
+        float ranTo = room.marios[0].x;
+        
+        // Restarted soon after joining: seq 0 again, a respawn first
+        play(room, 0, 10, MarioInput.RESPAWN | MarioInput.RIGHT);
+        assertEquals(9, room.appliedSeq[0]);
+        assertEquals(1, room.rejoins);
+        assertNotEquals(ranTo, room.marios[0].x);
+    }
+    
+    @Test
+    void aLongWayBackIsARejoinEvenWithoutARespawn() {
+        Room room = room();
+        play(room, 0, 3000, MarioInput.RESPAWN);
+        play(room, 0, 10, MarioInput.RIGHT);
+        assertEquals(9, room.appliedSeq[0]);
+        assertEquals(1, room.rejoins);
+    }
+    
+    @Test
+    void aRespawnInSequenceIsNoRejoin() {
+        Room room = room();
+        int seq = play(room, 0, 100, MarioInput.RESPAWN);
+        play(room, seq, 10, MarioInput.RESPAWN);
+        assertEquals(0, room.rejoins);
+        assertEquals(seq + 9, room.appliedSeq[0]);
+    }
+    
+    @Test
+    void seqsWrappingAroundAreNoRejoin() {
+        Room room = room();
+        play(room, 65500, 100, MarioInput.RESPAWN);
+        assertEquals(0, room.rejoins);
+        assertEquals(63, room.appliedSeq[0]);
+    }
+}
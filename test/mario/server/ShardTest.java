@@ -0,0 +1,50 @@
+package mario.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+public class ShardTest {
+    @Test
+    void publishingToABackedUpNetworkThreadDropsInsteadOfBlocking() {
+        Context context = ZMQ.context(1);
+        Socket pull = context.socket(ZMQ.PULL);
+        pull.bind("inproc://shard-test");
+        Shard shard = new Shard(0, 1000000000L / 30, 30, 1000000000L, context,
+                "inproc://shard-test");
+        shard.pushSocket = context.socket(ZMQ.PUSH);
+        shard.pushSocket.setSndHWM(Shard.OUT_HWM);
+        shard.pushSocket.connect("inproc://shard-test");
+        
+        // Nobody reads: far past both high-water marks
+        byte[] topic = GameServer.topic("room");
+        ByteBuffer frame = ByteBuffer.allocate(16);
+        int sends = Shard.OUT_HWM * 4;
+        for (int i = 0; i < sends; ++i) {
+            shard.publish(topic, frame);
+        }
+        assertTrue(shard.windowDroppedOut > 0);
+        
+        // What got through is whole messages, topic then body
+        int received = 0;
+        byte[] part;
+        while ((part = pull.recv(ZMQ.DONTWAIT)) != null) {
+            assertEquals(topic.length, part.length);
+            assertTrue(pull.hasReceiveMore());
+            assertEquals(16, pull.recv(0).length);
+            ++received;
+        }
+        assertEquals(sends, received + shard.windowDroppedOut);
+        
+        shard.pushSocket.setLinger(0);
+        shard.pushSocket.close();
+        pull.close();
+        context.term();
+    }
+}
@@ -0,0 +1,112 @@
+package mario.sim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class CollisionDetectorTest {
+    // Column bX spans x from bX * 32 - 16, row bY spans y from bY * 32
+    static final String[] LINES = {
+        "                    ",
+        "                    ",
+        "                    ",
+        "                    ",
+        "                    ",
+        "          #         ",
+        "          #         ",
+        "   ###    #         ",
+        "          #         ",
+        "####################",
+    };
+    
+    final CollisionDetector detector = new CollisionDetector(new TileMap(LINES));
+    final Aabb box = new Aabb();
+    final Contact contact = new Contact();
+    
+    @Test
+    void aFallLandsOnTheGround() {
+        box.set(100, 200, 120, 260);
+        detector.sweep(box, 0, 40, contact);
+        assertTrue(contact.hit);
+        assertEquals(0.7f, contact.time, 1e-5f);
+        assertEquals(-1, contact.normalY);
+        assertEquals(288, contact.edge);
+    }
+    
+    @Test
+    void aFastFallDoesNotTunnelThroughTheGround() {
+        box.set(500, 0, 520, 30);
+        detector.sweep(box, 0, 1000, contact);
+        assertTrue(contact.hit);
+        assertEquals(-1, contact.normalY);
+        assertEquals(288, contact.edge);
+        assertEquals(0.258f, contact.time, 1e-5f);
+    }
+    
+    @Test
+    void aFastFallStopsOnAThinPlatform() {
+        // One tile thick, far less than the distance covered in the tick
+        box.set(90, 100, 110, 130);
+        detector.sweep(box, 0, 500, contact);
+        assertTrue(contact.hit);
+        assertEquals(224, contact.edge);
+    }
+    
+    @Test
+    void aFastDiagonalStopsAtTheWall() {
+        box.set(250, 170, 270, 200);
+        detector.sweep(box, 100, 50, contact);
+        assertTrue(contact.hit);
+        assertEquals(-1, contact.normalX);
+        assertEquals(304, contact.edge);
+        assertEquals(0.34f, contact.time, 1e-5f);
+    }
+    
+    @Test
+    void aWalkShortOfTheWallIsNotStopped() {
+        box.set(250, 170, 270, 200);
+        detector.sweep(box, 33, 0, contact);
+        assertFalse(contact.hit);
+        assertEquals(1, contact.time);
+        
+        detector.sweep(box, 34, 0, contact);
+        assertTrue(contact.hit);
+        assertEquals(1, contact.time, 1e-5f);
+    }
+    
+    @Test
+    void slidingAlongTheGroundIsNotAContact() {
+        box.set(400, 258, 420, 288);
+        detector.sweep(box, 30, 0, contact);
+        assertFalse(contact.hit);
+        detector.sweep(box, -30, 0, contact);
+        assertFalse(contact.hit);
+    }
+    
+    @Test
+    void tilesAlreadyOverlappedAreIgnored() {
+        box.set(400, 280, 420, 310);
+        detector.sweep(box, 10, 0, contact);
+        assertFalse(contact.hit);
+        detector.sweep(box, 0, 5, contact);
+        assertFalse(contact.hit);
+    }
+    
+    @Test
+    void theEarliestOfSeveralContactsWins() {
+        // Heading down and right: the platform's top comes before the wall
+        box.set(60, 160, 80, 190);
+        detector.sweep(box, 300, 300, contact);
+        assertTrue(contact.hit);
+        assertEquals(-1, contact.normalY);
+        assertEquals(224, contact.edge);
+    }
+    
+    @Test
+    void standingStillHitsNothing() {
+        box.set(400, 258, 420, 288);
+        assertFalse(detector.sweep(box, 0, 0, contact).hit);
+    }
+}
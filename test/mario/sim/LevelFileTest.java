@@ -0,0 +1,69 @@
+package mario.sim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LevelFileTest {
+    static final String[] LINES = {
+        "                                   ?   ",
+        "                  BR?R             O   ",
+        "#######################################",
+    };
+    
+    @TempDir
+    Path dir;
+    
+    @Test
+    void everyTileComesBack() throws IOException {
+        TileMap map = new TileMap(LINES);
+        map.setBounds(1200, 96, 1000);
+        Path path = dir.resolve("map.lvl");
+        LevelFile.write(map, path);
+        
+        TileMap read = LevelFile.open(path);
+        assertEquals(map.getWidth(), read.getWidth());
+        assertEquals(map.getHeight(), read.getHeight());
+        assertEquals(1200, read.getMaxX());
+        assertEquals(96, read.getFloorY());
+        assertEquals(1000, read.getPrincessX());
+        for (int bY = 0; bY < map.getHeight(); ++bY) {
+            for (int bX = 0; bX < map.getWidth(); ++bX) {
+                assertEquals(map.tileAt(bX, bY), read.tileAt(bX, bY));
+                assertEquals(map.isSolid(bX, bY), read.isSolid(bX, bY));
+            }
+        }
+    }
+    
+    @Test
+    void aFlippedTileIsCaught() throws IOException {
+        Path path = dir.resolve("map.lvl");
+        LevelFile.write(new TileMap(LINES), path);
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[LevelFile.HEADER_SIZE + 3] ^= 1;
+        Files.write(path, bytes);
+        IOException e = assertThrows(IOException.class, () -> LevelFile.open(path));
+        assertTrue(e.getMessage().endsWith("corrupt"));
+    }
+    
+    @Test
+    void aShortFileIsCaught() throws IOException {
+        Path path = dir.resolve("map.lvl");
+        LevelFile.write(new TileMap(LINES), path);
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+        IOException e = assertThrows(IOException.class, () -> LevelFile.open(path));
+        assertTrue(e.getMessage().endsWith("truncated"));
+        
+        Files.write(path, Arrays.copyOf(bytes, 10));
+        assertThrows(IOException.class, () -> LevelFile.open(path));
+    }
+}